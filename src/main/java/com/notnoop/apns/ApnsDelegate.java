@@ -87,6 +87,47 @@ public interface ApnsDelegate {
      * @param resendCount the number of messages being queued for resend
      */
     public void notificationsResent(int resendCount);
+
+    /**
+     * The outbound queue of a connection filled up to its high watermark.
+     * Producers should slow down until {@link #queueLowWatermark(int)} is
+     * called.  Does nothing unless overridden.
+     *
+     * @param queued the number of notifications waiting to be written
+     */
+    public default void queueHighWatermark(int queued) {
+    }
+
+    /**
+     * The outbound queue of a connection drained down to its low watermark
+     * after reaching its high watermark.  Does nothing unless overridden.
+     *
+     * @param queued the number of notifications waiting to be written
+     */
+    public default void queueLowWatermark(int queued) {
+    }
+
+    /**
+     * The connections of the service were opened ahead of the first push,
+     * see {@link ApnsServiceBuilder#withPrewarm(long)}.  Does nothing
+     * unless overridden.
+     *
+     * @param report how many connections came up, and why the others didn't
+     */
+    public default void connectionsPrewarmed(PrewarmReport report) {
+    }
+
+    /**
+     * A connection completed its TLS handshake.  A resumed handshake reused
+     * the session of an earlier connection to the same gateway and took a
+     * single round trip.  Does nothing unless overridden.
+     *
+     * @param host the gateway host
+     * @param port the gateway port
+     * @param resumed true if an earlier session was resumed, false for a full handshake
+     */
+    public default void tlsHandshakeCompleted(String host, int port, boolean resumed) {
+    }
     
     /**
      * A no operation delegate that does nothing!
@@ -20,6 +20,18 @@ public class ApnsDelegateAdapter implements ApnsDelegate {
 	public void notificationsResent(int resendCount) {
 	}
 
+	public void queueHighWatermark(int queued) {
+	}
+
+	public void queueLowWatermark(int queued) {
+	}
+
+	public void connectionsPrewarmed(PrewarmReport report) {
+	}
+
+	public void tlsHandshakeCompleted(String host, int port, boolean resumed) {
+	}
+
 	public void connectionCreate(String localHost, int localPort) {
 	}
 
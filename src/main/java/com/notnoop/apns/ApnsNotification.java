@@ -30,11 +30,23 @@
  */
 package com.notnoop.apns;
 
+import java.nio.ByteBuffer;
+
 /**
  * Represents an APNS notification to be sent to Apple service.
  */
 public interface ApnsNotification {
 
+    /**
+     * The notification is sent immediately
+     */
+    public static final int PRIORITY_IMMEDIATE = 10;
+
+    /**
+     * The notification is sent at a time that conserves power on the device
+     */
+    public static final int PRIORITY_CONSERVE_POWER = 5;
+
     /**
      * Returns the binary representation of the device token.
      */
@@ -62,6 +74,18 @@ public interface ApnsNotification {
      */
     public int getExpiry();
 
+    /**
+     * Returns the priority of the notification, either
+     * {@link #PRIORITY_IMMEDIATE} or {@link #PRIORITY_CONSERVE_POWER};
+     * {@link #PRIORITY_IMMEDIATE} unless overridden, so that existing
+     * implementations keep compiling.
+     *
+     * @return the priority of the notification
+     */
+    public default int getPriority() {
+        return PRIORITY_IMMEDIATE;
+    }
+
     /**
      * Returns the binary representation of the message as expected by the
      * APNS server.
@@ -70,4 +94,24 @@ public interface ApnsNotification {
      * (on the wire/socket) without any modification.
      */
     public byte[] marshall();
+
+    /**
+     * Returns the length of the message in bytes as it is encoded on the wire.
+     *
+     * @return length of encoded message in bytes
+     */
+    public default int length() {
+        return marshall().length;
+    }
+
+    /**
+     * Writes the binary representation of the message at the position of
+     * {@code buffer}, which needs {@link #length()} bytes remaining.
+     *
+     * Used by the connections to encode straight into their write buffer;
+     * implementations should avoid any intermediate array.
+     */
+    public default void writeTo(ByteBuffer buffer) {
+        buffer.put(marshall());
+    }
 }
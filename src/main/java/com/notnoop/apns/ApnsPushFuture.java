@@ -0,0 +1,47 @@
+package com.notnoop.apns;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The result of an asynchronous push, see {@link ApnsService#pushAsync(ApnsNotification)}.
+ *
+ * This future completes once the notification has been written to the
+ * gateway socket, or completes exceptionally with a
+ * {@link com.notnoop.exceptions.NetworkIOException} if it could not be
+ * written.
+ *
+ * The {@link #delivered()} stage completes once the error-response window
+ * of the notification has passed without Apple rejecting it.  It completes
+ * exceptionally with a {@link com.notnoop.exceptions.ApnsDeliveryErrorException}
+ * carrying the {@link DeliveryError} if Apple rejected the notification.
+ */
+public class ApnsPushFuture extends CompletableFuture<ApnsNotification> {
+
+	private final ApnsNotification notification;
+
+	private final CompletableFuture<ApnsNotification> delivered = new CompletableFuture<ApnsNotification>();
+
+	public ApnsPushFuture(ApnsNotification notification) {
+		this.notification = notification;
+	}
+
+	/**
+	 * Returns the notification being pushed.
+	 */
+	public ApnsNotification getNotification() {
+		return notification;
+	}
+
+	/**
+	 * Returns the stage that completes once Apple had the chance to reject
+	 * the notification and did not.
+	 */
+	public CompletableFuture<ApnsNotification> delivered() {
+		return delivered;
+	}
+
+	@Override
+	public String toString() {
+		return "ApnsPushFuture [notification=" + notification + ", written=" + isDone() + ", delivered=" + delivered.isDone() + "]";
+	}
+}
@@ -30,8 +30,10 @@
  */
 package com.notnoop.apns;
 
+import java.time.Duration;
 import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 
 import com.notnoop.exceptions.NetworkIOException;
 
@@ -123,6 +125,39 @@ public interface ApnsService {
      */
     void push(ApnsNotification message) throws NetworkIOException;
 
+    /**
+     * Queues the provided notification {@code message} for sending and
+     * returns without waiting for the network.
+     *
+     * The returned future completes once the notification is written to
+     * the gateway, and its {@link ApnsPushFuture#delivered()} stage once
+     * the error-response window passed without Apple rejecting it.
+     *
+     * @param message   the notification to send
+     * @return  the future tracking the notification
+     */
+    ApnsPushFuture pushAsync(ApnsNotification message);
+
+    /**
+     * Queues the provided notifications for sending, see
+     * {@link #pushAsync(ApnsNotification)}.
+     *
+     * @param messages  the notifications to send
+     * @return  the futures tracking the notifications, in the same order
+     */
+    List<ApnsPushFuture> pushAsync(Collection<? extends ApnsNotification> messages);
+
+    /**
+     * Queues a push notification with the provided {@code payload} for
+     * every token of {@code deviceTokens}, see
+     * {@link #pushAsync(ApnsNotification)}.
+     *
+     * @param deviceTokens   the destination iPhone device tokens
+     * @param payload       The payload message
+     * @return  the futures tracking the notifications, in the same order
+     */
+    List<ApnsPushFuture> pushAsync(Collection<byte[]> deviceTokens, byte[] payload);
+
     /**
      * Starts the service.
      *
@@ -147,6 +182,20 @@ public interface ApnsService {
      */
     void stop();
 
+    /**
+     * Stops the service gracefully, within {@code timeout}.
+     *
+     * The service takes no more notifications, writes those already queued
+     * or held back for coalescing, and waits for the error-response window
+     * of the last ones to pass, resending anything written after a rejected
+     * notification.  Whatever is still unsettled at the deadline is
+     * abandoned, then the service is stopped as by {@link #stop()}.
+     *
+     * @return  what became of the notifications not settled yet when the
+     *      service was stopped
+     */
+    DrainReport stop(Duration timeout);
+
     /**
      * Test that the service is setup properly and the Apple servers
      * are reachable.
@@ -155,5 +204,11 @@ public interface ApnsService {
      *      or the service cannot send notifications for now
      */
     void testConnection() throws NetworkIOException;
+
+    /**
+     * Returns the number of notifications waiting to be written on every
+     * gateway connection, one entry per connection of a pool.
+     */
+    int[] getQueueDepths();
     
 }
@@ -34,18 +34,29 @@ import static com.notnoop.apns.internal.Utilities.PRODUCTION_FEEDBACK_HOST;
 import static com.notnoop.apns.internal.Utilities.PRODUCTION_FEEDBACK_PORT;
 import static com.notnoop.apns.internal.Utilities.PRODUCTION_GATEWAY_HOST;
 import static com.notnoop.apns.internal.Utilities.PRODUCTION_GATEWAY_PORT;
+import static com.notnoop.apns.internal.Utilities.PRODUCTION_HTTP2_HOST;
+import static com.notnoop.apns.internal.Utilities.HTTP2_PORT;
 import static com.notnoop.apns.internal.Utilities.SANDBOX_FEEDBACK_HOST;
 import static com.notnoop.apns.internal.Utilities.SANDBOX_FEEDBACK_PORT;
 import static com.notnoop.apns.internal.Utilities.SANDBOX_GATEWAY_HOST;
 import static com.notnoop.apns.internal.Utilities.SANDBOX_GATEWAY_PORT;
+import static com.notnoop.apns.internal.Utilities.SANDBOX_HTTP2_HOST;
 import static com.notnoop.apns.internal.Utilities.newSSLContext;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.security.GeneralSecurityException;
 import java.security.KeyStore;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
@@ -53,9 +64,16 @@ import javax.net.ssl.SSLSocketFactory;
 import com.notnoop.apns.internal.ApnsConnection;
 import com.notnoop.apns.internal.ApnsConnectionImpl;
 import com.notnoop.apns.internal.ApnsFeedbackConnection;
+import com.notnoop.apns.internal.ApnsHttp2Connection;
+import com.notnoop.apns.internal.ApnsNioConnection;
 import com.notnoop.apns.internal.ApnsPooledConnection;
 import com.notnoop.apns.internal.ApnsServiceImpl;
+import com.notnoop.apns.internal.FrameJournal;
+import com.notnoop.apns.internal.PoolScaler;
+import com.notnoop.apns.internal.ProviderToken;
+import com.notnoop.apns.internal.TlsSessionCache;
 import com.notnoop.apns.internal.Utilities;
+import com.notnoop.apns.internal.VirtualThreads;
 import com.notnoop.exceptions.InvalidSSLConfig;
 import com.notnoop.exceptions.RuntimeIOException;
 
@@ -82,6 +100,10 @@ public class ApnsServiceBuilder {
 
     private SSLContext sslContext;
 
+    private PrivateKey signingKey;
+    private String keyId;
+    private String teamId;
+
     private int readTimeout = 0;
 
     private String gatewayHost;
@@ -89,10 +111,41 @@ public class ApnsServiceBuilder {
 
     private String feedbackHost;
     private int feedbackPort;
+
+    private Transport transport = Transport.BINARY;
+    private String http2Host;
+    private int http2Port = -1;
+    private String topic;
+    private int eventLoops = ApnsConnection.DEFAULT_EVENT_LOOPS;
     private int pooledMax = 1;
+    private int pooledMin = -1;
+    private int scaleQueueDepth = 1000;
+    private long scaleLatency = 200;
+    private long scaleCoolDown = 60000;
+    private boolean deviceAffinity = false;
     private int cacheLength = ApnsConnection.DEFAULT_CACHE_LENGTH;
     private boolean autoAdjustCacheLength = true;
+    private ResendCacheBudget resendCacheBudget = null;
+    private boolean offHeapResendCache = false;
+    private int adaptiveCacheMin = -1;
+    private int adaptiveCacheMax = -1;
+    private File journalDirectory = null;
+    private int journalSegmentSize = FrameJournal.DEFAULT_SEGMENT_SIZE;
+    private int errorResponseWindow = ApnsConnection.DEFAULT_ERROR_RESPONSE_WINDOW;
+    private int maxBatchBytes = 0;
+    private int maxBatchLatency = 0;
+    private int queueCapacity = ApnsConnection.DEFAULT_QUEUE_CAPACITY;
+    private long queueByteCapacity = Long.MAX_VALUE;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private long blockTimeout = Long.MAX_VALUE;
+    private int highWatermark = 80;
+    private int lowWatermark = 50;
     private ExecutorService executor = null;
+    private boolean virtualThreads = false;
+    private long prewarmTimeout = 0;
+    private ReconnectPolicy reconnectPolicy = ReconnectPolicy.Provided.NEVER.newObject();
+    private int sessionCacheSize = -1;
+    private int sessionTimeout = -1;
 
     private ConnectionHolder localAddressSwitcher = ConnectionHolder.EMPTY;
     
@@ -203,6 +256,65 @@ public class ApnsServiceBuilder {
         }
 	}
     
+    /**
+     * Specify the signing key used to authenticate with a provider token
+     * instead of a certificate.  Only supported by {@link Transport#HTTP2},
+     * and requires a topic, see {@link #withTopic(String)}.
+     *
+     * @param fileName  the file containing the .p8 key issued by Apple
+     * @param keyId  the identifier of the key
+     * @param teamId  the identifier of the developer team
+     * @return  this
+     * @throws InvalidSSLConfig if the file doesn't contain an EC private key
+     */
+    public ApnsServiceBuilder withSigningKey(String fileName, String keyId, String teamId)
+    throws RuntimeIOException, InvalidSSLConfig {
+        FileInputStream stream = null;
+        try {
+            stream = new FileInputStream(fileName);
+            return withSigningKey(stream, keyId, teamId);
+        } catch (FileNotFoundException e) {
+            throw new RuntimeIOException(e);
+        } finally {
+            Utilities.close(stream);
+        }
+    }
+
+    /**
+     * Specify the signing key used to authenticate with a provider token
+     * instead of a certificate.
+     *
+     * @param stream  the .p8 key issued by Apple
+     * @param keyId  the identifier of the key
+     * @param teamId  the identifier of the developer team
+     * @return  this
+     * @throws InvalidSSLConfig if the stream doesn't contain an EC private key
+     */
+    public ApnsServiceBuilder withSigningKey(InputStream stream, String keyId, String teamId)
+    throws InvalidSSLConfig {
+        return withSigningKey(Utilities.loadSigningKey(stream), keyId, teamId);
+    }
+
+    /**
+     * Specify the signing key used to authenticate with a provider token
+     * instead of a certificate.
+     *
+     * The token is signed when the service is built, and re-signed in the
+     * background before it expires; sending a notification never waits
+     * for a signature.
+     *
+     * @param signingKey  the EC private key issued by Apple
+     * @param keyId  the identifier of the key
+     * @param teamId  the identifier of the developer team
+     * @return  this
+     */
+    public ApnsServiceBuilder withSigningKey(PrivateKey signingKey, String keyId, String teamId) {
+        this.signingKey = signingKey;
+        this.keyId = keyId;
+        this.teamId = teamId;
+        return this;
+    }
+
     /**
      * Specify the SSLContext that should be used to initiate the
      * connection to Apple Server.
@@ -220,6 +332,61 @@ public class ApnsServiceBuilder {
         return this;
     }
     
+    /**
+     * Specify the reconnection policy for the socket connection.
+     *
+     * When the policy asks for it, a new connection is opened and
+     * handshaked in the background while the current one keeps sending,
+     * and traffic then moves over to it.  The old connection is closed once
+     * Apple had the time to reject what was sent on it.  Each connection of
+     * a pool rotates on its own, with a copy of the policy.
+     *
+     * Note: This option only applies to the binary gateway, with
+     * {@link Transport#BINARY}.  Default is
+     * {@link ReconnectPolicy.Provided#NEVER}.
+     *
+     * @param rp    reconnection policy
+     * @return  this
+     */
+    public ApnsServiceBuilder withReconnectPolicy(ReconnectPolicy rp) {
+        this.reconnectPolicy = rp;
+        return this;
+    }
+
+    /**
+     * Specify the reconnection policy for the socket connection, see
+     * {@link #withReconnectPolicy(ReconnectPolicy)}.
+     *
+     * @param rp    reconnection policy
+     * @return  this
+     */
+    public ApnsServiceBuilder withReconnectPolicy(ReconnectPolicy.Provided rp) {
+        this.reconnectPolicy = rp.newObject();
+        return this;
+    }
+
+    /**
+     * Sizes the cache of TLS sessions that reconnects resume, so that a
+     * connection closed by an error-response is replaced after one round
+     * trip instead of a full handshake.  Sessions are kept per gateway
+     * endpoint and shared by all the connections of the service.
+     *
+     * Note: The cache belongs to the SSLContext, other users of the context
+     * share it.  The JDK defaults to 20480 sessions kept for a day.
+     *
+     * @param cacheSize  maximum number of sessions, 0 for no limit
+     * @param timeoutSeconds  how long a session can be resumed, 0 for no limit
+     * @return  this
+     */
+    public ApnsServiceBuilder withTlsSessionCache(int cacheSize, int timeoutSeconds) {
+        if (cacheSize < 0 || timeoutSeconds < 0) {
+            throw new IllegalArgumentException("cacheSize and timeoutSeconds must not be negative");
+        }
+        this.sessionCacheSize = cacheSize;
+        this.sessionTimeout = timeoutSeconds;
+        return this;
+    }
+
     /**
      * Specify the timeout value to be set in new setSoTimeout in created
      * sockets, for both feedback and push connections, in milliseconds.
@@ -267,6 +434,70 @@ public class ApnsServiceBuilder {
         return this;
     }
 
+    /**
+     * Specify the server of the HTTP/2 provider API, used instead of the
+     * gateway when the transport is {@link Transport#HTTP2}.
+     *
+     * Most clients should use {@link #withSandboxDestination()}
+     * or {@link #withProductionDestination()}.  Clients may use
+     * this method to connect to mocking tests and such.
+     *
+     * @param host  hostname of the provider API of Apple
+     * @param port  port of the provider API of Apple
+     * @return  this
+     */
+    public ApnsServiceBuilder withHttp2Destination(String host, int port) {
+        this.http2Host = host;
+        this.http2Port = port;
+        return this;
+    }
+
+    /**
+     * Specify the protocol used to send notifications.
+     * Default is {@link Transport#BINARY}
+     *
+     * Note: With {@link Transport#HTTP2} the options of the resend cache and
+     * the error-response window have no effect, every notification gets
+     * its own response.  With {@link Transport#NIO} everything queued is
+     * written together, the write coalescing options have no effect.
+     *
+     * @param transport  the protocol to use
+     * @return  this
+     */
+    public ApnsServiceBuilder withTransport(Transport transport) {
+        this.transport = transport;
+        return this;
+    }
+
+    /**
+     * Specify the number of selector threads shared by all the connections
+     * of the service with {@link Transport#NIO}.
+     * Default is the number of available processors.
+     *
+     * @param eventLoops  number of selector threads
+     * @return  this
+     */
+    public ApnsServiceBuilder withEventLoops(int eventLoops) {
+        if (eventLoops < 1) {
+            throw new IllegalArgumentException("eventLoops must be positive: " + eventLoops);
+        }
+        this.eventLoops = eventLoops;
+        return this;
+    }
+
+    /**
+     * Specify the topic, usually the bundle ID of the app, sent with
+     * every notification over {@link Transport#HTTP2}.  Optional with
+     * a certificate that covers a single topic.
+     *
+     * @param topic  the topic of the notifications
+     * @return  this
+     */
+    public ApnsServiceBuilder withTopic(String topic) {
+        this.topic = topic;
+        return this;
+    }
+
     /**
      * Specify to use Apple servers as iPhone gateway and feedback servers.
      *
@@ -296,7 +527,8 @@ public class ApnsServiceBuilder {
      */
     public ApnsServiceBuilder withSandboxDestination() {
         return withGatewayDestination(SANDBOX_GATEWAY_HOST, SANDBOX_GATEWAY_PORT)
-        .withFeedbackDestination(SANDBOX_FEEDBACK_HOST, SANDBOX_FEEDBACK_PORT);
+        .withFeedbackDestination(SANDBOX_FEEDBACK_HOST, SANDBOX_FEEDBACK_PORT)
+        .withHttp2Destination(SANDBOX_HTTP2_HOST, HTTP2_PORT);
     }
 
     /**
@@ -311,7 +543,8 @@ public class ApnsServiceBuilder {
      */
     public ApnsServiceBuilder withProductionDestination() {
         return withGatewayDestination(PRODUCTION_GATEWAY_HOST, PRODUCTION_GATEWAY_PORT)
-        .withFeedbackDestination(PRODUCTION_FEEDBACK_HOST, PRODUCTION_FEEDBACK_PORT);
+        .withFeedbackDestination(PRODUCTION_FEEDBACK_HOST, PRODUCTION_FEEDBACK_PORT)
+        .withHttp2Destination(PRODUCTION_HTTP2_HOST, HTTP2_PORT);
     }
 
     /**
@@ -349,17 +582,233 @@ public class ApnsServiceBuilder {
         return this;
     }
 
+    /**
+     * Specify how many bytes, and for how long, every connection keeps the
+     * written notifications to resend them after an error-response, e.g.
+     * everything written within the last 2 seconds up to 64 MB.  The cache
+     * length no longer applies.
+     *
+     * The budget also tells how many notifications and bytes the caches of
+     * the service retain.
+     *
+     * Note: This option has no effect with {@link Transport#HTTP2}, which
+     * does not resend.
+     *
+     * @param budget  the bytes and time window of the cache of each connection
+     * @return  this
+     */
+    public ApnsServiceBuilder withResendCacheBudget(ResendCacheBudget budget) {
+        this.resendCacheBudget = budget;
+        return this;
+    }
+
+    /**
+     * Keep only the encoded frames of the notifications cached for
+     * resending, in off-heap memory of each connection, instead of the
+     * notification objects.  Resent notifications are written from that
+     * memory and only decoded when a delegate looks into them.
+     *
+     * Notifications pushed with {@link ApnsService#pushAsync(ApnsNotification)}
+     * stay on the heap, as their future holds them.
+     *
+     * Note: This option has no effect with {@link Transport#HTTP2}.
+     *
+     * @return  this
+     */
+    public ApnsServiceBuilder withOffHeapResendCache() {
+        this.offHeapResendCache = true;
+        return this;
+    }
+
+    /**
+     * Size the notification cache of every connection to its measured send
+     * rate times the observed error-response latency, plus headroom,
+     * between {@code min} and {@code max} notifications.  The cache grows as
+     * soon as traffic picks up, rather than once a notification was rejected
+     * after it fell out of the cache, and shrinks when traffic falls.  Every
+     * new length is reported through {@link ApnsDelegate#cacheLengthExceeded(int)}.
+     *
+     * This replaces {@link #withAutoAdjustCacheLength(boolean)}; the cache
+     * length set with {@link #withCacheLength(int)} is the starting point.
+     *
+     * Note: This option has no effect with {@link Transport#HTTP2}, nor
+     * with {@link #withResendCacheBudget(ResendCacheBudget)}.
+     *
+     * @param min  the smallest cache length
+     * @param max  the largest cache length
+     * @return  this
+     */
+    public ApnsServiceBuilder withAdaptiveCacheLength(int min, int max) {
+        if (min < 0 || max < min) {
+            throw new IllegalArgumentException("invalid cache length bounds: " + min + ".." + max);
+        }
+        this.adaptiveCacheMin = min;
+        this.adaptiveCacheMax = max;
+        return this;
+    }
+
+    /**
+     * Journal the notifications written to the gateway in memory-mapped
+     * segment files under {@code directory}, until their error-response
+     * window passed.  When the process dies before, {@link #build()} sends
+     * the notifications that were still in their window again, before it
+     * returns the service.
+     *
+     * Delivery is at-least-once: a notification Apple accepted right before
+     * the process died is sent twice.  Notifications still queued, not yet
+     * written, are not journaled.  Closing the service settles the journal.
+     * The segments are reused once their notifications are settled, so the
+     * journal takes {@code 16MB} segments of sequential writes, forced to
+     * disk on close only.
+     *
+     * Note: This option has no effect with {@link Transport#HTTP2}.
+     *
+     * The journal is opened by {@link #build()}, which throws an
+     * {@link IllegalStateException} if it cannot be.
+     *
+     * @param directory  where the segment files are kept, one service per directory
+     * @return  this
+     */
+    public ApnsServiceBuilder withJournal(File directory) {
+        return withJournal(directory, FrameJournal.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Journal the notifications written to the gateway, see
+     * {@link #withJournal(File)}, in segment files of {@code segmentSize}
+     * bytes.
+     *
+     * @param directory  where the segment files are kept, one service per directory
+     * @param segmentSize  bytes of a segment file, larger than any notification
+     * @return  this
+     */
+    public ApnsServiceBuilder withJournal(File directory, int segmentSize) {
+        if (segmentSize < FrameJournal.MIN_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("segmentSize invalid: " + segmentSize);
+        }
+        this.journalDirectory = directory;
+        this.journalSegmentSize = segmentSize;
+        return this;
+    }
+
+    /**
+     * Specify how long, in milliseconds, a written notification may still be
+     * rejected by an error-response.  The {@link ApnsPushFuture#delivered()}
+     * stage of an asynchronous push completes once this window has passed.
+     * Default is 2000
+     *
+     * @param errorResponseWindow window in milliseconds
+     * @return  this
+     */
+    public ApnsServiceBuilder withErrorResponseWindow(int errorResponseWindow) {
+        this.errorResponseWindow = errorResponseWindow;
+        return this;
+    }
+
+    /**
+     * Specify that queued notifications should be coalesced into a single
+     * socket write (and so a single TLS record) instead of being written and
+     * flushed one by one.
+     *
+     * A batch is written once it holds {@code maxBatchBytes} bytes, once its
+     * oldest notification waited {@code maxLatencyMillis}, or once no more
+     * notifications are queued.  Default is no coalescing.
+     *
+     * @param maxBatchBytes  size in bytes after which a batch is written
+     * @param maxLatencyMillis  maximum time a notification waits in a batch
+     * @return  this
+     */
+    public ApnsServiceBuilder withWriteCoalescing(int maxBatchBytes, int maxLatencyMillis) {
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxBatchLatency = maxLatencyMillis;
+        return this;
+    }
+
+    /**
+     * Specify the maximum number of notifications waiting to be written
+     * on a connection.  With a pool the bound applies to every connection,
+     * and to the work queue of the pool.  With {@link Transport#HTTP2} the
+     * notifications wait for one of the streams of their connection, the
+     * requests in flight are not counted.
+     * Default is 16384
+     *
+     * @param capacity  maximum number of queued notifications
+     * @return  this
+     */
+    public ApnsServiceBuilder withQueueCapacity(int capacity) {
+        this.queueCapacity = capacity;
+        return this;
+    }
+
+    /**
+     * Specify the maximum size in bytes of the marshalled notifications
+     * waiting to be written on a connection.
+     * Default is no limit
+     *
+     * @param bytes  maximum size of the queued notifications
+     * @return  this
+     */
+    public ApnsServiceBuilder withQueueByteCapacity(long bytes) {
+        this.queueByteCapacity = bytes;
+        return this;
+    }
+
+    /**
+     * Specify what happens to a notification pushed while the queue of
+     * its connection is full.  A blocking push waits for ever.
+     * Default is {@link OverflowPolicy#BLOCK}
+     *
+     * @param policy  the overflow policy
+     * @return  this
+     */
+    public ApnsServiceBuilder withOverflowPolicy(OverflowPolicy policy) {
+        return withOverflowPolicy(policy, Long.MAX_VALUE);
+    }
+
+    /**
+     * Specify what happens to a notification pushed while the queue of
+     * its connection is full.
+     *
+     * @param policy  the overflow policy
+     * @param blockTimeoutMillis  how long {@link OverflowPolicy#BLOCK} waits for room
+     * @return  this
+     */
+    public ApnsServiceBuilder withOverflowPolicy(OverflowPolicy policy, long blockTimeoutMillis) {
+        this.overflowPolicy = policy;
+        this.blockTimeout = blockTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * Specify the fill levels, in percent of the queue capacity, at which
+     * {@link ApnsDelegate#queueHighWatermark(int)} and
+     * {@link ApnsDelegate#queueLowWatermark(int)} are called.
+     * Default is 80 and 50
+     *
+     * @param highPercent  fill level at which producers should slow down
+     * @param lowPercent  fill level at which producers may resume
+     * @return  this
+     */
+    public ApnsServiceBuilder withQueueWatermarks(int highPercent, int lowPercent) {
+        this.highWatermark = highPercent;
+        this.lowWatermark = lowPercent;
+        return this;
+    }
+
     /**
      * Constructs a pool of connections to the notification servers.
      *
      * Apple servers recommend using a pooled connection up to
      * 15 concurrent persistent connections to the gateways.
      *
+     * The work queue of the pool is bounded by the queue capacity, see
+     * {@link #withQueueCapacity(int)}.
+     *
      * Note: This option has no effect when using non-blocking
      * connections.
      */
     public ApnsServiceBuilder asPool(int maxConnections) {
-        return asPool(Executors.newFixedThreadPool(maxConnections), maxConnections);
+        return asPool(null, maxConnections);
     }
 
     /**
@@ -376,10 +825,121 @@ public class ApnsServiceBuilder {
      */
     public ApnsServiceBuilder asPool(ExecutorService executor, int maxConnections) {
         this.pooledMax = maxConnections;
+        this.pooledMin = -1;
         this.executor = executor;
         return this;
     }
 
+    /**
+     * Constructs a pool of connections to the notification servers that
+     * starts with {@code minConnections} connections and grows up to
+     * {@code maxConnections} while notifications pile up or wait too long
+     * to be written, see {@link #withPoolScaling(int, long, long)}.  It
+     * shrinks back once traffic stays low for a cool-down period.
+     *
+     * While a connection is handshaking or recovering from a rejection the
+     * pool does not grow, and holds growth back longer and longer while
+     * Apple keeps turning connections down.
+     *
+     * @param minConnections  the connections kept when idle
+     * @param maxConnections  the ceiling, also the number of pool threads
+     * @return  this
+     */
+    public ApnsServiceBuilder asElasticPool(int minConnections, int maxConnections) {
+        if (minConnections < 1 || maxConnections < minConnections) {
+            throw new IllegalArgumentException("invalid pool bounds: " + minConnections + ".." + maxConnections);
+        }
+        this.pooledMin = minConnections;
+        this.pooledMax = maxConnections;
+        return this;
+    }
+
+    /**
+     * Sends all the notifications of a device through the same connection
+     * of the pool, so that they are written, and resent after an
+     * error-response, in the order they were pushed; for instance badge
+     * counts.  Devices are mapped to connections by consistent hashing of
+     * their token, so a connection coming or going, with
+     * {@link #asElasticPool(int, int)}, only moves the devices it takes
+     * over or gives up.
+     *
+     * Connections are then picked by device rather than by load.
+     * {@link ApnsService#pushAsync(ApnsNotification)} queues on the
+     * connection from the calling thread, the order of one thread's pushes
+     * is kept.
+     *
+     * Note: This option has no effect without a pool.
+     *
+     * @return  this
+     */
+    public ApnsServiceBuilder withDeviceAffinity() {
+        this.deviceAffinity = true;
+        return this;
+    }
+
+    /**
+     * Sets when a pool built with {@link #asElasticPool(int, int)} resizes.
+     *
+     * @param queueDepth  notifications waiting per connection above which
+     *        the pool grows, 1000 by default
+     * @param latencyMillis  average time from push to write above which
+     *        the pool grows, 200 ms by default
+     * @param coolDownMillis  how long traffic stays low before the pool
+     *        lets a connection go, and between two shrinks, a minute by default
+     * @return  this
+     */
+    public ApnsServiceBuilder withPoolScaling(int queueDepth, long latencyMillis, long coolDownMillis) {
+        if (queueDepth < 0 || latencyMillis <= 0 || coolDownMillis < 0) {
+            throw new IllegalArgumentException("invalid pool scaling: " + queueDepth + ", " + latencyMillis + "ms, " + coolDownMillis + "ms");
+        }
+        this.scaleQueueDepth = queueDepth;
+        this.scaleLatency = latencyMillis;
+        this.scaleCoolDown = coolDownMillis;
+        return this;
+    }
+
+    /**
+     * Runs the pool threads, and the threads writing to and monitoring the
+     * gateway sockets, on virtual threads when the JVM supports them
+     * (Java 21 or later).  Older JVMs keep using platform threads.
+     *
+     * Every pool task, every write and every socket read gets a virtual
+     * thread of its own, none is pooled: the pool only bounds how many
+     * notifications it holds, with {@link #withQueueCapacity(int)}.  The
+     * timers of the connections stay on a few platform threads.
+     *
+     * Note: This option has no effect on an executor given to
+     * {@link #asPool(ExecutorService, int)}.
+     *
+     * @return  this
+     */
+    public ApnsServiceBuilder withVirtualThreads() {
+        this.virtualThreads = true;
+        return this;
+    }
+
+    /**
+     * Opens the connections of the service, all of the pool with
+     * {@link #asPool(int)}, or its minimum with
+     * {@link #asElasticPool(int, int)}, in parallel when the service is built,
+     * so that the first notifications don't wait for TCP and TLS handshakes.
+     *
+     * {@link #build()} waits at most {@code timeoutMillis} for them, and
+     * reports how many came up to
+     * {@link ApnsDelegate#connectionsPrewarmed(PrewarmReport)}.  Connections
+     * that didn't are opened by their first notification, as usual.
+     *
+     * @param timeoutMillis  how long to wait for the connections, in milliseconds
+     * @return  this
+     */
+    public ApnsServiceBuilder withPrewarm(long timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("timeoutMillis must be positive: " + timeoutMillis);
+        }
+        this.prewarmTimeout = timeoutMillis;
+        return this;
+    }
+
     /**
      * Sets the delegate of the service, that gets notified of the
      * status of message delivery.
@@ -400,40 +960,179 @@ public class ApnsServiceBuilder {
      */
     public ApnsService build() {
         checkInitialization();
+        configureSessionCache();
         ApnsService service;
 
-        SSLSocketFactory sslFactory = sslContext.getSocketFactory();
-       
-        
-        localAddressSwitcher.setSocketFactory(sslFactory);
+        TlsSessionCache sessions = new TlsSessionCache(sslContext, delegate);
 
-        ApnsConnection conn = new ApnsConnectionImpl(gatewayHost,
-            gatewayPort, localAddressSwitcher,
-                delegate, cacheLength,
-                autoAdjustCacheLength, readTimeout);
-        if (pooledMax != 1) {
-            conn = new ApnsPooledConnection(conn, pooledMax, executor);
+        localAddressSwitcher.setSocketFactory(sessions.socketFactory());
+
+        FrameJournal journal = transport == Transport.HTTP2 ? null : openJournal();
+
+        ApnsConnection conn;
+        if (transport == Transport.HTTP2) {
+            ApnsHttp2Connection http2 = new ApnsHttp2Connection(http2Host, http2Port, sslContext, newProviderToken(), topic, delegate, readTimeout);
+            http2.setOutboundQueue(queueCapacity, queueByteCapacity, overflowPolicy, blockTimeout, highWatermark, lowWatermark);
+            conn = http2;
+        } else if (transport == Transport.NIO) {
+            conn = newNioConnection(sessions, journal);
+        } else {
+            conn = newBinaryConnection(journal);
+        }
+        if (pooledMax != 1 || pooledMin > 0) {
+            PoolScaler scaler = pooledMin > 0
+                    ? new PoolScaler(pooledMin, pooledMax, scaleQueueDepth, scaleLatency, scaleCoolDown) : null;
+            ApnsPooledConnection pool;
+            if (executor != null) {
+                pool = scaler != null ? new ApnsPooledConnection(conn, scaler, executor)
+                        : new ApnsPooledConnection(conn, pooledMax, executor);
+            } else {
+                ThreadFactory poolThreads = useVirtualThreads() ? VirtualThreads.factory("apns-pool-") : Executors.defaultThreadFactory();
+                long poolBlockTimeout = overflowPolicy == OverflowPolicy.BLOCK ? blockTimeout : 0;
+                pool = scaler != null ? new ApnsPooledConnection(conn, scaler, queueCapacity, poolBlockTimeout, poolThreads)
+                        : new ApnsPooledConnection(conn, pooledMax, queueCapacity, poolBlockTimeout, poolThreads);
+            }
+            pool.setDeviceAffinity(deviceAffinity);
+            conn = pool;
         }
 
         service = new ApnsServiceImpl(conn);
 
         service.start();
 
+        if (prewarmTimeout > 0) {
+            delegate.connectionsPrewarmed(conn.prewarm(prewarmTimeout));
+        }
+
+        if (journal != null) {
+            replay(service, journal);
+        }
+
         return service;
     }
+
+    /**
+     * Sends again what the journal recovered, and settles it once all of it
+     * was written; what could not be written is recovered again next time.
+     */
+    private static void replay(ApnsService service, FrameJournal journal) {
+        List<ApnsNotification> recovered = journal.getRecovered();
+        if (recovered.isEmpty()) {
+            return;
+        }
+        List<ApnsPushFuture> futures = service.pushAsync(recovered);
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).join();
+            journal.settleRecovered();
+        } catch (RuntimeException e) {
+            // at least one failed, the whole lot stays in the journal
+        }
+    }
+
+    private FrameJournal openJournal() {
+        if (journalDirectory == null) {
+            return null;
+        }
+        try {
+            return FrameJournal.open(journalDirectory, journalSegmentSize);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open the journal in " + journalDirectory, e);
+        }
+    }
+
+    private ProviderToken newProviderToken() {
+        if (signingKey == null) {
+            return null;
+        }
+        try {
+            return new ProviderToken(signingKey, keyId, teamId);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("The signing key cannot sign provider tokens", e);
+        }
+    }
+
+    private ApnsConnection newNioConnection(TlsSessionCache sessions, FrameJournal journal) {
+        ApnsNioConnection nio = new ApnsNioConnection(gatewayHost, gatewayPort, sslContext, sessions,
+                localAddressSwitcher, delegate, cacheLength,
+                autoAdjustCacheLength, readTimeout, errorResponseWindow, eventLoops);
+        nio.setOutboundQueue(queueCapacity, queueByteCapacity, overflowPolicy, blockTimeout, highWatermark, lowWatermark);
+        nio.setResendCacheBudget(resendCacheBudget);
+        nio.setOffHeapResendCache(offHeapResendCache);
+        if (adaptiveCacheMax >= 0) {
+            nio.setAdaptiveCacheLength(adaptiveCacheMin, adaptiveCacheMax);
+        }
+        nio.setJournal(journal);
+        return nio;
+    }
+
+    private boolean useVirtualThreads() {
+        return virtualThreads && VirtualThreads.isSupported();
+    }
+
+    private ApnsConnection newBinaryConnection(FrameJournal journal) {
+        ApnsConnectionImpl impl = new ApnsConnectionImpl(gatewayHost,
+            gatewayPort, localAddressSwitcher,
+                delegate, cacheLength,
+                autoAdjustCacheLength, readTimeout, errorResponseWindow,
+                useVirtualThreads() ? VirtualThreads.factory("apns-") : null);
+        impl.setWriteCoalescing(maxBatchBytes, maxBatchLatency);
+        impl.setReconnectPolicy(reconnectPolicy.copy());
+        impl.setResendCacheBudget(resendCacheBudget);
+        impl.setOffHeapResendCache(offHeapResendCache);
+        if (adaptiveCacheMax >= 0) {
+            impl.setAdaptiveCacheLength(adaptiveCacheMin, adaptiveCacheMax);
+        }
+        impl.setOutboundQueue(queueCapacity, queueByteCapacity, overflowPolicy, blockTimeout, highWatermark, lowWatermark);
+        impl.setJournal(journal);
+        return impl;
+    }
     
 	public ApnsFeedbackConnection buildFeedback() {
-		SSLSocketFactory sslFactory = sslContext.getSocketFactory();
+		configureSessionCache();
+		// every call opens a socket, later ones resume the session
+		SSLSocketFactory sslFactory = new TlsSessionCache(sslContext, delegate).socketFactory();
 		ApnsFeedbackConnection feedback = new ApnsFeedbackConnection(sslFactory, feedbackHost, feedbackPort, readTimeout);
 		return feedback;
 	}
 
+    private void configureSessionCache() {
+        if (sessionCacheSize >= 0) {
+            TlsSessionCache.configure(sslContext, sessionCacheSize, sessionTimeout);
+        }
+    }
+
+    private static SSLContext defaultSSLContext() {
+        try {
+            return SSLContext.getDefault();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     private void checkInitialization() {
+        if (signingKey != null) {
+            if (transport != Transport.HTTP2)
+                throw new IllegalStateException(
+                        "Provider tokens are only supported by the HTTP/2 transport\n"
+                        + "Use .withTransport(Transport.HTTP2).");
+            if (topic == null)
+                throw new IllegalStateException(
+                        "Provider tokens require a topic\n"
+                        + "Use .withTopic().");
+            if (sslContext == null)
+                sslContext = defaultSSLContext();
+        }
         if (sslContext == null)
             throw new IllegalStateException(
                     "SSL Certificates and attribute are not initialized\n"
                     + "Use .withCert() methods.");
-        if (gatewayHost == null || gatewayPort == -1)
+        if (transport == Transport.HTTP2) {
+            if (http2Host == null || http2Port == -1)
+                throw new IllegalStateException(
+                        "The Destination APNS provider API is not stated\n"
+                        + "Use .withHttp2Destination(), withSandboxDestination(), "
+                        + "or withProductionDestination().");
+        } else if (gatewayHost == null || gatewayPort == -1)
             throw new IllegalStateException(
                     "The Destination APNS server is not stated\n"
                     + "Use .withDestination(), withSandboxDestination(), "
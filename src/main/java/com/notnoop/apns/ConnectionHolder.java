@@ -4,6 +4,8 @@
 package com.notnoop.apns;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.net.SocketFactory;
 
@@ -25,6 +27,28 @@ public interface ConnectionHolder {
 	 */
 	MonitorConnection takeAddress();
 
+	/**
+	 * 取到本地ip和端口, waiting for one to be returned if none is free.
+	 * 
+	 * Holders that can tell when an address is returned should override this
+	 * with a real wait, the default only checks again every millisecond.
+	 * 
+	 * @param timeoutMillis how long to wait at most
+	 * @return null if no address became free in time
+	 * @throws InterruptedException
+	 */
+	default MonitorConnection takeAddress(long timeoutMillis) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		MonitorConnection taken;
+		while ((taken = takeAddress()) == null && deadline - System.nanoTime() > 0) {
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+		return taken;
+	}
+
 	/**
 	 * 释放本地ip和端口资源
 	 * 
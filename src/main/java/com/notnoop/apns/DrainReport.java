@@ -0,0 +1,73 @@
+package com.notnoop.apns;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of stopping a service gracefully, see
+ * {@link ApnsService#stop(java.time.Duration)}.
+ *
+ * Only the notifications given to the service before it was stopped, and
+ * not settled yet, are accounted for.
+ */
+public class DrainReport {
+
+	private final int confirmed;
+	private final int failed;
+	private final List<ApnsNotification> abandoned;
+	private final long elapsedMillis;
+
+	public DrainReport(int confirmed, int failed, List<? extends ApnsNotification> abandoned, long elapsedMillis) {
+		this.confirmed = confirmed;
+		this.failed = failed;
+		this.abandoned = Collections.unmodifiableList(new ArrayList<ApnsNotification>(abandoned));
+		this.elapsedMillis = elapsedMillis;
+	}
+
+	/**
+	 * Returns the number of notifications whose error-response window
+	 * passed without Apple rejecting them, or that Apple accepted.
+	 */
+	public int getConfirmed() {
+		return confirmed;
+	}
+
+	/**
+	 * Returns the number of notifications Apple rejected or that could not
+	 * be written, their futures and the delegate tell which and why.
+	 */
+	public int getFailed() {
+		return failed;
+	}
+
+	/**
+	 * Returns the notifications still unsettled when the deadline passed,
+	 * queued or written without their outcome known.  Their futures
+	 * completed exceptionally; sending them again, for instance from
+	 * another instance, may deliver some twice.
+	 */
+	public List<ApnsNotification> getAbandoned() {
+		return abandoned;
+	}
+
+	/**
+	 * Returns how long stopping took, in milliseconds.
+	 */
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	/**
+	 * Returns true if every notification settled before the deadline.
+	 */
+	public boolean isComplete() {
+		return abandoned.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return "DrainReport [confirmed=" + confirmed + ", failed=" + failed + ", abandoned=" + abandoned.size()
+				+ ", elapsedMillis=" + elapsedMillis + "]";
+	}
+}
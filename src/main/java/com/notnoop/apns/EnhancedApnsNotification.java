@@ -30,15 +30,17 @@
  */
 package com.notnoop.apns;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicInteger;
+import com.notnoop.apns.internal.HashableDeviceToken;
 import com.notnoop.apns.internal.Utilities;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 
 /**
  * Represents an APNS notification to be sent to Apple service.
  */
-public class EnhancedApnsNotification implements ApnsNotification {
+public class EnhancedApnsNotification implements ApnsNotification, HashableDeviceToken {
 
     private final static byte COMMAND = 1;
     private static AtomicInteger nextId = new AtomicInteger(0);
@@ -96,6 +98,10 @@ public class EnhancedApnsNotification implements ApnsNotification {
         return Utilities.copyOf(deviceToken);
     }
 
+    public long hashDeviceToken() {
+        return HashableDeviceToken.hash(deviceToken);
+    }
+
     /**
      * Returns the binary representation of the payload.
      *
@@ -112,20 +118,33 @@ public class EnhancedApnsNotification implements ApnsNotification {
         return expiry;
     }
 
-    private byte[] marshall = null;
+    /**
+     * The enhanced format carries no priority, Apple sends it immediately.
+     */
+    public int getPriority() {
+        return PRIORITY_IMMEDIATE;
+    }
+
     /**
      * Returns the binary representation of the message as expected by the
      * APNS server.
      *
      * The returned array can be used to sent directly to the APNS server
-     * (on the wire/socket) without any modification.
+     * (on the wire/socket) without any modification.  A new array is
+     * encoded on every call, the connections use {@link #writeTo(ByteBuffer)}.
      */
     public byte[] marshall() {
-        if (marshall == null) {
-            marshall = Utilities.marshallEnhanced(COMMAND, identifier,
-                    expiry, deviceToken, payload);
-        }
-        return marshall.clone();
+        final ByteBuffer buffer = ByteBuffer.allocate(length());
+        writeTo(buffer);
+        return buffer.array();
+    }
+
+    /**
+     * Writes the binary representation of the message at the position of
+     * {@code buffer}, which needs {@link #length()} bytes remaining.
+     */
+    public void writeTo(ByteBuffer buffer) {
+        Utilities.writeEnhanced(buffer, COMMAND, identifier, expiry, deviceToken, payload);
     }
 
     /**
@@ -136,10 +155,7 @@ public class EnhancedApnsNotification implements ApnsNotification {
      * @return length of encoded message in bytes
      */
     public int length() {
-        int length = 1 + 4 + 4 + 2 + deviceToken.length + 2 + payload.length;
-        final int marshalledLength = marshall().length;
-        assert marshalledLength == length;
-        return length;
+        return Utilities.enhancedLength(deviceToken.length, payload.length);
     }
 
     @Override
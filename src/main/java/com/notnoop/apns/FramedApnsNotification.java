@@ -0,0 +1,186 @@
+/*
+ * Copyright 2010, Mahmood Ali.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *   * Redistributions in binary form must reproduce the above
+ *     copyright notice, this list of conditions and the following disclaimer
+ *     in the documentation and/or other materials provided with the
+ *     distribution.
+ *   * Neither the name of Mahmood Ali. nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.notnoop.apns;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.notnoop.apns.internal.HashableDeviceToken;
+import com.notnoop.apns.internal.Utilities;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * Represents an APNS notification in the command 2 frame format, which
+ * unlike {@link EnhancedApnsNotification} carries a priority.
+ *
+ * The frame is written straight into the buffer of the connection, see
+ * {@link #writeTo(ByteBuffer)}, so many notifications can be packed back
+ * to back without intermediate copies.
+ */
+public class FramedApnsNotification implements ApnsNotification, HashableDeviceToken {
+
+    private final int identifier;
+    private final int expiry;
+    private final byte[] deviceToken;
+    private final byte[] payload;
+    private final int priority;
+
+    /**
+     * Constructs an instance of {@code FramedApnsNotification}.
+     *
+     * The message encodes the payload with a {@code UTF-8} encoding.
+     *
+     * @param dtoken    The Hex of the device token of the destination phone
+     * @param payload   The payload message to be sent
+     * @param priority  {@link #PRIORITY_IMMEDIATE} or {@link #PRIORITY_CONSERVE_POWER}
+     */
+    public FramedApnsNotification(
+            int identifier, int expiryTime,
+            String dtoken, String payload, int priority) {
+        this(identifier, expiryTime, Utilities.decodeHex(dtoken), Utilities.toUTF8Bytes(payload), priority);
+    }
+
+    /**
+     * Constructs an instance of {@code FramedApnsNotification}.
+     *
+     * @param dtoken    The binary representation of the destination device token
+     * @param payload   The binary representation of the payload to be sent
+     * @param priority  {@link #PRIORITY_IMMEDIATE} or {@link #PRIORITY_CONSERVE_POWER}
+     */
+    public FramedApnsNotification(
+            int identifier, int expiryTime,
+            byte[] dtoken, byte[] payload, int priority) {
+        if (priority < 0 || priority > 255) {
+            throw new IllegalArgumentException("priority invalid:" + priority);
+        }
+        this.identifier = identifier;
+        this.expiry = expiryTime;
+        this.deviceToken = Utilities.copyOf(dtoken);
+        this.payload = Utilities.copyOf(payload);
+        this.priority = priority;
+    }
+
+    /**
+     * Returns the binary representation of the device token.
+     *
+     */
+    public byte[] getDeviceToken() {
+        return Utilities.copyOf(deviceToken);
+    }
+
+    public long hashDeviceToken() {
+        return HashableDeviceToken.hash(deviceToken);
+    }
+
+    /**
+     * Returns the binary representation of the payload.
+     *
+     */
+    public byte[] getPayload() {
+        return Utilities.copyOf(payload);
+    }
+
+    public int getIdentifier() {
+        return identifier;
+    }
+
+    public int getExpiry() {
+        return expiry;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Returns the binary representation of the message as expected by the
+     * APNS server.
+     *
+     * The returned array can be used to sent directly to the APNS server
+     * (on the wire/socket) without any modification.
+     */
+    public byte[] marshall() {
+        final ByteBuffer buffer = ByteBuffer.allocate(length());
+        writeTo(buffer);
+        return buffer.array();
+    }
+
+    /**
+     * Writes the binary representation of the message at the position of
+     * {@code buffer}, which needs {@link #length()} bytes remaining.
+     */
+    public void writeTo(ByteBuffer buffer) {
+        Utilities.writeFramed(buffer, identifier, expiry, deviceToken, payload, priority);
+    }
+
+    /**
+     * Returns the length of the message in bytes as it is encoded on the wire.
+     *
+     * @return length of encoded message in bytes
+     */
+    public int length() {
+        return Utilities.framedLength(deviceToken.length, payload.length);
+    }
+
+    @Override
+    public int hashCode() {
+        return (21
+               + 31 * identifier
+               + 31 * expiry
+               + 31 * priority
+               + 31 * Arrays.hashCode(deviceToken)
+               + 31 * Arrays.hashCode(payload));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof FramedApnsNotification))
+            return false;
+        FramedApnsNotification o = (FramedApnsNotification)obj;
+        return (identifier == o.identifier
+                && expiry == o.expiry
+                && priority == o.priority
+                && Arrays.equals(this.deviceToken, o.deviceToken)
+                && Arrays.equals(this.payload, o.payload));
+    }
+
+    @Override
+    @SuppressFBWarnings("DE_MIGHT_IGNORE")
+    public String toString() {
+        String payloadString;
+        try {
+            payloadString = new String(payload, "UTF-8");
+        } catch (Exception ex) {
+            payloadString = "???";
+        }
+        return "Message(Id="+identifier+"; Priority="+priority+"; Token="+Utilities.encodeHex(deviceToken)+"; Payload="+payloadString+")";
+    }
+}
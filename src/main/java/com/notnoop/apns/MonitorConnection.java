@@ -8,15 +8,28 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.Socket;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.notnoop.apns.internal.AdaptiveCacheLength;
+import com.notnoop.apns.internal.ErrorResponseReader;
+import com.notnoop.apns.internal.FrameArena;
+import com.notnoop.apns.internal.ResendCache;
 import com.notnoop.apns.internal.Utilities;
 import com.notnoop.exceptions.ApnsDeliveryErrorException;
 
@@ -70,7 +83,7 @@ public class MonitorConnection {
 	
 	private ConnectionHolder connectionHolder;
 	
-	private final ConcurrentLinkedQueue<ApnsNotification> cachedNotifications;
+	private final ResendCache cachedNotifications;
 
 	public MonitorConnection(InetAddress address, String host, int port, int index) {
 		this();
@@ -82,7 +95,7 @@ public class MonitorConnection {
 	}
 
 	public MonitorConnection() {
-		this.cachedNotifications = new ConcurrentLinkedQueue<ApnsNotification>();
+		this.cachedNotifications = new ResendCache(0);
 	}
 
 	public InetAddress getAddress() {
@@ -137,119 +150,333 @@ public class MonitorConnection {
 	
 	public void cacheNotification(ApnsNotification notification) {
 		cachedNotifications.add(notification);
-		while (cachedNotifications.size() > cacheLength) {
-			cachedNotifications.poll();
-			logger.debug("Removing notification from cache " + notification);
-		}
+	}
+
+	/**
+	 * @param keepObject  keep the notification itself even with an arena, see
+	 *        {@link ResendCache#add(ApnsNotification, boolean)}
+	 */
+	public void cacheNotification(ApnsNotification notification, boolean keepObject) {
+		cachedNotifications.add(notification, keepObject);
 	}
 	
 	final static int EXPECTED_SIZE = 6;
 	
-	private Thread monitorThread;
+	/**
+	 * Count down once the monitor of the current socket runs, and once it is done
+	 */
+	private volatile CountDownLatch monitorStarted;
+	private volatile CountDownLatch monitorFinished;
 
 	private int cacheLength;
+
+	private volatile AdaptiveCacheLength adaptiveCacheLength;
 	
 	public void setCacheLength(int cacheLength) {
 		this.cacheLength = cacheLength;
+		cachedNotifications.setCapacity(cacheLength);
 	}
 
-	public void startMonitor(final ApnsDelegate delegate, final boolean autoAdjustCacheLength, final ConcurrentLinkedQueue<ApnsNotification> notificationsBuffer) {
-		if (monitorThread != null) {
+	/**
+	 * Sizes the cache by {@code budget} instead of by cache length, if not null.
+	 */
+	public void setResendCacheBudget(ResendCacheBudget budget) {
+		cachedNotifications.setBudget(budget);
+	}
+
+	/**
+	 * Reports the error-responses to {@code sizer}, if not null, which then
+	 * replaces the auto-adjustment of the cache length.
+	 */
+	public void setAdaptiveCacheLength(AdaptiveCacheLength sizer) {
+		this.adaptiveCacheLength = sizer;
+	}
+
+	/**
+	 * Keeps the frames of the cached notifications in {@code arena}, if not null.
+	 */
+	public void setResendCacheArena(FrameArena arena) {
+		cachedNotifications.setArena(arena);
+	}
+
+	/**
+	 * @param resendTrigger run after notifications were queued to {@code notificationsBuffer}
+	 */
+	public void startMonitor(final ApnsDelegate delegate, final boolean autoAdjustCacheLength, final ConcurrentLinkedQueue<ApnsNotification> notificationsBuffer, final Runnable resendTrigger) {
+		startMonitor(delegate, autoAdjustCacheLength, notificationsBuffer, resendTrigger, (ThreadFactory) null);
+	}
+
+	/**
+	 * @param monitorThreadFactory creates the monitoring thread, a daemon platform thread when null
+	 */
+	public void startMonitor(final ApnsDelegate delegate, final boolean autoAdjustCacheLength, final ConcurrentLinkedQueue<ApnsNotification> notificationsBuffer, final Runnable resendTrigger, final ThreadFactory monitorThreadFactory) {
+		final Monitor monitor = newMonitor(delegate, autoAdjustCacheLength, notificationsBuffer, resendTrigger);
+		final Thread monitorThread = (monitorThreadFactory == null ? threadFactory : monitorThreadFactory).newThread(monitor);
+		monitorThread.setName("MonitoringThread-" + getLocalHost() + ":"+ getLocalPort());
+		monitorThread.start();
+		awaitStarted();
+	}
+
+	/**
+	 * Reads the error-responses of the socket with {@code reader}, shared by
+	 * the connections of a service.  A shared reader reads the socket with
+	 * short timeouts, so its TLS handshake must be done, see
+	 * {@link #awaitHandshake()}.
+	 */
+	public void startMonitor(final ApnsDelegate delegate, final boolean autoAdjustCacheLength, final ConcurrentLinkedQueue<ApnsNotification> notificationsBuffer, final Runnable resendTrigger, final ErrorResponseReader reader) {
+		final Monitor monitor = newMonitor(delegate, autoAdjustCacheLength, notificationsBuffer, resendTrigger);
+		try {
+			reader.read(monitor);
+		} catch (RejectedExecutionException e) {
+			// the service is closing, nothing will read this socket
+			returnAddress();
+			monitorFinished.countDown();
+			return;
+		}
+		awaitStarted();
+	}
+
+	private void awaitStarted() {
+		// waiting for monitor starting
+		try {
+			monitorStarted.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns the read loop of the socket, once the loop of the previous
+	 * socket of this address is done with its cleanup.
+	 */
+	private Monitor newMonitor(final ApnsDelegate delegate, final boolean autoAdjustCacheLength, final ConcurrentLinkedQueue<ApnsNotification> notificationsBuffer, final Runnable resendTrigger) {
+		final CountDownLatch previous = monitorFinished;
+		if (previous != null) {
 			try {
-				monitorThread.join();
+				// the socket is closed, its monitor is on its way out
+				previous.await();
 			} catch (InterruptedException e) {
-				Utilities.sleep(5);
+				Thread.currentThread().interrupt();
 			}
 		}
-		
-		monitorThread = threadFactory.newThread(new Runnable() {
 
-			@Override
-			public void run() {
-				logger.debug("Launching Monitoring Thread for socket {}", this);
-				try {
-					byte[] bytes = new byte[EXPECTED_SIZE];
-					while (readResponse(bytes)) {
-						logger.debug("Error-response packet {}", Utilities.encodeHex(bytes));
-						// Quickly close socket, so we won't ever try to send push notifications
-						// using the defective socket.
-						returnAddress();
-
-						int command = bytes[0] & 0xFF;
-						if (command != 8) {
-							throw new IOException("Unexpected command byte " + command);
-						}
-						int statusCode = bytes[1] & 0xFF;
-						DeliveryError e = DeliveryError.ofCode(statusCode);
-
-						int id = Utilities.parseBytes(bytes[2], bytes[3], bytes[4], bytes[5]);
-
-						logger.debug("Closed connection cause={}; id={}", e, id);
-						delegate.connectionClosed(e, id);
-
-						Queue<ApnsNotification> tempCache = new LinkedList<ApnsNotification>();
-						ApnsNotification notification = null;
-						boolean foundNotification = false;
-
-						while (!cachedNotifications.isEmpty()) {
-							notification = cachedNotifications.poll();
-							logger.debug("Candidate for removal, message id {}", notification.getIdentifier());
-
-							if (notification.getIdentifier() == id) {
-								logger.debug("Bad message found {}", notification.getIdentifier());
-								foundNotification = true;
-								break;
-							}
-							tempCache.add(notification);
-						}
-
-						if (foundNotification) {
-							logger.debug("delegate.messageSendFailed, message id {}", notification.getIdentifier());
-							delegate.messageSendFailed(notification, new ApnsDeliveryErrorException(e));
-						} else {
-							cachedNotifications.addAll(tempCache);
-							int resendSize = tempCache.size();
-							logger.warn("Received error for message that wasn't in the cache...");
-							if (autoAdjustCacheLength) {
-								cacheLength = cacheLength + (resendSize / 2);
-								delegate.cacheLengthExceeded(cacheLength);
-							}
-							logger.debug("delegate.messageSendFailed, unknown id");
-							delegate.messageSendFailed(null, new ApnsDeliveryErrorException(e));
-						}
-
-						int resendSize = 0;
-
-						while (!cachedNotifications.isEmpty()) {
-
-							resendSize++;
-							final ApnsNotification resendNotification = cachedNotifications.poll();
-							logger.debug("Queuing for resend {}", resendNotification.getIdentifier());
-							notificationsBuffer.add(resendNotification);
-						}
-						delegate.notificationsResent(resendSize);
-					}
-					logger.debug("Monitoring input stream closed by EOF");
-
-				} catch (IOException e) {
-					// An exception when reading the error code is non-critical, it will cause another retry
-					// sending the message. Other than providing a more stable network connection to the APNS
-					// server we can't do much about it - so let's not spam the application's error log.
-					logger.info("Exception while waiting for error code", e);
-					delegate.connectionClosed(DeliveryError.UNKNOWN, -1);
-				} finally {
-					returnAddress();
-					setMonitor(false);
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch finished = new CountDownLatch(1);
+		monitorStarted = started;
+		monitorFinished = finished;
+		return new Monitor(delegate, autoAdjustCacheLength, notificationsBuffer, resendTrigger, started, finished);
+	}
+
+	/**
+	 * Reads the error-responses of the current socket, and resends what
+	 * Apple dropped after a rejected notification.
+	 */
+	private final class Monitor implements ErrorResponseReader.Monitor {
+
+		private final ApnsDelegate delegate;
+		private final boolean autoAdjustCacheLength;
+		private final ConcurrentLinkedQueue<ApnsNotification> notificationsBuffer;
+		private final Runnable resendTrigger;
+		private final CountDownLatch started;
+		private final CountDownLatch finished;
+
+		private final byte[] bytes = new byte[EXPECTED_SIZE];
+
+		/** Polling only: the socket handed over, the address may have another one by now */
+		private Socket polled;
+		/** Polling only: the bytes of the packet read so far */
+		private int read;
+		/** Polling only: the read timeout of the socket, 0 for none */
+		private long idleNanos;
+		/** Polling only: when the socket last received something */
+		private long lastReadAt;
+
+		Monitor(ApnsDelegate delegate, boolean autoAdjustCacheLength, ConcurrentLinkedQueue<ApnsNotification> notificationsBuffer, //
+				Runnable resendTrigger, CountDownLatch started, CountDownLatch finished) {
+			this.delegate = delegate;
+			this.autoAdjustCacheLength = autoAdjustCacheLength;
+			this.notificationsBuffer = notificationsBuffer;
+			this.resendTrigger = resendTrigger;
+			this.started = started;
+			this.finished = finished;
+		}
+
+		@Override
+		public void run() {
+			final Thread current = Thread.currentThread();
+			final String name = current.getName();
+			current.setName("MonitoringThread-" + getLocalHost() + ":"+ getLocalPort());
+			started.countDown();
+			logger.debug("Launching Monitoring Thread for socket {}", this);
+			try {
+				while (readResponse(bytes)) {
+					errorResponse(bytes);
 				}
+				logger.debug("Monitoring input stream closed by EOF");
+
+			} catch (IOException e) {
+				closedByError(e);
+			} finally {
+				finish();
+				current.setName(name);
 			}
+		}
 
-		});
-		monitorThread.setName("MonitoringThread-" + getLocalHost() + ":"+ getLocalPort());
-		monitorThread.start();
-		
-		// waiting for monitor staring
-		while(isMonitor()) {
-			Utilities.sleep(1);
+		@Override
+		public void startPolling(int pollMillis) {
+			logger.debug("Polling socket {}", MonitorConnection.this);
+			setMonitor(true);
+			polled = socket;
+			lastReadAt = System.nanoTime();
+			try {
+				// the read timeout now only ends the socket once idle for that long
+				idleNanos = TimeUnit.MILLISECONDS.toNanos(polled.getSoTimeout());
+				polled.setSoTimeout(pollMillis);
+			} catch (IOException e) {
+				// closed already, the first poll will tell
+				logger.debug("Couldn't set the poll timeout of {}", MonitorConnection.this, e);
+			}
+			started.countDown();
+		}
+
+		@Override
+		public boolean poll() {
+			try {
+				if (pollPacket()) {
+					return true;
+				}
+				logger.debug("Monitoring input stream closed by EOF");
+			} catch (IOException e) {
+				closedByError(e);
+			}
+			finish();
+			return false;
+		}
+
+		/**
+		 * Like {@link MonitorConnection#readPacket(InputStream, byte[])}, but
+		 * a timeout only ends the read once the socket was idle for its read
+		 * timeout.
+		 *
+		 * @return false at the end of the stream, or after a timeout between packets
+		 */
+		private boolean pollPacket() throws IOException {
+			final InputStream in;
+			try {
+				in = polled.getInputStream();
+			} catch (IOException e) {
+				// closed, after an error-response or by the writer
+				return false;
+			}
+			final int count;
+			try {
+				count = in.read(bytes, read, bytes.length - read);
+			} catch (SocketTimeoutException e) {
+				if (idleNanos == 0 || System.nanoTime() - lastReadAt < idleNanos) {
+					return true;
+				}
+				if (read == 0) {
+					return false;
+				}
+				throw new IOException("Error after reading " + read + " bytes of packet", e);
+			} catch (IOException e) {
+				if (read == 0) {
+					return false;
+				}
+				throw new IOException("Error after reading " + read + " bytes of packet", e);
+			}
+			if (count < 0) {
+				if (read == 0) {
+					return false;
+				}
+				throw new EOFException("EOF after reading " + read + " bytes of new packet.");
+			}
+			lastReadAt = System.nanoTime();
+			read += count;
+			if (read == bytes.length) {
+				read = 0;
+				errorResponse(bytes);
+			}
+			return true;
+		}
+
+		@Override
+		public void abandon() {
+			logger.debug("Error-response reader closed, giving up socket {}", MonitorConnection.this);
+			finish();
+		}
+
+		private void errorResponse(byte[] bytes) throws IOException {
+			logger.debug("Error-response packet {}", Utilities.encodeHex(bytes));
+			// Quickly close socket, so we won't ever try to send push notifications
+			// using the defective socket.
+			returnAddress();
+
+			int command = bytes[0] & 0xFF;
+			if (command != 8) {
+				throw new IOException("Unexpected command byte " + command);
+			}
+			int statusCode = bytes[1] & 0xFF;
+			DeliveryError e = DeliveryError.ofCode(statusCode);
+
+			int id = Utilities.parseBytes(bytes[2], bytes[3], bytes[4], bytes[5]);
+
+			logger.debug("Closed connection cause={}; id={}", e, id);
+			delegate.connectionClosed(e, id);
+
+			final AdaptiveCacheLength sizer = adaptiveCacheLength;
+			if (sizer != null) {
+				final long latency = cachedNotifications.ageOf(id);
+				if (latency >= 0) {
+					sizer.errorResponse(latency);
+				} else {
+					sizer.unknownIdentifier();
+				}
+			}
+			final List<ApnsNotification> toResend = new ArrayList<ApnsNotification>();
+			final ApnsNotification notification = cachedNotifications.removeAfter(id, toResend);
+
+			if (notification != null) {
+				logger.debug("delegate.messageSendFailed, message id {}", notification.getIdentifier());
+				delegate.messageSendFailed(notification, new ApnsDeliveryErrorException(e));
+			} else {
+				logger.warn("Received error for message that wasn't in the cache...");
+				if (autoAdjustCacheLength && sizer == null) {
+					setCacheLength(cacheLength + (toResend.size() / 2));
+					delegate.cacheLengthExceeded(cacheLength);
+				}
+				logger.debug("delegate.messageSendFailed, unknown id");
+				delegate.messageSendFailed(null, new ApnsDeliveryErrorException(e));
+			}
+
+			final int resendSize = toResend.size();
+			logger.debug("Queuing {} for resend", resendSize);
+			notificationsBuffer.addAll(toResend);
+			if (resendSize > 0) {
+				resendTrigger.run();
+			}
+			delegate.notificationsResent(resendSize);
+		}
+
+		private void closedByError(IOException e) {
+			// An exception when reading the error code is non-critical, it will cause another retry
+			// sending the message. Other than providing a more stable network connection to the APNS
+			// server we can't do much about it - so let's not spam the application's error log.
+			logger.info("Exception while waiting for error code", e);
+			delegate.connectionClosed(DeliveryError.UNKNOWN, -1);
+		}
+
+		private void finish() {
+			returnAddress();
+			// nothing is resent from a closed socket
+			cachedNotifications.clear();
+			setMonitor(false);
+			finished.countDown();
+		}
+
+		@Override
+		public String toString() {
+			return "Monitor [" + MonitorConnection.this + "]";
 		}
 	}
 
@@ -339,16 +566,35 @@ public class MonitorConnection {
 	}
 
 	public void send(ApnsNotification m) throws IOException {
-		socket.getOutputStream().write(m.marshall());
+		final ByteBuffer frame = ByteBuffer.allocate(m.length());
+		m.writeTo(frame);
+		send(frame.array(), 0, frame.position());
+	}
+
+	/**
+	 * Writes already marshalled frames with a single write.
+	 */
+	public void send(byte[] frames, int offset, int length) throws IOException {
+		socket.getOutputStream().write(frames, offset, length);
 		socket.getOutputStream().flush();
 	}
 
-	public void setSocket(Socket socket) {
-		this.socket = socket;
+	/**
+	 * Waits for the TLS handshake of the socket, which otherwise completes
+	 * on the first read or write.
+	 */
+	public void awaitHandshake() throws IOException {
+		if (socket instanceof SSLSocket) {
+			// blocks until the handshake started by the monitor, or by this call, is done
+			final SSLSession session = ((SSLSocket) socket).getSession();
+			if (!session.isValid() || "SSL_NULL_WITH_NULL_NULL".equals(session.getCipherSuite())) {
+				throw new SSLHandshakeException("TLS handshake failed with " + socket.getRemoteSocketAddress());
+			}
+		}
 	}
 
-	private boolean isMonitor() {
-		return this.monitor;
+	public void setSocket(Socket socket) {
+		this.socket = socket;
 	}
 
 	private void setMonitor(boolean monitor) {
@@ -0,0 +1,81 @@
+package com.notnoop.apns;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of opening the connections of a service ahead of the first
+ * push, see {@link ApnsServiceBuilder#withPrewarm(long)}.
+ *
+ * Connections that didn't come up within the timeout are opened again by
+ * the first notification sent on them, as without pre-warming.
+ */
+public class PrewarmReport {
+
+	private final int requested;
+	private final int connected;
+	private final long elapsedMillis;
+	private final List<Throwable> failures;
+
+	public PrewarmReport(int requested, int connected, long elapsedMillis, List<Throwable> failures) {
+		this.requested = requested;
+		this.connected = connected;
+		this.elapsedMillis = elapsedMillis;
+		this.failures = Collections.unmodifiableList(new ArrayList<Throwable>(failures));
+	}
+
+	/**
+	 * A report for a single connection, connected unless {@code failure} is
+	 * not null.
+	 */
+	public static PrewarmReport of(long elapsedMillis, Throwable failure) {
+		if (failure == null) {
+			return new PrewarmReport(1, 1, elapsedMillis, Collections.<Throwable> emptyList());
+		}
+		return new PrewarmReport(1, 0, elapsedMillis, Collections.singletonList(failure));
+	}
+
+	/**
+	 * Returns the number of connections that were opened.
+	 */
+	public int getRequested() {
+		return requested;
+	}
+
+	/**
+	 * Returns the number of connections that completed their handshake
+	 * within the timeout.
+	 */
+	public int getConnected() {
+		return connected;
+	}
+
+	/**
+	 * Returns how long pre-warming took, in milliseconds.
+	 */
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	/**
+	 * Returns why the connections that didn't come up failed, a
+	 * {@link java.util.concurrent.TimeoutException} for those still connecting.
+	 */
+	public List<Throwable> getFailures() {
+		return failures;
+	}
+
+	/**
+	 * Returns true if every connection came up.
+	 */
+	public boolean isComplete() {
+		return connected == requested;
+	}
+
+	@Override
+	public String toString() {
+		return "PrewarmReport [connected=" + connected + "/" + requested + ", elapsedMillis=" + elapsedMillis
+				+ ", failures=" + failures + "]";
+	}
+}
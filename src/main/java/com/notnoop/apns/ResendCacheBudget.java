@@ -0,0 +1,75 @@
+package com.notnoop.apns;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sizes the resend cache of the connections of a service by bytes and by
+ * age instead of by notification count, and measures how much the caches
+ * retain.
+ *
+ * Every connection keeps the notifications written within the last
+ * {@code windowMillis}, as long as they fit in {@code maxBytes}; the
+ * oldest are evicted first.  The limits apply to each connection, a pool
+ * of n connections retains up to n times {@code maxBytes}.  The retained
+ * notifications and bytes are the total of all the connections sharing
+ * this budget.
+ */
+public class ResendCacheBudget {
+
+	private final long maxBytes;
+	private final long windowMillis;
+	private final AtomicLong notifications = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+
+	/**
+	 * @param maxBytes  bytes of frames a connection retains at most
+	 * @param windowMillis  how long a written notification is retained, 0 for as long as it fits
+	 */
+	public ResendCacheBudget(long maxBytes, long windowMillis) {
+		if (maxBytes <= 0) {
+			throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+		}
+		if (windowMillis < 0) {
+			throw new IllegalArgumentException("windowMillis must not be negative: " + windowMillis);
+		}
+		this.maxBytes = maxBytes;
+		this.windowMillis = windowMillis;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public long getWindowMillis() {
+		return windowMillis;
+	}
+
+	/**
+	 * Returns the number of notifications the caches retain.
+	 */
+	public long getRetainedNotifications() {
+		return notifications.get();
+	}
+
+	/**
+	 * Returns the bytes of frames the caches retain.
+	 */
+	public long getRetainedBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * Called by the caches when they retain, or with negative values evict,
+	 * notifications.
+	 */
+	public void retained(int notifications, long bytes) {
+		this.notifications.addAndGet(notifications);
+		this.bytes.addAndGet(bytes);
+	}
+
+	@Override
+	public String toString() {
+		return "ResendCacheBudget[maxBytes=" + maxBytes + ", windowMillis=" + windowMillis //
+				+ ", retained=" + notifications.get() + " notifications / " + bytes.get() + " bytes]";
+	}
+}
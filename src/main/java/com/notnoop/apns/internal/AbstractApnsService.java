@@ -37,6 +37,7 @@ import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsPushFuture;
 import com.notnoop.apns.ApnsService;
 import com.notnoop.apns.EnhancedApnsNotification;
 import com.notnoop.exceptions.NetworkIOException;
@@ -120,6 +121,26 @@ abstract class AbstractApnsService implements ApnsService {
         return notifications;
     }
 
+    public List<ApnsPushFuture> pushAsync(Collection<? extends ApnsNotification> messages) {
+        List<ApnsPushFuture> futures = new ArrayList<ApnsPushFuture>(messages.size());
+        for (ApnsNotification message : messages) {
+            futures.add(pushAsync(message));
+        }
+        return futures;
+    }
+
+    public List<ApnsPushFuture> pushAsync(Collection<byte[]> deviceTokens, byte[] payload) {
+        List<ApnsPushFuture> futures = new ArrayList<ApnsPushFuture>(deviceTokens.size());
+        for (byte[] deviceToken : deviceTokens) {
+            EnhancedApnsNotification notification =
+                new EnhancedApnsNotification(c.incrementAndGet(), EnhancedApnsNotification.MAXIMUM_EXPIRY, deviceToken, payload);
+            futures.add(pushAsync(notification));
+        }
+        return futures;
+    }
+
     public abstract void push(ApnsNotification message) throws NetworkIOException;
 
+    public abstract ApnsPushFuture pushAsync(ApnsNotification message);
+
 }
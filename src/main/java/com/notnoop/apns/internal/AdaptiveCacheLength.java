@@ -0,0 +1,113 @@
+package com.notnoop.apns.internal;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sizes the resend cache of a connection to what it writes while an
+ * error-response may still be on its way: the send rate times the
+ * error-response latency, plus headroom.
+ *
+ * The rate is measured over 100 ms samples.  It rises with the first
+ * faster sample, so the cache grows before notifications fall out of it,
+ * and decays by a fifth per sample when traffic falls.  The latency starts
+ * at the error-response window and follows the error-responses received;
+ * an error-response for a notification that was no longer cached doubles
+ * it.  The length only shrinks by more than a quarter at once, not to
+ * resize on every sample.
+ *
+ * The writer of the connection calls {@link #written(int, long)}, the
+ * monitor reports the error-responses.
+ */
+public class AdaptiveCacheLength {
+
+	private static final long SAMPLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final double DECAY = 0.8;
+	private static final double HEADROOM = 1.5;
+	private static final long MIN_LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+	private final int min;
+	private final int max;
+	private final long maxLatencyNanos;
+	private volatile long latencyNanos;
+
+	/** Writer only */
+	private long sampleStart = -1;
+	private int sampled;
+	private double perNano;
+	private int length;
+
+	/**
+	 * @param initialLatencyMillis  latency assumed until an error-response is seen
+	 * @param length  the cache length to start from
+	 */
+	public AdaptiveCacheLength(int min, int max, long initialLatencyMillis, int length) {
+		if (min < 0 || max < min) {
+			throw new IllegalArgumentException("invalid bounds: " + min + ".." + max);
+		}
+		this.min = min;
+		this.max = max;
+		this.latencyNanos = Math.max(MIN_LATENCY_NANOS, TimeUnit.MILLISECONDS.toNanos(initialLatencyMillis));
+		this.maxLatencyNanos = Math.max(latencyNanos, TimeUnit.SECONDS.toNanos(60));
+		this.length = Math.max(min, Math.min(max, length));
+	}
+
+	public AdaptiveCacheLength copy() {
+		return new AdaptiveCacheLength(min, max, TimeUnit.NANOSECONDS.toMillis(latencyNanos), length);
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Counts {@code count} notifications written at {@code now}.
+	 *
+	 * @return the new cache length, or -1 if it stays
+	 */
+	public int written(int count, long now) {
+		if (sampleStart < 0) {
+			sampleStart = now;
+		}
+		sampled += count;
+		final long elapsed = now - sampleStart;
+		if (elapsed < SAMPLE_NANOS) {
+			return -1;
+		}
+		final double sample = (double) sampled / elapsed;
+		final double decayed = perNano * Math.pow(DECAY, (double) elapsed / SAMPLE_NANOS);
+		perNano = Math.max(sample, decayed);
+		sampleStart = now;
+		sampled = 0;
+
+		final long wanted = (long) Math.ceil(perNano * latencyNanos * HEADROOM);
+		final int target = (int) Math.max(min, Math.min(max, wanted));
+		if (target > length || target < length - length / 4) {
+			length = target;
+			return target;
+		}
+		return -1;
+	}
+
+	/**
+	 * An error-response arrived {@code latencyNanos} after the rejected
+	 * notification was written.
+	 */
+	public void errorResponse(long latencyNanos) {
+		final long estimate = this.latencyNanos;
+		this.latencyNanos = Math.max(MIN_LATENCY_NANOS, Math.max(latencyNanos, (estimate + latencyNanos) / 2));
+	}
+
+	/**
+	 * An error-response arrived for a notification no longer cached.
+	 */
+	public void unknownIdentifier() {
+		this.latencyNanos = Math.min(maxLatencyNanos, latencyNanos * 2);
+	}
+
+	/**
+	 * Returns the error-response latency the length is sized for.
+	 */
+	public long getLatencyMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+	}
+}
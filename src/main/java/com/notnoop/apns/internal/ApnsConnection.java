@@ -33,6 +33,9 @@ package com.notnoop.apns.internal;
 import java.io.Closeable;
 
 import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsPushFuture;
+import com.notnoop.apns.DrainReport;
+import com.notnoop.apns.PrewarmReport;
 import com.notnoop.exceptions.NetworkIOException;
 
 public interface ApnsConnection extends Closeable {
@@ -44,12 +47,68 @@ public interface ApnsConnection extends Closeable {
 
 	public static int DEFAULT_READ_TIMEOUT = 20000;
 
+	/**
+	 * Default time in milliseconds after which a written notification that
+	 * received no error-response is considered delivered
+	 */
+	public static final int DEFAULT_ERROR_RESPONSE_WINDOW = 2000;
+
+	/**
+	 * Default number of notifications that may wait for the writer of a connection
+	 */
+	public static final int DEFAULT_QUEUE_CAPACITY = 16384;
+
+	/**
+	 * Default number of selector threads of a service sending over non-blocking sockets
+	 */
+	public static final int DEFAULT_EVENT_LOOPS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+	/**
+	 * Sends the notification and waits until it is written.
+	 *
+	 * @throws NetworkIOException if it couldn't be written, or the caller was
+	 *         interrupted while waiting, its interrupt status then set again
+	 */
 	void sendMessage(ApnsNotification m) throws NetworkIOException;
 
+	/**
+	 * Queues the notification for sending without blocking the caller.  The
+	 * outcome is reported through {@code future}.
+	 */
+	void sendMessageAsync(ApnsNotification m, ApnsPushFuture future);
+
 	void testConnection() throws NetworkIOException;
 
+	/**
+	 * Connects and completes the TLS handshake now rather than on the first
+	 * notification, waiting at most {@code timeoutMillis}.  Never throws,
+	 * failures are reported.
+	 */
+	PrewarmReport prewarm(long timeoutMillis);
+
+	/**
+	 * Takes no more notifications, writes the queued ones and waits at most
+	 * {@code timeoutMillis} for all of them to be confirmed or to fail,
+	 * resends included, then closes the connection.  Never throws, what is
+	 * still unsettled at the deadline is abandoned and reported.
+	 */
+	DrainReport stop(long timeoutMillis);
+
 	ApnsConnection copy();
 
+	/**
+	 * Returns the number of notifications waiting to be written.
+	 */
+	int getQueueDepth();
+
+	/**
+	 * Whether notifications given now are written right away: the
+	 * connection is neither handshaking, nor recovering from an
+	 * error-response or a failed write.  An idle connection whose socket
+	 * closed is ready, it connects on the next notification.
+	 */
+	boolean isReady();
+
 	void setCacheLength(int cacheLength);
 
 	int getCacheLength();
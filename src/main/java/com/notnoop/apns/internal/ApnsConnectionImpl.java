@@ -31,7 +31,19 @@
 package com.notnoop.apns.internal;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
@@ -39,10 +51,18 @@ import org.slf4j.LoggerFactory;
 
 import com.notnoop.apns.ApnsDelegate;
 import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsPushFuture;
+import com.notnoop.apns.DeliveryError;
+import com.notnoop.apns.DrainReport;
 import com.notnoop.apns.EnhancedApnsNotification;
 import com.notnoop.apns.MonitorConnection;
+import com.notnoop.apns.OverflowPolicy;
+import com.notnoop.apns.PrewarmReport;
+import com.notnoop.apns.ReconnectPolicy;
+import com.notnoop.apns.ResendCacheBudget;
 import com.notnoop.apns.ConnectionHolder;
 import com.notnoop.exceptions.NetworkIOException;
+import com.notnoop.exceptions.QueueFullException;
 
 public class ApnsConnectionImpl implements ApnsConnection {
 
@@ -53,20 +73,96 @@ public class ApnsConnectionImpl implements ApnsConnection {
 	private final int readTimeout;
 	private final ConnectionHolder connectionHolder;
 	private final ApnsDelegate delegate;
-	private int cacheLength;
+	private volatile int cacheLength;
+	private volatile ResendCacheBudget resendCacheBudget;
+	private volatile FrameArena frameArena;
+	private volatile AdaptiveCacheLength adaptiveCacheLength;
+	private volatile FrameJournal journal;
 	private final boolean autoAdjustCacheLength;
 	private final ConcurrentLinkedQueue<ApnsNotification> notificationsBuffer;
-	private MonitorConnection conn;
+	private volatile OutboundQueue outbound;
+	private final int errorResponseWindow;
+	private final DeliveryTracker deliveryTracker;
+	private final ApnsDelegate monitorDelegate;
+	private volatile MonitorConnection conn;
 	private volatile boolean resenderClosed = false;
-
-	private boolean isClosed() {
-		if (resenderClosed) {
-			return true;
+	/** Set once stopping, notifications are no longer taken */
+	private volatile boolean draining = false;
+
+	/**
+	 * Asked by the writer whether to move to a fresh socket, see
+	 * {@link #setReconnectPolicy(ReconnectPolicy)}.  Only used by the writer.
+	 */
+	private ReconnectPolicy reconnectPolicy = new ReconnectPolicies.Never();
+
+	/**
+	 * A socket handshaked in the background, taken over by the writer
+	 */
+	private volatile MonitorConnection replacement;
+	private volatile boolean rotating = false;
+	private volatile long nextRotationAt = 0;
+
+	/**
+	 * Shared by this connection and all of its copies, only closed by the
+	 * connection that created it.  Only runs timers, never blocking I/O.
+	 */
+	private final ConnectionScheduler scheduler;
+	private final ErrorResponseReader errorResponseReader;
+	private final boolean ownsScheduler;
+
+	/**
+	 * Creates the scheduler and monitoring threads, platform threads when null
+	 */
+	private final ThreadFactory threadFactory;
+
+	/**
+	 * Number of times the writer was signalled since it last found nothing to
+	 * do. Only the signal moving it away from zero schedules the writer, so at
+	 * most one writer runs at any time and owns the socket.
+	 */
+	private final AtomicInteger writerSignals = new AtomicInteger(0);
+
+	/**
+	 * The thread of this connection the writer connects, handshakes and
+	 * writes on, so that a stalled socket only holds up its own connection.
+	 */
+	private final ExecutorService writerThread;
+
+	/**
+	 * Completed by the writer once it connected, see {@link #prewarm(long)}
+	 */
+	private volatile CompletableFuture<Void> prewarmed;
+
+	private static final class BatchEntry {
+		final ApnsNotification notification;
+		final boolean fromBuffer;
+
+		BatchEntry(ApnsNotification notification, boolean fromBuffer) {
+			this.notification = notification;
+			this.fromBuffer = fromBuffer;
 		}
-		return false;
 	}
 
-	private static final AtomicInteger resenderThreadId = new AtomicInteger(0);
+	/*
+	 * Writer state, only touched by the writer.
+	 *
+	 * Frames gathered for the next socket write, see {@link #setWriteCoalescing(int, int)}
+	 */
+	private final List<BatchEntry> batch = new ArrayList<BatchEntry>();
+	private final List<ApnsNotification> journaled = new ArrayList<ApnsNotification>();
+	private ByteBuffer writeBuffer = ByteBuffer.allocate(INITIAL_WRITE_BUFFER);
+	private long batchStartedAt;
+	private int attempts = 0;
+
+	/**
+	 * Set by the writer while it opens a socket, and until it wrote again
+	 * after a failed write.
+	 */
+	private volatile boolean recovering = false;
+	private int maxBatchBytes = 0;
+	private long maxBatchLatencyNanos = 0;
+
+	private static final int INITIAL_WRITE_BUFFER = 4096;
 
 	public ApnsConnectionImpl(String host, int port) {
 		this(host, port, ConnectionHolder.EMPTY, ApnsDelegate.EMPTY);
@@ -85,6 +181,37 @@ public class ApnsConnectionImpl implements ApnsConnection {
 			ConnectionHolder addressSwitcher, //
 			ApnsDelegate delegate, int cacheLength, //
 			boolean autoAdjustCacheLength, int readTimeout) {
+		this(host, port, addressSwitcher, delegate, cacheLength, //
+				autoAdjustCacheLength, readTimeout, ApnsConnection.DEFAULT_ERROR_RESPONSE_WINDOW);
+	}
+
+	public ApnsConnectionImpl(String host, int port, //
+			ConnectionHolder addressSwitcher, //
+			ApnsDelegate delegate, int cacheLength, //
+			boolean autoAdjustCacheLength, int readTimeout, int errorResponseWindow) {
+		this(host, port, addressSwitcher, delegate, cacheLength, //
+				autoAdjustCacheLength, readTimeout, errorResponseWindow, null);
+	}
+
+	/**
+	 * @param threadFactory creates the threads writing to and monitoring the
+	 * socket, for instance virtual threads; platform threads when null
+	 */
+	public ApnsConnectionImpl(String host, int port, //
+			ConnectionHolder addressSwitcher, //
+			ApnsDelegate delegate, int cacheLength, //
+			boolean autoAdjustCacheLength, int readTimeout, int errorResponseWindow, ThreadFactory threadFactory) {
+		this(host, port, addressSwitcher, delegate, cacheLength, autoAdjustCacheLength, readTimeout, errorResponseWindow, //
+				// timers never block, platform threads are fine for them
+				new ConnectionScheduler(ConnectionScheduler.DEFAULT_THREADS), //
+				new ErrorResponseReader(threadFactory), true, threadFactory);
+	}
+
+	private ApnsConnectionImpl(String host, int port, //
+			ConnectionHolder addressSwitcher, //
+			ApnsDelegate delegate, int cacheLength, //
+			boolean autoAdjustCacheLength, int readTimeout, int errorResponseWindow, //
+			ConnectionScheduler scheduler, ErrorResponseReader errorResponseReader, boolean ownsScheduler, ThreadFactory threadFactory) {
 		this.host = host;
 		this.port = port;
 		this.connectionHolder = addressSwitcher;
@@ -93,7 +220,17 @@ public class ApnsConnectionImpl implements ApnsConnection {
 		this.autoAdjustCacheLength = autoAdjustCacheLength;
 		this.readTimeout = readTimeout;
 		this.notificationsBuffer = new ConcurrentLinkedQueue<ApnsNotification>();
-		this.startResender();
+		this.outbound = new OutboundQueue(ApnsConnection.DEFAULT_QUEUE_CAPACITY, OutboundQueue.UNBOUNDED, //
+				OverflowPolicy.BLOCK, OutboundQueue.UNBOUNDED, //
+				OutboundQueue.DEFAULT_HIGH_WATERMARK, OutboundQueue.DEFAULT_LOW_WATERMARK, queueListener);
+		this.errorResponseWindow = errorResponseWindow;
+		this.scheduler = scheduler;
+		this.errorResponseReader = errorResponseReader;
+		this.ownsScheduler = ownsScheduler;
+		this.threadFactory = threadFactory;
+		this.writerThread = newWriterThread(host, port, threadFactory);
+		this.deliveryTracker = new DeliveryTracker(scheduler, errorResponseWindow);
+		this.monitorDelegate = new MonitorDelegate();
 //		try {
 //			this.connect(false);
 //		} catch (IOException e) {
@@ -101,114 +238,473 @@ public class ApnsConnectionImpl implements ApnsConnection {
 //		}
 	}
 
+	/**
+	 * A single thread, timing out when idle like those of the scheduler.
+	 * Virtual threads are not pooled, the writer gets a new one each time it
+	 * is signalled.
+	 */
+	private static ExecutorService newWriterThread(String host, int port, ThreadFactory threadFactory) {
+		if (VirtualThreads.isVirtual(threadFactory)) {
+			return VirtualThreads.perTaskExecutor(threadFactory);
+		}
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, WRITER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, //
+				new LinkedBlockingQueue<Runnable>(), threadFactory == null //
+						? ConnectionScheduler.daemonThreadFactory("ApnsWriter-" + host + ":" + port + "-") : threadFactory);
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
 	public void close() {
 		this.resenderClosed = true;
-		while (true) {
-			Utilities.sleep(10);
-			if (isClosed()) {
-				break;
+		writerThread.shutdown();
+		returnAddress();
+		final MonitorConnection pending = replacement;
+		if (pending != null) {
+			replacement = null;
+			pending.returnAddress();
+		}
+		deliveryTracker.failAll(new NetworkIOException("Connection closed before the notification was confirmed"));
+		if (ownsScheduler) {
+			scheduler.close();
+			errorResponseReader.close();
+			final FrameJournal owned = journal;
+			if (owned != null) {
+				owned.close();
 			}
 		}
-		returnAddress();
 	}
 
-	private void returnAddress() {
-		if (conn != null) {
-			conn.returnAddress();
+	/**
+	 * Waits for the notifications taken so far to settle.  The writer
+	 * flushes a batch held back for coalescing as soon as nothing else is
+	 * queued, the monitor has the rest resent after a rejection, and the
+	 * delivery tracker confirms the last ones once their error-response
+	 * window passed.
+	 */
+	public DrainReport stop(long timeoutMillis) {
+		final long start = System.nanoTime();
+		final int confirmed = deliveryTracker.confirmed();
+		final int failed = deliveryTracker.failures();
+		draining = true;
+		resendTrigger.run();
+		try {
+			deliveryTracker.awaitSettled(start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
+		final List<ApnsNotification> abandoned = deliveryTracker.failAll( //
+				new NetworkIOException("Connection stopped before the notification was confirmed"));
+		final DrainReport report = new DrainReport(deliveryTracker.confirmed() - confirmed, //
+				deliveryTracker.failures() - failed, abandoned, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		close();
+		return report;
 	}
 
-	private Thread resenderThread = null;
-
-	private static final int DELAY_IN_RESENDER = 10;
-
-	private void startResender() {
-		logger.info("Launching Resender Thread");
-		resenderThread = new Thread(new Runnable() {
-
-			public void run() {
-				while (true) { // starting status
-					brainBuffer();
+	private void returnAddress() {
+		final MonitorConnection current = conn;
+		if (current != null) {
+			current.returnAddress();
+		}
+	}
 
-					if (resenderClosed) {
-						break;
+	private final Runnable writer = new Runnable() {
+
+		public void run() {
+			int signals = writerSignals.get();
+			while (true) {
+				if (!drain()) {
+					// keep ownership of the socket and come back after the retry delay
+					try {
+						scheduler.schedule(resumeWriter, DELAY_IN_MS, TimeUnit.MILLISECONDS);
+						return;
+					} catch (RejectedExecutionException e) {
+						resenderClosed = true;
+						abandonQueued();
 					}
+				}
+				signals = writerSignals.addAndGet(-signals);
+				if (signals == 0) {
+					return;
+				}
+			}
+		}
+	};
+
+	/**
+	 * Hands the writer, which kept ownership of the socket, back to its
+	 * thread once the retry delay passed.
+	 */
+	private final Runnable resumeWriter = new Runnable() {
 
-					Utilities.sleep(DELAY_IN_RESENDER);
+		public void run() {
+			try {
+				writerThread.execute(writer);
+			} catch (RejectedExecutionException e) {
+				resenderClosed = true;
+				abandonQueued();
+				writerSignals.set(0);
+			}
+		}
+	};
+
+	/**
+	 * Called by the monitor once it has queued notifications for resending,
+	 * and whenever a notification is queued for sending.
+	 */
+	private final Runnable resendTrigger = new Runnable() {
+
+		public void run() {
+			if (writerSignals.getAndIncrement() == 0) {
+				try {
+					writerThread.execute(writer);
+				} catch (RejectedExecutionException e) {
+					writerSignals.set(0);
+					logger.debug("Connection closed, notification not written", e);
 				}
 			}
-		}, "ResenderThread-" + resenderThreadId.getAndIncrement());
-		resenderThread.start();
-	}
+		}
+	};
 
-	private synchronized void connect(boolean resend) throws IOException {
+	private void connect() throws IOException {
 		if (conn == null || conn.isSocketClosed()) { // connection return
+			MonitorConnection taken = null;
+			recovering = true;
 			try {
 
-				while (true) {
-					conn = connectionHolder.takeAddress();
-					if (conn != null) {
-						break;
+				try {
+					while ((taken = connectionHolder.takeAddress(DELAY_IN_MS)) == null) {
+						if (resenderClosed) {
+							throw new IOException("Connection closed while waiting for a local address");
+						}
 					}
-					Utilities.sleep(1);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for a local address");
 				}
 
-				connectionHolder.connect(conn, host, port, readTimeout);
-				conn.setCacheLength(cacheLength);
-				conn.startMonitor(delegate, autoAdjustCacheLength, notificationsBuffer);
-
-				this.delegate.connectionCreate(conn.getLocalHost(), conn.getLocalPort());
-				logger.debug("Made a new connection to APNS {}", conn);
+				conn = taken;
+				connectionHolder.connect(taken, host, port, readTimeout);
+				// the reader polls the socket with short timeouts, which must not interrupt the handshake
+				taken.awaitHandshake();
+				taken.setCacheLength(cacheLength);
+				taken.setResendCacheBudget(resendCacheBudget);
+				taken.setResendCacheArena(frameArena);
+				taken.setAdaptiveCacheLength(adaptiveCacheLength);
+				taken.startMonitor(monitorDelegate, autoAdjustCacheLength, notificationsBuffer, resendTrigger, errorResponseReader);
+
+				this.delegate.connectionCreate(taken.getLocalHost(), taken.getLocalPort());
+				reconnectPolicy.reconnected();
+				recovering = false;
+				logger.debug("Made a new connection to APNS {}", taken);
 			} catch (IOException e) {
-				logger.error("Couldn't connect to APNS server " + conn, e);
-				// indicate to clients whether this is a resend or initial send
+				logger.error("Couldn't connect to APNS server " + taken, e);
 				throw e;
 			}
 		}
 	}
 
-	public synchronized void brainBuffer() {
-		while (!notificationsBuffer.isEmpty()) {
-			final ApnsNotification notification = notificationsBuffer.poll();
+	/**
+	 * Switches to the replacement socket once it is handshaked, and has one
+	 * opened in the background when the policy asks for it, so that the
+	 * writer never waits for a rotation.
+	 */
+	private void rotate() {
+		final MonitorConnection ready = replacement;
+		if (ready != null) {
+			replacement = null;
+			final MonitorConnection retired = conn;
+			conn = ready;
+			reconnectPolicy.reconnected();
+			rotating = false;
+			logger.debug("Rotated connection to APNS {}", ready);
+			if (retired != null && retired != ready) {
+				retire(retired);
+			}
+			return;
+		}
+		final MonitorConnection current = conn;
+		if (rotating || current == null || current.isSocketClosed()
+				|| System.currentTimeMillis() < nextRotationAt || !reconnectPolicy.shouldReconnect()) {
+			return;
+		}
+		rotating = true;
+		final Runnable opener = new Runnable() {
+			public void run() {
+				openReplacement();
+			}
+		};
+		final Thread thread = threadFactory == null ? new Thread(opener) : threadFactory.newThread(opener);
+		thread.setName("ApnsRotation-" + host + ":" + port);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Connects and handshakes a new socket off the writer, then wakes the
+	 * writer up to take it over.
+	 */
+	private void openReplacement() {
+		final MonitorConnection taken = connectionHolder.takeAddress();
+		if (taken == null) {
+			logger.debug("No local address free for rotating the connection to APNS");
+			rotationFailed();
+			return;
+		}
+		try {
+			connectionHolder.connect(taken, host, port, readTimeout);
+			taken.awaitHandshake();
+			taken.setCacheLength(cacheLength);
+			taken.setResendCacheBudget(resendCacheBudget);
+			taken.setResendCacheArena(frameArena);
+			taken.setAdaptiveCacheLength(adaptiveCacheLength);
+			taken.startMonitor(monitorDelegate, autoAdjustCacheLength, notificationsBuffer, resendTrigger, errorResponseReader);
+			delegate.connectionCreate(taken.getLocalHost(), taken.getLocalPort());
+		} catch (IOException e) {
+			logger.warn("Couldn't open a replacement connection to APNS, keeping the current one", e);
+			taken.returnAddress();
+			rotationFailed();
+			return;
+		}
+		replacement = taken;
+		if (resenderClosed) {
+			replacement = null;
+			taken.returnAddress();
+			return;
+		}
+		resendTrigger.run();
+	}
+
+	private void rotationFailed() {
+		nextRotationAt = System.currentTimeMillis() + DELAY_IN_MS;
+		rotating = false;
+	}
+
+	/**
+	 * Closes a socket the writer moved away from, once Apple had the time to
+	 * reject what was written on it.  Its monitor resends anything written
+	 * after a rejected notification.
+	 */
+	private void retire(final MonitorConnection retired) {
+		final Runnable closer = new Runnable() {
+			public void run() {
+				retired.returnAddress();
+			}
+		};
+		try {
+			scheduler.schedule(closer, errorResponseWindow, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			closer.run();
+		}
+	}
+
+	/**
+	 * Writes everything queued, resends first.
+	 *
+	 * @return false if the writer has to wait before retrying a failed write
+	 */
+	private boolean drain() {
+		if (resenderClosed) {
+			abandonQueued();
+			return true;
+		}
+		rotate();
+		final CompletableFuture<Void> requested = prewarmed;
+		if (requested != null) {
+			prewarmed = null;
 			try {
-				sendMessage(notification, true);
-			} catch (NetworkIOException ex) {
-				// at this point we are retrying the submission of messages but failing to connect to APNS,
-				// therefore notify the client of this
-				delegate.messageSendFailed(notification, ex);
+				connect();
+				conn.awaitHandshake();
+				requested.complete(null);
+			} catch (IOException e) {
+				returnAddress();
+				requested.completeExceptionally(e);
+			}
+		}
+		if (!batch.isEmpty() && attempts > 0 && !flushBatch()) {
+			return false;
+		}
+		ApnsNotification notification;
+		while ((notification = notificationsBuffer.poll()) != null) {
+			if (!append(notification, true)) {
+				return false;
 			}
 		}
+		while (!resenderClosed && (notification = outbound.poll()) != null) {
+			if (!append(notification, false)) {
+				return false;
+			}
+		}
+		// nothing more queued, don't hold back the batch
+		return flushBatch();
 	}
 
-	public synchronized void sendMessage(ApnsNotification m) throws NetworkIOException {
-		sendMessage(m, false);
+	private void abandonQueued() {
+		final NetworkIOException closed = new NetworkIOException("Connection closed");
+		for (BatchEntry entry : batch) {
+			deliveryTracker.failed(entry.notification, closed);
+		}
+		batch.clear();
+		writeBuffer.clear();
+		ApnsNotification notification;
+		while ((notification = outbound.poll()) != null) {
+			deliveryTracker.failed(notification, closed);
+		}
+		notificationsBuffer.clear();
+		final CompletableFuture<Void> requested = prewarmed;
+		if (requested != null) {
+			prewarmed = null;
+			requested.completeExceptionally(closed);
+		}
 	}
 
+	/**
+	 * Sends the notification and waits until it is written.  The calling
+	 * thread only waits for the writer of this connection, it never holds a
+	 * lock that other callers need.
+	 */
+	public void sendMessage(ApnsNotification m) throws NetworkIOException {
+		final ApnsPushFuture future = new ApnsPushFuture(m);
+		sendMessageAsync(m, future);
+		try {
+			future.get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new NetworkIOException("Interrupted while waiting for the notification to be written");
+		} catch (ExecutionException ee) {
+			if (ee.getCause() instanceof NetworkIOException) {
+				throw (NetworkIOException) ee.getCause();
+			}
+			throw new NetworkIOException(ee.getCause().toString());
+		}
+	}
+
+	public void sendMessageAsync(ApnsNotification m, ApnsPushFuture future) {
+		if (resenderClosed || draining) {
+			final NetworkIOException e = new NetworkIOException("Connection closed");
+			future.completeExceptionally(e);
+			future.delivered().completeExceptionally(e);
+			return;
+		}
+		deliveryTracker.track(future);
+		try {
+			outbound.offer(m);
+		} catch (QueueFullException e) {
+			delegate.messageSendFailed(m, e);
+			deliveryTracker.failed(m, e);
+			return;
+		}
+		resendTrigger.run();
+	}
+
+	private final OutboundQueue.Listener queueListener = new OutboundQueue.Listener() {
+
+		public void dropped(ApnsNotification notification, QueueFullException e) {
+			logger.warn("Dropped {} from the full outbound queue", notification);
+			delegate.messageSendFailed(notification, e);
+			deliveryTracker.failed(notification, e);
+		}
+
+		public void highWatermark(int queued) {
+			delegate.queueHighWatermark(queued);
+		}
+
+		public void lowWatermark(int queued) {
+			delegate.queueLowWatermark(queued);
+		}
+	};
+
 	private static final int DELAY_IN_MS = 1000;
+	private static final long WRITER_KEEP_ALIVE_SECONDS = 60;
 	private static final int RETRIES = 3;
 
-	private synchronized void sendMessage(ApnsNotification m, boolean fromBuffer) throws NetworkIOException {
+	/**
+	 * Appends the notification to the write batch, and writes out the batch
+	 * if one of the coalescing limits is reached.
+	 *
+	 * @return false if the writer has to wait before retrying a failed write
+	 */
+	private boolean append(ApnsNotification m, boolean fromBuffer) {
 		delegate.startSending(m, fromBuffer);
 
-		int attempts = 0;
+		if (batch.isEmpty()) {
+			batchStartedAt = System.nanoTime();
+			writeBuffer.clear();
+		}
+		// encoded in place, without an intermediate array
+		ensureRemaining(m.length());
+		m.writeTo(writeBuffer);
+		batch.add(new BatchEntry(m, fromBuffer));
+
+		if (writeBuffer.position() >= maxBatchBytes
+				|| System.nanoTime() - batchStartedAt >= maxBatchLatencyNanos) {
+			return flushBatch();
+		}
+		return true;
+	}
+
+	private void ensureRemaining(int length) {
+		if (writeBuffer.remaining() < length) {
+			final ByteBuffer larger = ByteBuffer.allocate(Math.max(writeBuffer.capacity() * 2, writeBuffer.position() + length));
+			writeBuffer.flip();
+			larger.put(writeBuffer);
+			writeBuffer = larger;
+		}
+	}
+
+	/**
+	 * Writes the batched frames to the socket with a single write, reconnecting
+	 * and rewriting the whole batch on failure.  Frames are only cached for
+	 * resending once they reached the socket.
+	 *
+	 * @return false if the writer has to wait before retrying a failed write
+	 */
+	private boolean flushBatch() {
+		if (batch.isEmpty()) {
+			return true;
+		}
+
 		while (true) {
 			try {
 				attempts++;
-				connect(fromBuffer);
-				conn.send(m);
-				logger.info("fromBuffer: {}, Message sended {} ", fromBuffer, m);
-				conn.cacheNotification(m);
-
-				delegate.messageSent(m, fromBuffer);
-
+				if (resenderClosed) {
+					throw new IOException("Connection closed");
+				}
+				connect();
+				final MonitorConnection current = conn;
+				current.send(writeBuffer.array(), 0, writeBuffer.position());
+				for (BatchEntry entry : batch) {
+					logger.info("fromBuffer: {}, Message sended {} ", entry.fromBuffer, entry.notification);
+					current.cacheNotification(entry.notification, frameArena != null && deliveryTracker.isTracked(entry.notification));
+					delegate.messageSent(entry.notification, entry.fromBuffer);
+					deliveryTracker.written(entry.notification);
+				}
+				resizeCache(current);
+				journal();
+				batch.clear();
+				writeBuffer.clear();
 				attempts = 0;
-				break;
+				recovering = false;
+				return true;
 			} catch (IOException e) {
 				returnAddress();
-				if (attempts >= RETRIES) {
-					logger.error("Couldn't send message after " + RETRIES + " retries." + m, e);
-					delegate.messageSendFailed(m, e);
-					throw new NetworkIOException(e);
+				recovering = true;
+				if (attempts >= RETRIES || resenderClosed) {
+					logger.error("Couldn't send " + batch.size() + " message(s) after " + attempts + " retries.", e);
+					final NetworkIOException failure = new NetworkIOException(e);
+					for (BatchEntry entry : batch) {
+						delegate.messageSendFailed(entry.notification, e);
+						if (entry.fromBuffer) {
+							// we are retrying the submission of messages but failing to connect to APNS,
+							// therefore notify the client of this
+							delegate.messageSendFailed(entry.notification, failure);
+						}
+						deliveryTracker.failed(entry.notification, failure);
+					}
+					batch.clear();
+					writeBuffer.clear();
+					attempts = 0;
+					recovering = false;
+					return true;
 				}
 				// The first failure might be due to closed connection (which in turn might be caused by
 				// a message containing a bad token), so don't delay for the first retry.
@@ -217,22 +713,61 @@ public class ApnsConnectionImpl implements ApnsConnection {
 				// which uses the delay.
 
 				if (attempts != 1) {
-					logger.info("Failed to send message " + m + "... trying again after delay", e);
-					Utilities.sleep(DELAY_IN_MS);
+					logger.info("Failed to send " + batch.size() + " message(s)... trying again after delay", e);
+					return false;
 				}
 			}
 		}
 	}
 
+	/**
+	 * Enables write coalescing: frames are gathered and written with a single
+	 * socket write (and so a single TLS record) once {@code maxBatchBytes} are
+	 * gathered, the oldest frame waited {@code maxLatencyMillis}, or there is
+	 * nothing more queued.  A {@code maxBatchBytes} of 0 writes every frame
+	 * right away.
+	 */
+	public void setWriteCoalescing(int maxBatchBytes, int maxLatencyMillis) {
+		this.maxBatchBytes = maxBatchBytes;
+		this.maxBatchLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxLatencyMillis);
+	}
+
+	/**
+	 * Bounds the queue of notifications waiting for the writer, by number and
+	 * optionally by the size of their marshalled frames.  The bounds apply to
+	 * each connection of a pool separately.
+	 *
+	 * @param capacity maximum number of queued notifications
+	 * @param byteCapacity maximum size in bytes of the queued frames, {@link Long#MAX_VALUE} for no limit
+	 * @param policy what to do with a notification that does not fit
+	 * @param blockTimeoutMillis how long {@link OverflowPolicy#BLOCK} waits, {@link Long#MAX_VALUE} for ever
+	 * @param highWatermark fill level in percent reported through {@link ApnsDelegate#queueHighWatermark(int)}
+	 * @param lowWatermark fill level in percent reported through {@link ApnsDelegate#queueLowWatermark(int)}
+	 */
+	public void setOutboundQueue(int capacity, long byteCapacity, OverflowPolicy policy, long blockTimeoutMillis, //
+			int highWatermark, int lowWatermark) {
+		this.outbound = new OutboundQueue(capacity, byteCapacity, policy, blockTimeoutMillis, //
+				highWatermark, lowWatermark, queueListener);
+	}
+
 	public ApnsConnectionImpl copy() {
-		return new ApnsConnectionImpl(host, port, connectionHolder, delegate, //
-				cacheLength, autoAdjustCacheLength, readTimeout);
+		ApnsConnectionImpl copy = new ApnsConnectionImpl(host, port, connectionHolder, delegate, //
+				cacheLength, autoAdjustCacheLength, readTimeout, errorResponseWindow, scheduler, errorResponseReader, false, threadFactory);
+		copy.setWriteCoalescing(maxBatchBytes, (int) TimeUnit.NANOSECONDS.toMillis(maxBatchLatencyNanos));
+		copy.outbound = outbound.copy(copy.queueListener);
+		copy.reconnectPolicy = reconnectPolicy.copy();
+		copy.resendCacheBudget = resendCacheBudget;
+		copy.setOffHeapResendCache(frameArena != null);
+		copy.adaptiveCacheLength = adaptiveCacheLength == null ? null : adaptiveCacheLength.copy();
+		copy.journal = journal;
+		return copy;
 	}
 
 	public void testConnection() throws NetworkIOException {
 		ApnsConnectionImpl testConnection = null;
 		try {
-			testConnection = new ApnsConnectionImpl(host, port, connectionHolder, delegate);
+			testConnection = new ApnsConnectionImpl(host, port, connectionHolder, delegate, //
+					ApnsConnection.DEFAULT_CACHE_LENGTH, true, ApnsConnection.DEFAULT_READ_TIMEOUT, errorResponseWindow, scheduler, errorResponseReader, false, threadFactory);
 			final ApnsNotification notification = new EnhancedApnsNotification(0, 0, new byte[] { 0 }, new byte[] { 0 });
 			testConnection.sendMessage(notification);
 		} finally {
@@ -242,12 +777,177 @@ public class ApnsConnectionImpl implements ApnsConnection {
 		}
 	}
 
+	/**
+	 * Sets when the writer moves to a fresh socket.  The new socket is
+	 * opened and handshaked in the background while the current one keeps
+	 * sending, then the writer switches over and closes the old socket after
+	 * the error-response window.  Copies get their own copy of the policy.
+	 *
+	 * Must be called before the first notification is sent.
+	 */
+	public void setReconnectPolicy(ReconnectPolicy reconnectPolicy) {
+		this.reconnectPolicy = reconnectPolicy;
+	}
+
+	/**
+	 * Has the writer connect, as it owns the socket, and waits for the
+	 * handshake.
+	 */
+	public PrewarmReport prewarm(long timeoutMillis) {
+		final long start = System.nanoTime();
+		final CompletableFuture<Void> connected = new CompletableFuture<Void>();
+		prewarmed = connected;
+		resendTrigger.run();
+		return Utilities.awaitPrewarm(connected, start, timeoutMillis);
+	}
+
 	public void setCacheLength(int cacheLength) {
 		this.cacheLength = cacheLength;
 	}
 
+	public int getQueueDepth() {
+		return outbound.size();
+	}
+
+	public boolean isReady() {
+		return !resenderClosed && !recovering && notificationsBuffer.isEmpty();
+	}
+
 	public int getCacheLength() {
 		return cacheLength;
 	}
 
+	/**
+	 * Sizes the resend cache of the sockets opened from now on by
+	 * {@code budget} instead of by cache length.  Copies share the budget.
+	 */
+	public void setResendCacheBudget(ResendCacheBudget budget) {
+		this.resendCacheBudget = budget;
+	}
+
+	/**
+	 * Keeps only the frames of the cached notifications, in an off-heap
+	 * arena of this connection, for the sockets opened from now on.
+	 * Notifications pushed asynchronously stay on the heap, their future
+	 * holds them anyway.  Copies get their own arena.
+	 */
+	public void setOffHeapResendCache(boolean offHeap) {
+		this.frameArena = offHeap ? new FrameArena() : null;
+	}
+
+	/**
+	 * Sizes the resend cache from the measured send rate and error-response
+	 * latency, between {@code min} and {@code max} notifications, instead of
+	 * auto-adjusting it once an error-response was for a notification no
+	 * longer cached.  Copies size their cache on their own.
+	 *
+	 * Must be called before the first notification is sent.
+	 */
+	public void setAdaptiveCacheLength(int min, int max) {
+		final AdaptiveCacheLength sizer = new AdaptiveCacheLength(min, max, errorResponseWindow, cacheLength);
+		this.cacheLength = sizer.getLength();
+		this.adaptiveCacheLength = sizer;
+	}
+
+	/**
+	 * Records the frames written to the socket in {@code journal} until the
+	 * error-response window passed, to send them again if the process dies
+	 * meanwhile.  Copies share the journal, the connection that created the
+	 * scheduler closes it.
+	 */
+	public void setJournal(FrameJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Journals the batch just written, settled after the error-response window.
+	 */
+	private void journal() {
+		final FrameJournal current = journal;
+		if (current == null) {
+			return;
+		}
+		for (BatchEntry entry : batch) {
+			journaled.add(entry.notification);
+		}
+		final long first = current.append(journaled);
+		journaled.clear();
+		if (first >= 0) {
+			scheduler.schedule(new Runnable() {
+				public void run() {
+					current.settled(first);
+				}
+			}, errorResponseWindow, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Counts the batch just written, and resizes the cache of the socket if
+	 * the send rate or the error-response latency changed enough.
+	 */
+	private void resizeCache(MonitorConnection current) {
+		final AdaptiveCacheLength sizer = adaptiveCacheLength;
+		if (sizer == null) {
+			return;
+		}
+		final int resized = sizer.written(batch.size(), System.nanoTime());
+		if (resized >= 0) {
+			logger.debug("Resend cache resized to {} for a latency of {} ms", resized, sizer.getLatencyMillis());
+			cacheLength = resized;
+			current.setCacheLength(resized);
+			delegate.cacheLengthExceeded(resized);
+		}
+	}
+
+	/**
+	 * Forwards the monitor callbacks to the user delegate, and fails the
+	 * future of a notification rejected by Apple.
+	 */
+	private class MonitorDelegate implements ApnsDelegate {
+
+		public void startSending(ApnsNotification message, boolean resent) {
+			delegate.startSending(message, resent);
+		}
+
+		public void messageSent(ApnsNotification message, boolean resent) {
+			delegate.messageSent(message, resent);
+		}
+
+		public void messageSendFailed(ApnsNotification message, Throwable e) {
+			delegate.messageSendFailed(message, e);
+			deliveryTracker.failed(message, e);
+		}
+
+		public void connectionClosed(DeliveryError e, int messageIdentifier) {
+			delegate.connectionClosed(e, messageIdentifier);
+		}
+
+		public void cacheLengthExceeded(int newCacheLength) {
+			delegate.cacheLengthExceeded(newCacheLength);
+		}
+
+		public void notificationsResent(int resendCount) {
+			delegate.notificationsResent(resendCount);
+		}
+
+		public void queueHighWatermark(int queued) {
+			delegate.queueHighWatermark(queued);
+		}
+
+		public void queueLowWatermark(int queued) {
+			delegate.queueLowWatermark(queued);
+		}
+
+		public void connectionsPrewarmed(PrewarmReport report) {
+			delegate.connectionsPrewarmed(report);
+		}
+
+		public void tlsHandshakeCompleted(String host, int port, boolean resumed) {
+			delegate.tlsHandshakeCompleted(host, port, resumed);
+		}
+
+		public void connectionCreate(String localHost, int localPort) {
+			delegate.connectionCreate(localHost, localPort);
+		}
+	}
 }
@@ -0,0 +1,560 @@
+package com.notnoop.apns.internal;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsPushFuture;
+import com.notnoop.apns.DeliveryError;
+import com.notnoop.apns.DrainReport;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.OverflowPolicy;
+import com.notnoop.apns.PrewarmReport;
+import com.notnoop.exceptions.ApnsDeliveryErrorException;
+import com.notnoop.exceptions.NetworkIOException;
+import com.notnoop.exceptions.QueueFullException;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Sends notifications through the HTTP/2 provider API.
+ *
+ * Every notification is a request on its own stream, and many streams are
+ * multiplexed on the connection.  Apple answers each of them with a status,
+ * so unlike {@link ApnsConnectionImpl} there is no resend cache and no
+ * error-response window: a notification is delivered, or rejected, once its
+ * response arrives.
+ *
+ * At most {@link #MAX_CONCURRENT_STREAMS} requests are in flight, or as
+ * many as {@link #setMaxConcurrentStreams(int)} allows; the other
+ * notifications wait in the same bounded {@link OutboundQueue} as with the
+ * binary gateway, and every response sends the next one.  Every connection,
+ * pooled copies included, has an okhttp dispatcher of its own with the same
+ * limit, so the queue of the dispatcher, which is unbounded, stays empty.
+ */
+public class ApnsHttp2Connection implements ApnsConnection {
+
+	private static final Logger logger = LoggerFactory.getLogger(ApnsHttp2Connection.class);
+
+	/**
+	 * Default maximum number of streams in flight per connection
+	 */
+	public static final int MAX_CONCURRENT_STREAMS = 1000;
+
+	private static final MediaType JSON = MediaType.parse("application/json");
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	private final String host;
+	private final int port;
+	private final String topic;
+	private final ApnsDelegate delegate;
+	private final HttpUrl devices;
+
+	/**
+	 * Null when authenticating with the client certificate of the SSLContext
+	 */
+	private final ProviderToken token;
+
+	/**
+	 * Copies keep their own dispatcher, and their own connection pool and so
+	 * their own HTTP/2 connection.
+	 */
+	private final OkHttpClient client;
+	/** Copies share the token of the prototype, which closes it */
+	private final boolean ownsToken;
+
+	private volatile int cacheLength;
+	private volatile boolean closed = false;
+	/** Set once stopping, notifications are no longer taken */
+	private volatile boolean draining = false;
+	private final AtomicInteger inFlight = new AtomicInteger(0);
+	private final AtomicInteger confirmed = new AtomicInteger(0);
+	private final AtomicInteger failures = new AtomicInteger(0);
+	private volatile OutboundQueue outbound;
+	private volatile int maxConcurrentStreams = MAX_CONCURRENT_STREAMS;
+	/** Signalled when the last request in flight settles while draining */
+	private final ReentrantLock drainLock = new ReentrantLock();
+	private final Condition drained = drainLock.newCondition();
+
+	public ApnsHttp2Connection(String host, int port, SSLContext sslContext, String topic, //
+			ApnsDelegate delegate, int readTimeout) {
+		this(host, port, sslContext, null, topic, delegate, readTimeout);
+	}
+
+	/**
+	 * @param token  the provider token sent with every request, owned and closed by this connection
+	 */
+	public ApnsHttp2Connection(String host, int port, SSLContext sslContext, ProviderToken token, String topic, //
+			ApnsDelegate delegate, int readTimeout) {
+		this(host, port, token, topic, delegate, newClient(sslContext, readTimeout), true);
+	}
+
+	private ApnsHttp2Connection(String host, int port, ProviderToken token, String topic, ApnsDelegate delegate, //
+			OkHttpClient client, boolean ownsToken) {
+		this.host = host;
+		this.port = port;
+		this.token = token;
+		this.topic = topic;
+		this.delegate = delegate == null ? ApnsDelegate.EMPTY : delegate;
+		this.client = client;
+		this.ownsToken = ownsToken;
+		this.cacheLength = ApnsConnection.DEFAULT_CACHE_LENGTH;
+		this.devices = new HttpUrl.Builder().scheme("https").host(host).port(port) //
+				.addPathSegment("3").addPathSegment("device").build();
+		this.outbound = new OutboundQueue(ApnsConnection.DEFAULT_QUEUE_CAPACITY, OutboundQueue.UNBOUNDED, //
+				OverflowPolicy.BLOCK, OutboundQueue.UNBOUNDED, //
+				OutboundQueue.DEFAULT_HIGH_WATERMARK, OutboundQueue.DEFAULT_LOW_WATERMARK, queueListener);
+	}
+
+	/**
+	 * Bounds the notifications waiting for a stream, see {@link OutboundQueue}.
+	 */
+	public void setOutboundQueue(int capacity, long byteCapacity, OverflowPolicy policy, long blockTimeoutMillis, //
+			int highWatermark, int lowWatermark) {
+		this.outbound = new OutboundQueue(capacity, byteCapacity, policy, blockTimeoutMillis, //
+				highWatermark, lowWatermark, queueListener);
+	}
+
+	/**
+	 * Bounds the requests in flight on the connection, at most
+	 * {@link #MAX_CONCURRENT_STREAMS}, the limit of the dispatcher.
+	 */
+	public void setMaxConcurrentStreams(int maxConcurrentStreams) {
+		if (maxConcurrentStreams < 1 || maxConcurrentStreams > MAX_CONCURRENT_STREAMS) {
+			throw new IllegalArgumentException("maxConcurrentStreams invalid:" + maxConcurrentStreams);
+		}
+		this.maxConcurrentStreams = maxConcurrentStreams;
+		client.dispatcher().setMaxRequests(maxConcurrentStreams);
+		client.dispatcher().setMaxRequestsPerHost(maxConcurrentStreams);
+	}
+
+	/**
+	 * A queued notification, with the future its response completes.
+	 */
+	private static final class Pending implements ApnsNotification {
+		final ApnsNotification notification;
+		final ApnsPushFuture future;
+
+		Pending(ApnsNotification notification, ApnsPushFuture future) {
+			this.notification = notification;
+			this.future = future;
+		}
+
+		public byte[] getDeviceToken() {
+			return notification.getDeviceToken();
+		}
+
+		public byte[] getPayload() {
+			return notification.getPayload();
+		}
+
+		public int getIdentifier() {
+			return notification.getIdentifier();
+		}
+
+		public int getExpiry() {
+			return notification.getExpiry();
+		}
+
+		public int getPriority() {
+			return notification.getPriority();
+		}
+
+		public byte[] marshall() {
+			return notification.marshall();
+		}
+
+		@Override
+		public int length() {
+			return notification.length();
+		}
+	}
+
+	private final OutboundQueue.Listener queueListener = new OutboundQueue.Listener() {
+
+		public void dropped(ApnsNotification notification, QueueFullException e) {
+			final Pending pending = (Pending) notification;
+			logger.warn("Dropped {} from the full outbound queue", pending.notification);
+			failed(pending, e);
+		}
+
+		public void highWatermark(int queued) {
+			delegate.queueHighWatermark(queued);
+		}
+
+		public void lowWatermark(int queued) {
+			delegate.queueLowWatermark(queued);
+		}
+	};
+
+	private void failed(Pending pending, Exception e) {
+		delegate.messageSendFailed(pending.notification, e);
+		pending.future.completeExceptionally(e);
+		pending.future.delivered().completeExceptionally(e);
+		failures.incrementAndGet();
+	}
+
+	private static Dispatcher newDispatcher(int maxConcurrentStreams) {
+		final Dispatcher dispatcher = new Dispatcher();
+		dispatcher.setMaxRequests(maxConcurrentStreams);
+		dispatcher.setMaxRequestsPerHost(maxConcurrentStreams);
+		return dispatcher;
+	}
+
+	private static OkHttpClient newClient(SSLContext sslContext, int readTimeout) {
+		// the trust manager only cleans certificate chains, the handshake trusts what the context trusts
+		return new OkHttpClient.Builder() //
+				.sslSocketFactory(sslContext.getSocketFactory(), defaultTrustManager()) //
+				.protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1)) //
+				.dispatcher(newDispatcher(MAX_CONCURRENT_STREAMS)) //
+				.readTimeout(readTimeout, TimeUnit.MILLISECONDS) //
+				.build();
+	}
+
+	private static X509TrustManager defaultTrustManager() {
+		try {
+			final TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+			tmf.init((KeyStore) null);
+			for (TrustManager tm : tmf.getTrustManagers()) {
+				if (tm instanceof X509TrustManager) {
+					return (X509TrustManager) tm;
+				}
+			}
+			throw new IllegalStateException("No X509TrustManager available");
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Sends the notification and waits for its response.  A rejection by
+	 * Apple is reported through the delegate, like with the binary gateway.
+	 */
+	public void sendMessage(ApnsNotification m) throws NetworkIOException {
+		final ApnsPushFuture future = new ApnsPushFuture(m);
+		sendMessageAsync(m, future);
+		try {
+			future.get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new NetworkIOException("Interrupted while waiting for the notification to be written");
+		} catch (ExecutionException ee) {
+			if (ee.getCause() instanceof NetworkIOException) {
+				throw (NetworkIOException) ee.getCause();
+			}
+			throw new NetworkIOException(ee.getCause().toString());
+		}
+	}
+
+	public void sendMessageAsync(final ApnsNotification m, final ApnsPushFuture future) {
+		if (closed || draining) {
+			final NetworkIOException e = new NetworkIOException("Connection closed");
+			future.completeExceptionally(e);
+			future.delivered().completeExceptionally(e);
+			return;
+		}
+		final Pending pending = new Pending(m, future);
+		try {
+			outbound.offer(pending);
+		} catch (QueueFullException e) {
+			failed(pending, e);
+			return;
+		}
+		dispatch();
+	}
+
+	/**
+	 * Sends queued notifications while fewer than the maximum number of
+	 * concurrent streams are in flight.  A response
+	 * dispatches again, so nothing stays queued behind a full connection.
+	 */
+	private void dispatch() {
+		while (outbound.size() > 0) {
+			final int current = inFlight.get();
+			if (current >= maxConcurrentStreams) {
+				break;
+			}
+			if (!inFlight.compareAndSet(current, current + 1)) {
+				continue;
+			}
+			final Pending next = (Pending) outbound.poll();
+			if (next == null) {
+				// counted but not in the ring yet, or taken by another dispatch
+				inFlight.decrementAndGet();
+				continue;
+			}
+			send(next.notification, next.future);
+		}
+		if (draining && inFlight.get() == 0 && outbound.size() == 0) {
+			drainLock.lock();
+			try {
+				drained.signalAll();
+			} finally {
+				drainLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Sends the notification on a stream already counted in flight.
+	 */
+	private void send(final ApnsNotification m, final ApnsPushFuture future) {
+		delegate.startSending(m, false);
+
+		final Request.Builder request = new Request.Builder() //
+				.url(devices.newBuilder().addPathSegment(Utilities.encodeHex(m.getDeviceToken())).build()) //
+				.header("apns-expiration", String.valueOf(m.getExpiry())) //
+				.header("apns-priority", String.valueOf(m.getPriority())) //
+				.post(RequestBody.create(JSON, m.getPayload())) //
+				// for stop() to tell the abandoned notifications
+				.tag(ApnsPushFuture.class, future);
+		if (topic != null) {
+			request.header("apns-topic", topic);
+		}
+		if (token != null) {
+			request.header("authorization", token.authorization());
+		}
+
+		client.newCall(request.build()).enqueue(new Callback() {
+
+			public void onFailure(Call call, IOException e) {
+				logger.error("Couldn't send message " + m, e);
+				final NetworkIOException failure = new NetworkIOException(e);
+				delegate.messageSendFailed(m, failure);
+				future.completeExceptionally(failure);
+				future.delivered().completeExceptionally(failure);
+				failures.incrementAndGet();
+				settled();
+			}
+
+			public void onResponse(Call call, Response response) {
+				try {
+					// the notification reached Apple whatever the answer
+					future.complete(m);
+					if (response.isSuccessful()) {
+						logger.debug("Message delivered {}", m);
+						delegate.messageSent(m, false);
+						future.delivered().complete(m);
+						confirmed.incrementAndGet();
+					} else {
+						final String reason = reason(response.body());
+						final ApnsDeliveryErrorException e = new ApnsDeliveryErrorException( //
+								deliveryError(response.code(), reason), response.code(), reason);
+						logger.debug("Message {} rejected with {} {}", m, response.code(), reason);
+						delegate.messageSendFailed(m, e);
+						future.delivered().completeExceptionally(e);
+						failures.incrementAndGet();
+					}
+				} finally {
+					response.close();
+					settled();
+				}
+			}
+		});
+	}
+
+	private void settled() {
+		inFlight.decrementAndGet();
+		dispatch();
+	}
+
+	private static String reason(ResponseBody body) {
+		if (body == null) {
+			return null;
+		}
+		try {
+			final JsonNode tree = mapper.readTree(body.string());
+			final JsonNode reason = tree == null ? null : tree.get("reason");
+			return reason == null ? null : reason.asText();
+		} catch (IOException e) {
+			logger.debug("Unreadable error response", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Maps the reason of an HTTP/2 rejection to the closest binary error code.
+	 */
+	static DeliveryError deliveryError(int status, String reason) {
+		if ("BadDeviceToken".equals(reason) || "Unregistered".equals(reason)
+				|| "DeviceTokenNotForTopic".equals(reason) || status == 410) {
+			return DeliveryError.INVALID_TOKEN;
+		} else if ("MissingDeviceToken".equals(reason)) {
+			return DeliveryError.MISSING_DEVICE_TOKEN;
+		} else if ("MissingTopic".equals(reason)) {
+			return DeliveryError.MISSING_TOPIC;
+		} else if ("BadTopic".equals(reason) || "TopicDisallowed".equals(reason)) {
+			return DeliveryError.INVALID_TOPIC_SIZE;
+		} else if ("PayloadEmpty".equals(reason)) {
+			return DeliveryError.MISSING_PAYLOAD;
+		} else if ("PayloadTooLarge".equals(reason) || status == 413) {
+			return DeliveryError.INVALID_PAYLOAD_SIZE;
+		} else if (status >= 500) {
+			return DeliveryError.PROCESSING_ERROR;
+		}
+		return DeliveryError.UNKNOWN;
+	}
+
+	Dispatcher dispatcher() {
+		return client.dispatcher();
+	}
+
+	public ApnsHttp2Connection copy() {
+		final ApnsHttp2Connection copy = new ApnsHttp2Connection(host, port, token, topic, delegate, //
+				client.newBuilder().connectionPool(new ConnectionPool()).dispatcher(newDispatcher(maxConcurrentStreams)).build(), //
+				false);
+		copy.outbound = outbound.copy(copy.queueListener);
+		copy.maxConcurrentStreams = maxConcurrentStreams;
+		return copy;
+	}
+
+	public void testConnection() throws NetworkIOException {
+		// any response, even a rejection of the bogus token, proves the connection works
+		sendMessage(new EnhancedApnsNotification(0, 0, new byte[] { 0 }, new byte[] { 0 }));
+	}
+
+	/**
+	 * Opens the HTTP/2 connection with a request to the root of the server.
+	 * Any response, even an error, means the connection is up.
+	 */
+	public PrewarmReport prewarm(long timeoutMillis) {
+		final long start = System.nanoTime();
+		final Request request = new Request.Builder() //
+				.url(new HttpUrl.Builder().scheme("https").host(host).port(port).build()) //
+				.get().build();
+		final Call call = client.newCall(request);
+		call.timeout().timeout(timeoutMillis, TimeUnit.MILLISECONDS);
+		Throwable failure = null;
+		try {
+			call.execute().close();
+		} catch (IOException e) {
+			failure = e;
+		}
+		return PrewarmReport.of(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), failure);
+	}
+
+	/**
+	 * Waits for the responses to the notifications given so far, queued ones
+	 * included.  The requests still waiting at the deadline are cancelled,
+	 * and reported abandoned with the notifications still queued.
+	 */
+	public DrainReport stop(long timeoutMillis) {
+		final long start = System.nanoTime();
+		final long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		final int confirmedBefore = confirmed.get();
+		final int failedBefore = failures.get();
+		draining = true;
+		drainLock.lock();
+		try {
+			long remaining;
+			while ((inFlight.get() > 0 || outbound.size() > 0) && (remaining = deadline - System.nanoTime()) > 0) {
+				try {
+					drained.awaitNanos(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		} finally {
+			drainLock.unlock();
+		}
+		final int confirmedDuring = confirmed.get() - confirmedBefore;
+		final int failedDuring = failures.get() - failedBefore;
+		final List<Call> calls = new ArrayList<Call>(client.dispatcher().queuedCalls());
+		calls.addAll(client.dispatcher().runningCalls());
+		final List<ApnsNotification> abandoned = abandonQueued(new NetworkIOException("Connection stopped"));
+		for (Call call : calls) {
+			final ApnsPushFuture future = call.request().tag(ApnsPushFuture.class);
+			if (future != null) {
+				abandoned.add(future.getNotification());
+				call.cancel();
+			}
+		}
+		final DrainReport report = new DrainReport(confirmedDuring, failedDuring, abandoned, //
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		close();
+		return report;
+	}
+
+	/**
+	 * Fails the notifications that never got a stream.
+	 *
+	 * @return the notifications failed, not counted as failures
+	 */
+	private List<ApnsNotification> abandonQueued(NetworkIOException cause) {
+		final List<ApnsNotification> abandoned = new ArrayList<ApnsNotification>();
+		ApnsNotification queued;
+		while ((queued = outbound.poll()) != null) {
+			final Pending pending = (Pending) queued;
+			abandoned.add(pending.notification);
+			pending.future.completeExceptionally(cause);
+			pending.future.delivered().completeExceptionally(cause);
+		}
+		return abandoned;
+	}
+
+	public void close() {
+		closed = true;
+		abandonQueued(new NetworkIOException("Connection closed"));
+		client.dispatcher().cancelAll();
+		client.dispatcher().executorService().shutdown();
+		if (ownsToken && token != null) {
+			token.close();
+		}
+		client.connectionPool().evictAll();
+	}
+
+	/**
+	 * There is no resend cache, the value is only kept.
+	 */
+	public void setCacheLength(int cacheLength) {
+		this.cacheLength = cacheLength;
+	}
+
+	public int getCacheLength() {
+		return cacheLength;
+	}
+
+	/**
+	 * Returns the number of notifications waiting for a stream or for their
+	 * response.
+	 */
+	public int getQueueDepth() {
+		return outbound.size() + inFlight.get();
+	}
+
+	public boolean isReady() {
+		return !closed;
+	}
+}
@@ -0,0 +1,979 @@
+package com.notnoop.apns.internal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.apns.ApnsDelegate;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsPushFuture;
+import com.notnoop.apns.ConnectionHolder;
+import com.notnoop.apns.DeliveryError;
+import com.notnoop.apns.DrainReport;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.MonitorConnection;
+import com.notnoop.apns.OverflowPolicy;
+import com.notnoop.apns.PrewarmReport;
+import com.notnoop.apns.ResendCacheBudget;
+import com.notnoop.exceptions.ApnsDeliveryErrorException;
+import com.notnoop.exceptions.NetworkIOException;
+import com.notnoop.exceptions.QueueFullException;
+
+/**
+ * Sends notifications to the binary gateway over a non-blocking socket.
+ *
+ * Unlike {@link ApnsConnectionImpl} a connection has no thread of its own:
+ * the writes, error-responses and reconnects of a connection and all of its
+ * copies are handled by a few shared {@link SelectorLoopGroup selector loops},
+ * so hundreds of mostly idle gateway connections cost no threads.
+ *
+ * The socket state is only touched by the loop the connection is bound to.
+ */
+public class ApnsNioConnection implements ApnsConnection {
+
+	private static final Logger logger = LoggerFactory.getLogger(ApnsNioConnection.class);
+
+	private static final int DELAY_IN_MS = 1000;
+	private static final int RETRIES = 3;
+
+	/**
+	 * Queued frames are wrapped into TLS records and written together, up
+	 * to this many bytes at a time.
+	 */
+	private static final int MAX_BATCH_BYTES = 16 * 1024;
+
+	private static final int ERROR_RESPONSE_SIZE = 6;
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final String host;
+	private final int port;
+	private final SSLContext sslContext;
+	private final TlsSessionCache sessions;
+	private final ConnectionHolder connectionHolder;
+	private final ApnsDelegate delegate;
+	private volatile int cacheLength;
+	private final boolean autoAdjustCacheLength;
+	private final int readTimeout;
+	private final int errorResponseWindow;
+	private final DeliveryTracker deliveryTracker;
+	private volatile OutboundQueue outbound;
+	private volatile boolean closed = false;
+	/** Set once stopping, notifications are no longer taken */
+	private volatile boolean draining = false;
+
+	/**
+	 * Shared by this connection and all of its copies, only closed by the
+	 * connection that created them.
+	 */
+	private final SelectorLoopGroup loops;
+	private final ConnectionScheduler scheduler;
+	private final boolean ownsLoops;
+	private final SelectorLoopGroup.SelectorLoop loop;
+
+	/**
+	 * Set while a flush is queued on the loop, so that a burst of sends
+	 * queues a single one.
+	 */
+	private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+	private static final class BatchEntry {
+		final ApnsNotification notification;
+		final boolean fromBuffer;
+
+		BatchEntry(ApnsNotification notification, boolean fromBuffer) {
+			this.notification = notification;
+			this.fromBuffer = fromBuffer;
+		}
+	}
+
+	/*
+	 * Socket state, only touched by the loop.
+	 */
+	private SocketChannel channel;
+	private SelectionKey key;
+	private SSLEngine engine;
+	private MonitorConnection address;
+	private boolean ready = false;
+	private long connectStartedAt;
+	private boolean retryScheduled = false;
+	private int attempts = 0;
+
+	/**
+	 * Published by the loop after every flush: handshaking, resending, or
+	 * waiting to retry a failed write.
+	 */
+	private volatile boolean recovering = false;
+
+	/**
+	 * plainOut, netIn and plainIn are filled by the loop, netOut holds the
+	 * encrypted bytes still to be written.  The buffers live as long as the
+	 * connection and are reused by every socket; the ones exchanged with the
+	 * channel are direct, so the channel doesn't copy them again.
+	 */
+	private ByteBuffer plainOut = ByteBuffer.allocate(MAX_BATCH_BYTES);
+	private ByteBuffer netOut;
+	private ByteBuffer netIn;
+	private ByteBuffer plainIn;
+
+	/** Frames of netOut, cached once netOut was fully written */
+	private final List<BatchEntry> batch = new ArrayList<BatchEntry>();
+	private final List<ApnsNotification> journaled = new ArrayList<ApnsNotification>();
+
+	/** Notifications written on the current socket, in write order */
+	private final ResendCache cache;
+	private volatile ResendCacheBudget resendCacheBudget;
+	private volatile boolean offHeapResendCache;
+	private volatile AdaptiveCacheLength adaptiveCacheLength;
+	private volatile FrameJournal journal;
+
+	/** Notifications to write again, before anything newly queued */
+	private final ArrayDeque<ApnsNotification> resend = new ArrayDeque<ApnsNotification>();
+
+	/** Completed once the handshake is done, see {@link #prewarm(long)} */
+	private final List<CompletableFuture<Void>> prewarmed = new ArrayList<CompletableFuture<Void>>();
+
+	public ApnsNioConnection(String host, int port, SSLContext sslContext, //
+			ConnectionHolder connectionHolder, ApnsDelegate delegate, int cacheLength, //
+			boolean autoAdjustCacheLength, int readTimeout, int errorResponseWindow, int loops) {
+		this(host, port, sslContext, new TlsSessionCache(sslContext, delegate), connectionHolder, delegate, cacheLength, //
+				autoAdjustCacheLength, readTimeout, errorResponseWindow, loops);
+	}
+
+	/**
+	 * @param sessions  counts the handshakes, shared with the other connections of the service
+	 */
+	public ApnsNioConnection(String host, int port, SSLContext sslContext, TlsSessionCache sessions, //
+			ConnectionHolder connectionHolder, ApnsDelegate delegate, int cacheLength, //
+			boolean autoAdjustCacheLength, int readTimeout, int errorResponseWindow, int loops) {
+		this(host, port, sslContext, sessions, connectionHolder, delegate, cacheLength, autoAdjustCacheLength, //
+				readTimeout, errorResponseWindow, new SelectorLoopGroup(loops), new ConnectionScheduler(1), true);
+	}
+
+	private ApnsNioConnection(String host, int port, SSLContext sslContext, TlsSessionCache sessions, //
+			ConnectionHolder connectionHolder, ApnsDelegate delegate, int cacheLength, //
+			boolean autoAdjustCacheLength, int readTimeout, int errorResponseWindow, //
+			SelectorLoopGroup loops, ConnectionScheduler scheduler, boolean ownsLoops) {
+		this.host = host;
+		this.port = port;
+		this.sslContext = sslContext;
+		this.sessions = sessions;
+		this.connectionHolder = connectionHolder;
+		this.delegate = delegate == null ? ApnsDelegate.EMPTY : delegate;
+		this.cacheLength = cacheLength;
+		this.cache = new ResendCache(cacheLength);
+		this.autoAdjustCacheLength = autoAdjustCacheLength;
+		this.readTimeout = readTimeout;
+		this.errorResponseWindow = errorResponseWindow;
+		this.loops = loops;
+		this.scheduler = scheduler;
+		this.ownsLoops = ownsLoops;
+		this.loop = loops.next();
+		this.deliveryTracker = new DeliveryTracker(scheduler, errorResponseWindow);
+		this.outbound = new OutboundQueue(ApnsConnection.DEFAULT_QUEUE_CAPACITY, OutboundQueue.UNBOUNDED, //
+				OverflowPolicy.BLOCK, OutboundQueue.UNBOUNDED, //
+				OutboundQueue.DEFAULT_HIGH_WATERMARK, OutboundQueue.DEFAULT_LOW_WATERMARK, queueListener);
+		this.netOut = (ByteBuffer) ByteBuffer.allocate(0).flip();
+	}
+
+	public void sendMessage(ApnsNotification m) throws NetworkIOException {
+		final ApnsPushFuture future = new ApnsPushFuture(m);
+		sendMessageAsync(m, future);
+		try {
+			future.get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new NetworkIOException("Interrupted while waiting for the notification to be written");
+		} catch (ExecutionException ee) {
+			if (ee.getCause() instanceof NetworkIOException) {
+				throw (NetworkIOException) ee.getCause();
+			}
+			throw new NetworkIOException(ee.getCause().toString());
+		}
+	}
+
+	public void sendMessageAsync(ApnsNotification m, ApnsPushFuture future) {
+		if (closed || draining) {
+			final NetworkIOException e = new NetworkIOException("Connection closed");
+			future.completeExceptionally(e);
+			future.delivered().completeExceptionally(e);
+			return;
+		}
+		deliveryTracker.track(future);
+		try {
+			outbound.offer(m);
+		} catch (QueueFullException e) {
+			delegate.messageSendFailed(m, e);
+			deliveryTracker.failed(m, e);
+			return;
+		}
+		signal();
+	}
+
+	private final OutboundQueue.Listener queueListener = new OutboundQueue.Listener() {
+
+		public void dropped(ApnsNotification notification, QueueFullException e) {
+			logger.warn("Dropped {} from the full outbound queue", notification);
+			delegate.messageSendFailed(notification, e);
+			deliveryTracker.failed(notification, e);
+		}
+
+		public void highWatermark(int queued) {
+			delegate.queueHighWatermark(queued);
+		}
+
+		public void lowWatermark(int queued) {
+			delegate.queueLowWatermark(queued);
+		}
+	};
+
+	private void signal() {
+		if (flushScheduled.compareAndSet(false, true)) {
+			try {
+				loop.execute(flusher);
+			} catch (RejectedExecutionException e) {
+				flushScheduled.set(false);
+				logger.debug("Selector loop closed, notification not written", e);
+			}
+		}
+	}
+
+	private final Runnable flusher = new Runnable() {
+		public void run() {
+			flushScheduled.set(false);
+			flush();
+		}
+	};
+
+	private final Runnable retry = new Runnable() {
+		public void run() {
+			retryScheduled = false;
+			flush();
+		}
+	};
+
+	private final SelectorLoopGroup.Handler handler = new SelectorLoopGroup.Handler() {
+		public void ready(SelectionKey selected) {
+			onReady(selected);
+		}
+	};
+
+	private boolean hasWork() {
+		return !batch.isEmpty() || !resend.isEmpty() || outbound.size() > 0;
+	}
+
+	/**
+	 * Writes everything queued, resends first, connecting when needed.
+	 */
+	private void flush() {
+		try {
+			flushQueued();
+		} finally {
+			recovering = retryScheduled || !resend.isEmpty() || (channel != null && !ready);
+		}
+	}
+
+	private void flushQueued() {
+		if (closed) {
+			abandonQueued();
+			return;
+		}
+		if (retryScheduled) {
+			return;
+		}
+		if (channel == null) {
+			if (hasWork() || !prewarmed.isEmpty()) {
+				connect();
+			}
+			return;
+		}
+		if (!ready || netOut.hasRemaining()) {
+			// the handshake or the pending write calls back
+			return;
+		}
+		try {
+			while (fill()) {
+				wrap(plainOut);
+				channel.write(netOut);
+				if (netOut.hasRemaining()) {
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+				written();
+			}
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * Moves queued frames into plainOut.
+	 *
+	 * @return false if nothing is queued
+	 */
+	private boolean fill() {
+		plainOut.clear();
+		ApnsNotification m;
+		while (plainOut.position() < MAX_BATCH_BYTES && (m = resend.poll()) != null) {
+			append(m, true);
+		}
+		while (plainOut.position() < MAX_BATCH_BYTES && (m = outbound.poll()) != null) {
+			append(m, false);
+		}
+		plainOut.flip();
+		return !batch.isEmpty();
+	}
+
+	private void append(ApnsNotification m, boolean fromBuffer) {
+		delegate.startSending(m, fromBuffer);
+		ensureRemaining(m.length());
+		m.writeTo(plainOut);
+		batch.add(new BatchEntry(m, fromBuffer));
+	}
+
+	private void ensureRemaining(int length) {
+		if (plainOut.remaining() < length) {
+			plainOut = enlarge(plainOut, length);
+		}
+	}
+
+	/**
+	 * @return a copy of the filled {@code buffer} with {@code extra} more room
+	 */
+	private static ByteBuffer enlarge(ByteBuffer buffer, int extra) {
+		final ByteBuffer larger = buffer.isDirect() ? ByteBuffer.allocateDirect(buffer.capacity() + extra)
+				: ByteBuffer.allocate(buffer.capacity() + extra);
+		buffer.flip();
+		larger.put(buffer);
+		return larger;
+	}
+
+	/**
+	 * Encrypts all of {@code source} behind the pending bytes of netOut.
+	 */
+	private void wrap(ByteBuffer source) throws SSLException {
+		netOut.compact();
+		try {
+			do {
+				final SSLEngineResult result = engine.wrap(source, netOut);
+				if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+					netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+				} else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+					throw new SSLException("TLS session closed");
+				}
+			} while (source.hasRemaining());
+		} finally {
+			netOut.flip();
+		}
+	}
+
+	/**
+	 * Decrypts what netIn holds into plainIn.
+	 *
+	 * @return false if more bytes have to be read first, or the gateway
+	 * closed the session
+	 */
+	private boolean unwrap() throws IOException {
+		netIn.flip();
+		final SSLEngineResult result;
+		try {
+			result = engine.unwrap(netIn, plainIn);
+		} finally {
+			netIn.compact();
+		}
+		switch (result.getStatus()) {
+		case BUFFER_UNDERFLOW:
+			if (netIn.remaining() == 0) {
+				netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+				return true;
+			}
+			return false;
+		case BUFFER_OVERFLOW:
+			plainIn = enlarge(plainIn, engine.getSession().getApplicationBufferSize());
+			return true;
+		case CLOSED:
+			// what was decrypted before is still handled
+			return false;
+		default:
+			return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+		}
+	}
+
+	/**
+	 * The whole batch reached the socket, cache it for resending.
+	 */
+	private void written() {
+		for (BatchEntry entry : batch) {
+			logger.debug("fromBuffer: {}, Message sent {}", entry.fromBuffer, entry.notification);
+			cache.add(entry.notification, offHeapResendCache && deliveryTracker.isTracked(entry.notification));
+			delegate.messageSent(entry.notification, entry.fromBuffer);
+			deliveryTracker.written(entry.notification);
+		}
+		resizeCache();
+		journal();
+		batch.clear();
+		attempts = 0;
+	}
+
+	private void connect() {
+		final MonitorConnection taken = connectionHolder.takeAddress();
+		if (taken == null) {
+			// every local address is in use, wait for one to be returned
+			retryAfter(1);
+			return;
+		}
+		address = taken;
+		connectStartedAt = System.currentTimeMillis();
+		try {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+			if (taken.getAddress() != null) {
+				channel.bind(new InetSocketAddress(taken.getAddress(), taken.getLocalPort()));
+			}
+			engine = sslContext.createSSLEngine(host, port);
+			engine.setUseClientMode(true);
+			final int packetSize = engine.getSession().getPacketBufferSize();
+			if (netOut.capacity() < packetSize) {
+				netOut = (ByteBuffer) ByteBuffer.allocateDirect(packetSize).flip();
+			}
+			if (netIn == null || netIn.capacity() < packetSize) {
+				netIn = ByteBuffer.allocateDirect(packetSize);
+			}
+			if (plainIn == null) {
+				plainIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+			}
+			netIn.clear();
+			plainIn.clear();
+			key = loop.register(channel, SelectionKey.OP_CONNECT, handler);
+			if (readTimeout > 0) {
+				scheduleConnectTimeout(channel);
+			}
+			if (channel.connect(new InetSocketAddress(host, port))) {
+				connected();
+			}
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	private void scheduleConnectTimeout(final SocketChannel connecting) {
+		final Runnable check = new Runnable() {
+			public void run() {
+				if (channel == connecting && !ready) {
+					failed(new SocketTimeoutException("No TLS session after " + readTimeout + "ms"));
+				}
+			}
+		};
+		scheduler.schedule(new Runnable() {
+			public void run() {
+				try {
+					loop.execute(check);
+				} catch (RejectedExecutionException e) {
+					logger.debug("Selector loop closed", e);
+				}
+			}
+		}, readTimeout, TimeUnit.MILLISECONDS);
+	}
+
+	private void connected() throws IOException {
+		channel.finishConnect();
+		key.interestOps(SelectionKey.OP_READ);
+		if (address.getAddress() == null) {
+			final InetSocketAddress local = (InetSocketAddress) channel.getLocalAddress();
+			address.setLocalHost(local.getAddress().getHostAddress());
+			address.setLocalPort(local.getPort());
+		}
+		delegate.connectionCreate(address.getLocalHost(), address.getLocalPort());
+		logger.debug("Made a new connection to APNS {}", address);
+		engine.beginHandshake();
+		handshake();
+	}
+
+	private void handshake() throws IOException {
+		while (true) {
+			final HandshakeStatus status = engine.getHandshakeStatus();
+			if (status == HandshakeStatus.NEED_TASK) {
+				Runnable task;
+				while ((task = engine.getDelegatedTask()) != null) {
+					task.run();
+				}
+			} else if (status == HandshakeStatus.NEED_WRAP) {
+				wrap(EMPTY);
+				channel.write(netOut);
+				if (netOut.hasRemaining()) {
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+			} else if (status == HandshakeStatus.NOT_HANDSHAKING || status == HandshakeStatus.FINISHED) {
+				if (!ready) {
+					ready = true;
+					sessions.handshakeCompleted(engine.getSession(), connectStartedAt);
+					prewarmed(null);
+					flush();
+				}
+				return;
+			} else if (!unwrap()) {
+				if (engine.isInboundDone()) {
+					throw new EOFException("TLS session closed by the gateway");
+				}
+				// wait for the gateway
+				return;
+			}
+		}
+	}
+
+	private void onReady(SelectionKey selected) {
+		if (selected != key) {
+			return;
+		}
+		final SocketChannel current = channel;
+		try {
+			if (selected.isConnectable()) {
+				connected();
+			}
+			if (channel == current && selected.isValid() && selected.isReadable()) {
+				read();
+			}
+			if (channel == current && selected.isValid() && selected.isWritable()) {
+				writable();
+			}
+		} catch (IOException e) {
+			if (channel == current) {
+				failed(e);
+			}
+		}
+	}
+
+	private void read() throws IOException {
+		final SocketChannel current = channel;
+		if (channel.read(netIn) < 0) {
+			throw new EOFException("Connection closed by the gateway");
+		}
+		if (!ready) {
+			handshake();
+			if (channel != current || !ready) {
+				return;
+			}
+		}
+		while (unwrap()) {
+			// decrypt everything read
+		}
+		errorResponse();
+		if (channel != current) {
+			return;
+		}
+		if (engine.isInboundDone()) {
+			throw new EOFException("TLS session closed by the gateway");
+		}
+		if (engine.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING) {
+			// post-handshake messages, like new session tickets
+			handshake();
+		}
+	}
+
+	private void writable() throws IOException {
+		channel.write(netOut);
+		if (netOut.hasRemaining()) {
+			return;
+		}
+		key.interestOps(SelectionKey.OP_READ);
+		if (!ready) {
+			handshake();
+			return;
+		}
+		if (!batch.isEmpty()) {
+			written();
+		}
+		flush();
+	}
+
+	/**
+	 * Handles the error-response packet Apple sends before closing the
+	 * socket: the rejected notification fails, the ones written after it
+	 * are resent on a new socket.
+	 */
+	private void errorResponse() throws IOException {
+		plainIn.flip();
+		if (plainIn.remaining() < ERROR_RESPONSE_SIZE) {
+			plainIn.compact();
+			return;
+		}
+		final int command = plainIn.get() & 0xFF;
+		final int statusCode = plainIn.get() & 0xFF;
+		final int id = plainIn.getInt();
+		plainIn.clear();
+		if (command != 8) {
+			throw new IOException("Unexpected command byte " + command);
+		}
+		final DeliveryError e = DeliveryError.ofCode(statusCode);
+		logger.debug("Closed connection cause={}; id={}", e, id);
+		delegate.connectionClosed(e, id);
+
+		// never write again to the socket Apple is closing
+		closeChannel();
+
+		final AdaptiveCacheLength sizer = adaptiveCacheLength;
+		if (sizer != null) {
+			final long latency = cache.ageOf(id);
+			if (latency >= 0) {
+				sizer.errorResponse(latency);
+			} else {
+				sizer.unknownIdentifier();
+			}
+		}
+		final List<ApnsNotification> toResend = new ArrayList<ApnsNotification>();
+		final ApnsNotification rejected = cache.removeAfter(id, toResend);
+
+		if (rejected != null) {
+			logger.debug("Bad message found {}", id);
+			final ApnsDeliveryErrorException failure = new ApnsDeliveryErrorException(e);
+			delegate.messageSendFailed(rejected, failure);
+			deliveryTracker.failed(rejected, failure);
+		} else {
+			logger.warn("Received error for message that wasn't in the cache...");
+			if (autoAdjustCacheLength && sizer == null) {
+				setCacheLength(cacheLength + (toResend.size() / 2));
+				delegate.cacheLengthExceeded(cacheLength);
+			}
+			delegate.messageSendFailed(null, new ApnsDeliveryErrorException(e));
+		}
+
+		// ahead of the batch that was still being written
+		for (int i = toResend.size() - 1; i >= 0; i--) {
+			resend.addFirst(toResend.get(i));
+		}
+		delegate.notificationsResent(toResend.size());
+		flush();
+	}
+
+	/**
+	 * The socket failed: reconnect right away the first time, then after a
+	 * delay, and fail the next batch once all retries are used.
+	 */
+	private void failed(IOException e) {
+		closeChannel();
+		cache.clear();
+		prewarmed(e);
+		if (!hasWork()) {
+			logger.info("Gateway connection closed", e);
+			recovering = false;
+			return;
+		}
+		attempts++;
+		if (attempts >= RETRIES || closed) {
+			fill();
+			logger.error("Couldn't send " + batch.size() + " message(s) after " + attempts + " retries.", e);
+			final NetworkIOException failure = new NetworkIOException(e);
+			for (BatchEntry entry : batch) {
+				delegate.messageSendFailed(entry.notification, failure);
+				deliveryTracker.failed(entry.notification, failure);
+			}
+			batch.clear();
+			attempts = 0;
+			flush();
+		} else if (attempts == 1) {
+			// might be a socket Apple closed after a bad token, don't delay
+			flush();
+		} else {
+			logger.info("Failed to send message(s)... trying again after delay", e);
+			retryAfter(DELAY_IN_MS);
+		}
+	}
+
+	private void retryAfter(long delayMillis) {
+		retryScheduled = true;
+		try {
+			scheduler.schedule(new Runnable() {
+				public void run() {
+					try {
+						loop.execute(retry);
+					} catch (RejectedExecutionException e) {
+						logger.debug("Selector loop closed", e);
+					}
+				}
+			}, delayMillis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			retryScheduled = false;
+			abandonQueued();
+		}
+	}
+
+	/**
+	 * Closes the socket and returns its local address.  Frames not fully
+	 * written are queued for resending.
+	 */
+	private void closeChannel() {
+		if (channel == null) {
+			return;
+		}
+		if (key != null) {
+			key.cancel();
+		}
+		Utilities.close(channel);
+		channel = null;
+		key = null;
+		engine = null;
+		ready = false;
+		netOut.clear();
+		netOut.flip();
+		for (int i = batch.size() - 1; i >= 0; i--) {
+			resend.addFirst(batch.get(i).notification);
+		}
+		batch.clear();
+		if (address != null) {
+			try {
+				connectionHolder.returnAddress(address);
+			} catch (IOException e) {
+				logger.debug("error while returning address", e);
+			}
+			address = null;
+		}
+	}
+
+	private void abandonQueued() {
+		closeChannel();
+		final NetworkIOException closedException = new NetworkIOException("Connection closed");
+		ApnsNotification notification;
+		while ((notification = resend.poll()) != null) {
+			deliveryTracker.failed(notification, closedException);
+		}
+		while ((notification = outbound.poll()) != null) {
+			deliveryTracker.failed(notification, closedException);
+		}
+		cache.clear();
+		prewarmed(closedException);
+	}
+
+	/**
+	 * Completes the pending pre-warm requests, exceptionally unless
+	 * {@code failure} is null.
+	 */
+	private void prewarmed(Exception failure) {
+		for (CompletableFuture<Void> connected : prewarmed) {
+			if (failure == null) {
+				connected.complete(null);
+			} else {
+				connected.completeExceptionally(failure);
+			}
+		}
+		prewarmed.clear();
+	}
+
+	/**
+	 * Bounds the queue of notifications waiting for the loop, see
+	 * {@link ApnsConnectionImpl#setOutboundQueue(int, long, OverflowPolicy, long, int, int)}.
+	 */
+	public void setOutboundQueue(int capacity, long byteCapacity, OverflowPolicy policy, long blockTimeoutMillis, //
+			int highWatermark, int lowWatermark) {
+		this.outbound = new OutboundQueue(capacity, byteCapacity, policy, blockTimeoutMillis, //
+				highWatermark, lowWatermark, queueListener);
+	}
+
+	public ApnsNioConnection copy() {
+		final ApnsNioConnection copy = new ApnsNioConnection(host, port, sslContext, sessions, connectionHolder, delegate, //
+				cacheLength, autoAdjustCacheLength, readTimeout, errorResponseWindow, loops, scheduler, false);
+		copy.outbound = outbound.copy(copy.queueListener);
+		copy.setResendCacheBudget(resendCacheBudget);
+		copy.setOffHeapResendCache(offHeapResendCache);
+		if (adaptiveCacheLength != null) {
+			copy.adaptiveCacheLength = adaptiveCacheLength.copy();
+		}
+		copy.journal = journal;
+		return copy;
+	}
+
+	public void testConnection() throws NetworkIOException {
+		ApnsNioConnection testConnection = null;
+		try {
+			testConnection = new ApnsNioConnection(host, port, sslContext, sessions, connectionHolder, delegate, //
+					ApnsConnection.DEFAULT_CACHE_LENGTH, true, readTimeout, errorResponseWindow, loops, scheduler, false);
+			testConnection.sendMessage(new EnhancedApnsNotification(0, 0, new byte[] { 0 }, new byte[] { 0 }));
+		} finally {
+			if (testConnection != null) {
+				testConnection.close();
+			}
+		}
+	}
+
+	/**
+	 * Has the loop connect, unless a socket is already up, and waits for the
+	 * handshake.
+	 */
+	public PrewarmReport prewarm(long timeoutMillis) {
+		final long start = System.nanoTime();
+		final CompletableFuture<Void> connected = new CompletableFuture<Void>();
+		try {
+			loop.execute(new Runnable() {
+				public void run() {
+					if (ready) {
+						connected.complete(null);
+					} else {
+						prewarmed.add(connected);
+						flush();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			connected.completeExceptionally(e);
+		}
+		return Utilities.awaitPrewarm(connected, start, timeoutMillis);
+	}
+
+	/**
+	 * Waits for the notifications taken so far to settle, the loop keeps
+	 * writing and resending them meanwhile.
+	 */
+	public DrainReport stop(long timeoutMillis) {
+		final long start = System.nanoTime();
+		final int confirmed = deliveryTracker.confirmed();
+		final int failed = deliveryTracker.failures();
+		draining = true;
+		signal();
+		try {
+			deliveryTracker.awaitSettled(start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		final List<ApnsNotification> abandoned = deliveryTracker.failAll( //
+				new NetworkIOException("Connection stopped before the notification was confirmed"));
+		final DrainReport report = new DrainReport(deliveryTracker.confirmed() - confirmed, //
+				deliveryTracker.failures() - failed, abandoned, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		close();
+		return report;
+	}
+
+	public void close() {
+		closed = true;
+		deliveryTracker.failAll(new NetworkIOException("Connection closed before the notification was confirmed"));
+		// the loop releases the socket, even when closed right below
+		signal();
+		if (ownsLoops) {
+			loops.close();
+			scheduler.close();
+			final FrameJournal owned = journal;
+			if (owned != null) {
+				owned.close();
+			}
+		}
+	}
+
+	public void setCacheLength(int cacheLength) {
+		this.cacheLength = cacheLength;
+		cache.setCapacity(cacheLength);
+	}
+
+	public int getQueueDepth() {
+		return outbound.size();
+	}
+
+	public boolean isReady() {
+		return !closed && !recovering;
+	}
+
+	/**
+	 * Sizes the resend cache by {@code budget} instead of by cache length.
+	 * Copies share the budget.
+	 */
+	public void setResendCacheBudget(ResendCacheBudget budget) {
+		this.resendCacheBudget = budget;
+		cache.setBudget(budget);
+	}
+
+	/**
+	 * Keeps only the frames of the cached notifications, in an off-heap
+	 * arena of this connection.  Notifications pushed asynchronously stay on
+	 * the heap, their future holds them anyway.  Copies get their own arena.
+	 */
+	public void setOffHeapResendCache(boolean offHeap) {
+		this.offHeapResendCache = offHeap;
+		cache.setArena(offHeap ? new FrameArena() : null);
+	}
+
+	/**
+	 * Sizes the resend cache from the measured send rate and error-response
+	 * latency, between {@code min} and {@code max} notifications, instead of
+	 * auto-adjusting it once an error-response was for a notification no
+	 * longer cached.  Copies size their cache on their own.
+	 *
+	 * Must be called before the first notification is sent.
+	 */
+	public void setAdaptiveCacheLength(int min, int max) {
+		final AdaptiveCacheLength sizer = new AdaptiveCacheLength(min, max, errorResponseWindow, cacheLength);
+		setCacheLength(sizer.getLength());
+		this.adaptiveCacheLength = sizer;
+	}
+
+	/**
+	 * Records the frames written to the socket in {@code journal}, see
+	 * {@link ApnsConnectionImpl#setJournal(FrameJournal)}.
+	 */
+	public void setJournal(FrameJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Journals the batch just written, settled after the error-response window.
+	 */
+	private void journal() {
+		final FrameJournal current = journal;
+		if (current == null) {
+			return;
+		}
+		for (BatchEntry entry : batch) {
+			journaled.add(entry.notification);
+		}
+		final long first = current.append(journaled);
+		journaled.clear();
+		if (first >= 0) {
+			scheduler.schedule(new Runnable() {
+				public void run() {
+					current.settled(first);
+				}
+			}, errorResponseWindow, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Counts the batch just written, and resizes the cache if the send rate
+	 * or the error-response latency changed enough.
+	 */
+	private void resizeCache() {
+		final AdaptiveCacheLength sizer = adaptiveCacheLength;
+		if (sizer == null) {
+			return;
+		}
+		final int resized = sizer.written(batch.size(), System.nanoTime());
+		if (resized >= 0) {
+			logger.debug("Resend cache resized to {} for a latency of {} ms", resized, sizer.getLatencyMillis());
+			setCacheLength(resized);
+			delegate.cacheLengthExceeded(resized);
+		}
+	}
+
+	public int getCacheLength() {
+		return cacheLength;
+	}
+}
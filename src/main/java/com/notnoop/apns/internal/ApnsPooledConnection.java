@@ -1,12 +1,41 @@
 package com.notnoop.apns.internal;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
 import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsPushFuture;
+import com.notnoop.apns.DrainReport;
+import com.notnoop.apns.PrewarmReport;
 import com.notnoop.exceptions.NetworkIOException;
+import com.notnoop.exceptions.QueueFullException;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Spreads notifications over {@code max} copies of a connection, or over
+ * as many as a {@link PoolScaler} asks for.
+ *
+ * Every notification goes to the less loaded of two copies picked at
+ * random, by the depth of their queues, skipping a copy that handshakes or
+ * recovers from an error-response while another is ready.  The pool
+ * threads only carry the sends, any of them may send to any copy.
+ *
+ * With device affinity, a consistent-hash ring maps every device token to
+ * a copy instead, whatever its load, so that the notifications of a device
+ * are written, and resent, in the order they were given.  Only a copy
+ * coming or going moves tokens to other copies.
+ *
+ * An elastic pool re-evaluates its size on the way, at most every 100 ms.
+ * A copy it lets go gets no more notifications, and is closed once its
+ * queue drained and a cool-down period passed, so that the outcome of
+ * what it wrote is still reported.
+ */
 public class ApnsPooledConnection implements ApnsConnection {
 	private static final Logger logger = LoggerFactory.getLogger(ApnsPooledConnection.class);
 
@@ -15,40 +44,279 @@ public class ApnsPooledConnection implements ApnsConnection {
 	private final int max;
 
 	private final ExecutorService executors;
+
+	/** What {@link #copy()} builds the executor of a copy from */
+	private final int queueCapacity;
+	private final long blockTimeoutMillis;
+	private final ThreadFactory threadFactory;
 	
 	private final ConcurrentLinkedQueue<ApnsConnection> prototypes;
 
+	/** The copies notifications are dispatched to, created on first use */
+	private volatile ApnsConnection[] copies;
+
+	/** Null for a pool of {@code max} copies */
+	private final PoolScaler scaler;
+
+	private volatile boolean deviceAffinity = false;
+	private volatile TokenRing ring;
+
+	/** Copies let go by the scaler, with when they were */
+	private final Map<ApnsConnection, Long> retired = new LinkedHashMap<ApnsConnection, Long>();
+
 	public ApnsPooledConnection(ApnsConnection prototype, int max) {
-		this(prototype, max, Executors.newFixedThreadPool(max));
+		this(prototype, max, ApnsConnection.DEFAULT_QUEUE_CAPACITY, Long.MAX_VALUE, Executors.defaultThreadFactory());
+	}
+
+	/**
+	 * A pool on an executor of its own, see
+	 * {@link #newBoundedExecutor(int, int, long, ThreadFactory)}; its copies
+	 * get one alike.
+	 */
+	public ApnsPooledConnection(ApnsConnection prototype, int max, int queueCapacity, long blockTimeoutMillis, //
+			ThreadFactory threadFactory) {
+		this(prototype, max, null, null, queueCapacity, blockTimeoutMillis, threadFactory);
 	}
 
 	public ApnsPooledConnection(ApnsConnection prototype, int max, ExecutorService executors) {
+		this(prototype, max, executors, null, ApnsConnection.DEFAULT_QUEUE_CAPACITY, Long.MAX_VALUE, Executors.defaultThreadFactory());
+	}
+
+	/**
+	 * An elastic pool, between the bounds of {@code scaler}.
+	 */
+	public ApnsPooledConnection(ApnsConnection prototype, PoolScaler scaler, ExecutorService executors) {
+		this(prototype, scaler.getMax(), executors, scaler, ApnsConnection.DEFAULT_QUEUE_CAPACITY, Long.MAX_VALUE, //
+				Executors.defaultThreadFactory());
+	}
+
+	/**
+	 * An elastic pool on an executor of its own, see
+	 * {@link #ApnsPooledConnection(ApnsConnection, int, int, long, ThreadFactory)}.
+	 */
+	public ApnsPooledConnection(ApnsConnection prototype, PoolScaler scaler, int queueCapacity, long blockTimeoutMillis, //
+			ThreadFactory threadFactory) {
+		this(prototype, scaler.getMax(), null, scaler, queueCapacity, blockTimeoutMillis, threadFactory);
+	}
+
+	/**
+	 * @param executors  null to build one from the other settings
+	 */
+	private ApnsPooledConnection(ApnsConnection prototype, int max, ExecutorService executors, PoolScaler scaler, //
+			int queueCapacity, long blockTimeoutMillis, ThreadFactory threadFactory) {
 		this.prototype = prototype;
 		this.max = max;
+		this.scaler = scaler;
+		this.queueCapacity = queueCapacity;
+		this.blockTimeoutMillis = blockTimeoutMillis;
+		this.threadFactory = threadFactory;
 
-		this.executors = executors;
+		this.executors = executors != null ? executors : newBoundedExecutor(max, queueCapacity, blockTimeoutMillis, threadFactory);
 		this.prototypes = new ConcurrentLinkedQueue<ApnsConnection>();
 	}
 
-	private final ThreadLocal<ApnsConnection> uniquePrototype = new ThreadLocal<ApnsConnection>() {
-		protected ApnsConnection initialValue() {
-			ApnsConnection newCopy = prototype.copy();
-			prototypes.add(newCopy);
-			return newCopy;
+	/**
+	 * A fixed pool of {@code threads} threads whose work queue holds at most
+	 * {@code queueCapacity} tasks.  A submitter finding the queue full waits up
+	 * to {@code blockTimeoutMillis} for room, and is then rejected.
+	 */
+	public static ExecutorService newBoundedExecutor(int threads, int queueCapacity, final long blockTimeoutMillis) {
+		return newBoundedExecutor(threads, queueCapacity, blockTimeoutMillis, Executors.defaultThreadFactory());
+	}
+
+	/**
+	 * Like {@link #newBoundedExecutor(int, int, long)}, with the threads
+	 * created by {@code threadFactory}.
+	 *
+	 * Virtual threads are not pooled: every task gets one of its own, and
+	 * the executor only holds at most {@code threads + queueCapacity} tasks
+	 * until done, see {@link BoundedExecutor}.
+	 */
+	public static ExecutorService newBoundedExecutor(int threads, int queueCapacity, final long blockTimeoutMillis, //
+			ThreadFactory threadFactory) {
+		if (VirtualThreads.isVirtual(threadFactory)) {
+			return new BoundedExecutor(VirtualThreads.perTaskExecutor(threadFactory), threads + queueCapacity, blockTimeoutMillis);
 		}
-	};
+		return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, //
+				new ArrayBlockingQueue<Runnable>(queueCapacity), threadFactory, new RejectedExecutionHandler() {
+					public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+						if (executor.isShutdown()) {
+							throw new RejectedExecutionException("Connection pool closed");
+						}
+						try {
+							if (!executor.getQueue().offer(r, blockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+								throw new RejectedExecutionException("Connection pool queue full");
+							}
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new RejectedExecutionException("Interrupted while waiting for the connection pool", e);
+						}
+					}
+				});
+	}
 
-	public void sendMessage(final ApnsNotification m) throws NetworkIOException{
-		Future<Void> future = executors.submit(new Callable<Void>() {
-			public Void call() throws Exception {
-				uniquePrototype.get().sendMessage(m);
-				return null;
+	ApnsConnection[] copies() {
+		ApnsConnection[] current = copies;
+		if (current == null) {
+			synchronized (this) {
+				current = copies;
+				if (current == null) {
+					current = new ApnsConnection[scaler == null ? max : scaler.getMin()];
+					for (int i = 0; i < current.length; i++) {
+						current[i] = prototype.copy();
+						prototypes.add(current[i]);
+					}
+					copies = current;
+				}
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Picks the copy to send the next notification to: the better of two
+	 * sampled at random, or the least loaded ready one if neither is ready.
+	 */
+	ApnsConnection dispatch() {
+		if (scaler != null) {
+			scale(System.nanoTime());
+		}
+		final ApnsConnection[] current = copies();
+		if (current.length == 1) {
+			return current[0];
+		}
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		final int first = random.nextInt(current.length);
+		int second = random.nextInt(current.length - 1);
+		if (second >= first) {
+			second++;
+		}
+		final ApnsConnection a = current[first];
+		final ApnsConnection b = current[second];
+		final boolean aReady = a.isReady();
+		final boolean bReady = b.isReady();
+		if (aReady != bReady) {
+			return aReady ? a : b;
+		}
+		if (!aReady) {
+			final ApnsConnection ready = leastLoadedReady(current);
+			if (ready != null) {
+				return ready;
+			}
+		}
+		return a.getQueueDepth() <= b.getQueueDepth() ? a : b;
+	}
+
+	/**
+	 * Picks the copy of the device of {@code m} with device affinity, or
+	 * else by load.
+	 */
+	ApnsConnection route(ApnsNotification m) {
+		if (!deviceAffinity) {
+			return dispatch();
+		}
+		if (scaler != null) {
+			scale(System.nanoTime());
+		}
+		final ApnsConnection[] current = copies();
+		TokenRing tokens = ring;
+		if (tokens == null || !tokens.isFor(current)) {
+			tokens = new TokenRing(current);
+			ring = tokens;
+		}
+		return tokens.get(m);
+	}
+
+	/**
+	 * Sends every notification of a device through the same copy, picked by
+	 * consistent hashing of the device token, instead of the least loaded one.
+	 */
+	public void setDeviceAffinity(boolean deviceAffinity) {
+		this.deviceAffinity = deviceAffinity;
+	}
+
+	/**
+	 * Adds or lets go of a copy if the scaler asks for it.
+	 */
+	private void scale(long now) {
+		if (!scaler.isDue(now)) {
+			return;
+		}
+		synchronized (this) {
+			closeRetired(now);
+			final ApnsConnection[] current = copies();
+			boolean allReady = true;
+			for (ApnsConnection copy : current) {
+				allReady &= copy.isReady();
+			}
+			final int size = scaler.evaluate(current.length, getQueueDepth(), allReady, now);
+			if (size > current.length) {
+				final ApnsConnection[] grown = Arrays.copyOf(current, current.length + 1);
+				grown[current.length] = prototype.copy();
+				prototypes.add(grown[current.length]);
+				copies = grown;
+				logger.info("Connection pool grown to {} connections", grown.length);
+			} else if (size < current.length) {
+				final ApnsConnection[] shrunk = Arrays.copyOf(current, current.length - 1);
+				copies = shrunk;
+				retired.put(current[current.length - 1], now);
+				logger.info("Connection pool shrunk to {} connections", shrunk.length);
+			}
+		}
+	}
+
+	/**
+	 * Closes the copies let go that drained, a cool-down period after.
+	 */
+	private void closeRetired(long now) {
+		final long grace = TimeUnit.MILLISECONDS.toNanos(scaler.getCoolDownMillis());
+		for (Iterator<Map.Entry<ApnsConnection, Long>> it = retired.entrySet().iterator(); it.hasNext();) {
+			final Map.Entry<ApnsConnection, Long> entry = it.next();
+			if (now - entry.getValue() >= grace && entry.getKey().getQueueDepth() == 0) {
+				it.remove();
+				prototypes.remove(entry.getKey());
+				Utilities.close(entry.getKey());
+			}
+		}
+	}
+
+	private static ApnsConnection leastLoadedReady(ApnsConnection[] candidates) {
+		ApnsConnection best = null;
+		int bestDepth = Integer.MAX_VALUE;
+		for (ApnsConnection candidate : candidates) {
+			if (!candidate.isReady()) {
+				continue;
 			}
-		});
+			final int depth = candidate.getQueueDepth();
+			if (depth < bestDepth) {
+				best = candidate;
+				bestDepth = depth;
+			}
+		}
+		return best;
+	}
+
+	public void sendMessage(final ApnsNotification m) throws NetworkIOException{
+		Future<Void> future;
+		final long enqueued = System.nanoTime();
+		try {
+			future = executors.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					route(m).sendMessage(m);
+					if (scaler != null) {
+						scaler.written(System.nanoTime() - enqueued);
+					}
+					return null;
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			throw rejected();
+		}
 		try {
 			future.get();
 		} catch (InterruptedException ie) {
 			Thread.currentThread().interrupt();
+			throw new NetworkIOException("Interrupted while waiting for the notification to be written");
 		} catch (ExecutionException ee) {
 			if (ee.getCause() instanceof NetworkIOException) {
 				throw (NetworkIOException) ee.getCause();
@@ -56,8 +324,50 @@ public class ApnsPooledConnection implements ApnsConnection {
 		}
 	}
 
+	public void sendMessageAsync(final ApnsNotification m, final ApnsPushFuture future) {
+		if (scaler != null) {
+			final long enqueued = System.nanoTime();
+			future.thenRun(new Runnable() {
+				public void run() {
+					scaler.written(System.nanoTime() - enqueued);
+				}
+			});
+		}
+		if (deviceAffinity && !executors.isShutdown()) {
+			// on the caller thread, so that the notifications of a device keep their order
+			route(m).sendMessageAsync(m, future);
+			return;
+		}
+		try {
+			executors.execute(new Runnable() {
+				public void run() {
+					dispatch().sendMessageAsync(m, future);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			final NetworkIOException failure = rejected();
+			future.completeExceptionally(failure);
+			future.delivered().completeExceptionally(failure);
+		}
+	}
+
+	private NetworkIOException rejected() {
+		if (executors.isShutdown()) {
+			return new NetworkIOException("Connection pool closed");
+		}
+		return new QueueFullException("Connection pool queue full");
+	}
+
+	/**
+	 * Returns a pool alike on an executor of its own, built with the
+	 * settings of this one; a pool given its executor passes on the
+	 * defaults.
+	 */
 	public ApnsConnection copy() {
-		return new ApnsPooledConnection(prototype, max);
+		final ApnsPooledConnection copy = new ApnsPooledConnection(prototype, max, null, //
+				scaler == null ? null : scaler.copy(), queueCapacity, blockTimeoutMillis, threadFactory);
+		copy.setDeviceAffinity(deviceAffinity);
+		return copy;
 	}
 
 	public void close() {
@@ -73,10 +383,108 @@ public class ApnsPooledConnection implements ApnsConnection {
 		Utilities.close(prototype);
 	}
 
+	/**
+	 * Lets the pool threads hand over the notifications already given,
+	 * then stops every copy, those let go by the scaler included, in
+	 * parallel and within the same deadline.
+	 */
+	public DrainReport stop(long timeoutMillis) {
+		final long start = System.nanoTime();
+		final long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		executors.shutdown();
+		try {
+			if (!executors.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+				logger.warn("Connection pool threads still busy at the stop deadline");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		int confirmed = 0;
+		int failed = 0;
+		final List<ApnsNotification> abandoned = new ArrayList<ApnsNotification>();
+		final List<ApnsConnection> copies = new ArrayList<ApnsConnection>(prototypes);
+		final List<Future<DrainReport>> reports = new ArrayList<Future<DrainReport>>(copies.size());
+		final ExecutorService stoppers = Executors.newFixedThreadPool(Math.max(1, copies.size()));
+		try {
+			for (final ApnsConnection copy : copies) {
+				reports.add(stoppers.submit(new Callable<DrainReport>() {
+					public DrainReport call() {
+						return copy.stop(TimeUnit.NANOSECONDS.toMillis(Math.max(0, deadline - System.nanoTime())));
+					}
+				}));
+			}
+			for (Future<DrainReport> report : reports) {
+				try {
+					final DrainReport result = report.get();
+					confirmed += result.getConfirmed();
+					failed += result.getFailed();
+					abandoned.addAll(result.getAbandoned());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					logger.warn("Couldn't stop a pooled connection", e.getCause());
+				}
+			}
+		} finally {
+			stoppers.shutdown();
+		}
+		// last, its copies may share what it owns
+		final DrainReport own = prototype.stop(0);
+		abandoned.addAll(own.getAbandoned());
+		return new DrainReport(confirmed + own.getConfirmed(), failed + own.getFailed(), abandoned, //
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+	}
+
 	public void testConnection() throws NetworkIOException {
 		prototype.testConnection();
 	}
 
+	/**
+	 * Pre-warms every copy in parallel, each on a thread of the pool's
+	 * thread factory so that all the handshakes run at once whatever the
+	 * number of copies.  The threads end with their handshake.
+	 */
+	public PrewarmReport prewarm(final long timeoutMillis) {
+		final long start = System.nanoTime();
+		final long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		final ApnsConnection[] warmed = copies();
+		final ExecutorService warmers = VirtualThreads.isVirtual(threadFactory) ? VirtualThreads.perTaskExecutor(threadFactory)
+				: Executors.newFixedThreadPool(warmed.length, threadFactory);
+		final List<Future<PrewarmReport>> reports = new ArrayList<Future<PrewarmReport>>(warmed.length);
+		try {
+			for (final ApnsConnection copy : warmed) {
+				reports.add(warmers.submit(new Callable<PrewarmReport>() {
+					public PrewarmReport call() {
+						return copy.prewarm(Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+					}
+				}));
+			}
+		} finally {
+			warmers.shutdown();
+		}
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		int connected = 0;
+		for (Future<PrewarmReport> future : reports) {
+			try {
+				// the copies enforce the timeout, only wait a little longer for them to report
+				final PrewarmReport report = future.get(Math.max(0, deadline - System.nanoTime()) + TimeUnit.SECONDS.toNanos(1),
+						TimeUnit.NANOSECONDS);
+				connected += report.getConnected();
+				failures.addAll(report.getFailures());
+			} catch (TimeoutException e) {
+				failures.add(new TimeoutException("Connection not pre-warmed in " + timeoutMillis + " ms"));
+			} catch (ExecutionException e) {
+				failures.add(e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failures.add(e);
+				break;
+			}
+		}
+		// an elastic pool only has its minimum yet
+		return new PrewarmReport(warmed.length, connected, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), failures);
+	}
+
 	public synchronized void setCacheLength(int cacheLength) {
 		for (ApnsConnection conn : prototypes) {
 			conn.setCacheLength(cacheLength);
@@ -85,6 +493,38 @@ public class ApnsPooledConnection implements ApnsConnection {
 
 	@SuppressFBWarnings(value = "UG_SYNC_SET_UNSYNC_GET", justification = "prototypes is a MT-safe container")
 	public int getCacheLength() {
-		return prototypes.peek().getCacheLength();
+		return copies()[0].getCacheLength();
+	}
+
+	/**
+	 * Returns the queue depth of every copy.
+	 */
+	public int[] getQueueDepths() {
+		final ApnsConnection[] current = copies();
+		final int[] depths = new int[current.length];
+		for (int i = 0; i < current.length; i++) {
+			depths[i] = current[i].getQueueDepth();
+		}
+		return depths;
+	}
+
+	/**
+	 * Returns the notifications waiting in all the copies and for a pool thread.
+	 */
+	public int getQueueDepth() {
+		int depth = executors instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executors).getQueue().size() : 0;
+		for (ApnsConnection copy : copies()) {
+			depth += copy.getQueueDepth();
+		}
+		return depth;
+	}
+
+	public boolean isReady() {
+		for (ApnsConnection copy : copies()) {
+			if (copy.isReady()) {
+				return true;
+			}
+		}
+		return false;
 	}
 }
@@ -30,7 +30,11 @@
  */
 package com.notnoop.apns.internal;
 
+import java.time.Duration;
+
 import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsPushFuture;
+import com.notnoop.apns.DrainReport;
 import com.notnoop.exceptions.NetworkIOException;
 
 public class ApnsServiceImpl extends AbstractApnsService {
@@ -45,6 +49,13 @@ public class ApnsServiceImpl extends AbstractApnsService {
         connection.sendMessage(msg);
     }
 
+    @Override
+    public ApnsPushFuture pushAsync(ApnsNotification msg) {
+        ApnsPushFuture future = new ApnsPushFuture(msg);
+        connection.sendMessageAsync(msg, future);
+        return future;
+    }
+
     public void start() {
     }
 
@@ -52,7 +63,18 @@ public class ApnsServiceImpl extends AbstractApnsService {
         Utilities.close(connection);
     }
 
+    public DrainReport stop(Duration timeout) {
+        return connection.stop(timeout.toMillis());
+    }
+
     public void testConnection() throws NetworkIOException {
         connection.testConnection();
     }
+
+    public int[] getQueueDepths() {
+        if (connection instanceof ApnsPooledConnection) {
+            return ((ApnsPooledConnection) connection).getQueueDepths();
+        }
+        return new int[] { connection.getQueueDepth() };
+    }
 }
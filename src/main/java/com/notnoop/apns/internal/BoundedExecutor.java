@@ -0,0 +1,76 @@
+package com.notnoop.apns.internal;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the tasks of an executor starting a thread per task, the way a
+ * pool of virtual threads is bounded: the threads are not pooled, nothing
+ * caps how many run at once, but at most {@code capacity} tasks are held
+ * until done.  A submitter finding no room waits up to
+ * {@code blockTimeoutMillis} for a task to finish, and is then rejected.
+ */
+class BoundedExecutor extends AbstractExecutorService {
+
+	private final ExecutorService executor;
+	private final Semaphore permits;
+	private final long blockTimeoutMillis;
+
+	BoundedExecutor(ExecutorService executor, int capacity, long blockTimeoutMillis) {
+		this.executor = executor;
+		this.permits = new Semaphore(capacity);
+		this.blockTimeoutMillis = blockTimeoutMillis;
+	}
+
+	public void execute(final Runnable task) {
+		if (executor.isShutdown()) {
+			throw new RejectedExecutionException("Connection pool closed");
+		}
+		try {
+			if (!permits.tryAcquire(blockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+				throw new RejectedExecutionException("Connection pool queue full");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException("Interrupted while waiting for the connection pool", e);
+		}
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						task.run();
+					} finally {
+						permits.release();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	public List<Runnable> shutdownNow() {
+		return executor.shutdownNow();
+	}
+
+	public boolean isShutdown() {
+		return executor.isShutdown();
+	}
+
+	public boolean isTerminated() {
+		return executor.isTerminated();
+	}
+
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return executor.awaitTermination(timeout, unit);
+	}
+}
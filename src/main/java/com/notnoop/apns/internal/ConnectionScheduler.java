@@ -0,0 +1,75 @@
+package com.notnoop.apns.internal;
+
+import java.io.Closeable;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the timers (retry delays, sweeps, etc.) of all the connections of one
+ * service on a small shared set of daemon threads.  Tasks must not block:
+ * connecting and writing happen on the thread of each connection.
+ *
+ * Threads are only started when work is submitted and time out when idle, so
+ * an idle service costs no thread wake ups at all.
+ */
+public class ConnectionScheduler implements Closeable {
+
+	private static final AtomicInteger schedulerId = new AtomicInteger(0);
+
+	private static final long KEEP_ALIVE_SECONDS = 60;
+
+	public static final int DEFAULT_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+	private final ScheduledThreadPoolExecutor executor;
+
+	public ConnectionScheduler() {
+		this(DEFAULT_THREADS);
+	}
+
+	public ConnectionScheduler(int threads) {
+		this(threads, null);
+	}
+
+	/**
+	 * @param threadFactory  creates the threads, daemon platform threads when null
+	 */
+	public ConnectionScheduler(int threads, ThreadFactory threadFactory) {
+		this.executor = new ScheduledThreadPoolExecutor(threads,
+				threadFactory == null ? daemonThreadFactory("ConnectionScheduler-" + schedulerId.getAndIncrement() + "-") : threadFactory);
+		this.executor.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+		this.executor.allowCoreThreadTimeOut(true);
+		this.executor.setRemoveOnCancelPolicy(true);
+	}
+
+	static ThreadFactory daemonThreadFactory(final String prefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger threadId = new AtomicInteger(0);
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread result = new Thread(r, prefix + threadId.getAndIncrement());
+				result.setDaemon(true);
+				return result;
+			}
+		};
+	}
+
+	public void execute(Runnable task) {
+		executor.execute(task);
+	}
+
+	public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+		return executor.schedule(task, delay, unit);
+	}
+
+	public boolean isShutdown() {
+		return executor.isShutdown();
+	}
+
+	public void close() {
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,307 @@
+package com.notnoop.apns.internal;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsPushFuture;
+
+/**
+ * Completes the {@link ApnsPushFuture}s of the asynchronously sent
+ * notifications of one connection.
+ *
+ * A notification pushed again before it settled is tracked once per push,
+ * the oldest push first: it is written, failed and confirmed first.
+ *
+ * Written notifications are kept in write order; a single sweep, only
+ * scheduled while something is waiting, confirms the ones whose
+ * error-response window has passed.
+ *
+ * The confirmed and failed notifications are counted, so that a draining
+ * connection can report what became of its last ones.  It waits on a
+ * {@link Condition}, which unlike a monitor doesn't pin a virtual thread to
+ * its carrier.
+ */
+class DeliveryTracker {
+
+	private static final class Tracked {
+		final ApnsPushFuture future;
+		/** Guarded by {@link DeliveryTracker#lock} */
+		boolean written;
+		volatile long writtenAt;
+
+		Tracked(ApnsPushFuture future) {
+			this.future = future;
+		}
+	}
+
+	private static final class Written {
+		final Tracked tracked;
+		final long writtenAt;
+
+		Written(Tracked tracked, long writtenAt) {
+			this.tracked = tracked;
+			this.writtenAt = writtenAt;
+		}
+	}
+
+	/** The pushes of each notification, oldest first; no empty deque is kept */
+	private final Map<ApnsNotification, Deque<Tracked>> tracked = new IdentityHashMap<ApnsNotification, Deque<Tracked>>();
+	/** The number of pushes in {@link #tracked} */
+	private int outstanding;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition settled = lock.newCondition();
+	private final ConcurrentLinkedQueue<Written> written = new ConcurrentLinkedQueue<Written>();
+	private final AtomicBoolean sweepScheduled = new AtomicBoolean(false);
+	private final AtomicInteger confirmed = new AtomicInteger(0);
+	private final AtomicInteger failures = new AtomicInteger(0);
+
+	private final ConnectionScheduler scheduler;
+	private final long windowNanos;
+
+	private final Runnable sweeper = new Runnable() {
+		public void run() {
+			sweepScheduled.set(false);
+			sweep();
+		}
+	};
+
+	DeliveryTracker(ConnectionScheduler scheduler, long errorResponseWindow) {
+		this.scheduler = scheduler;
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(errorResponseWindow);
+	}
+
+	void track(ApnsPushFuture future) {
+		lock.lock();
+		try {
+			Deque<Tracked> pushes = tracked.get(future.getNotification());
+			if (pushes == null) {
+				pushes = new ArrayDeque<Tracked>(1);
+				tracked.put(future.getNotification(), pushes);
+			}
+			pushes.add(new Tracked(future));
+			outstanding++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Marks written the oldest push of the notification not written yet,
+	 * or returns the oldest one when all were, written again by a resend.
+	 */
+	private Tracked toWrite(ApnsNotification notification) {
+		lock.lock();
+		try {
+			final Deque<Tracked> pushes = tracked.isEmpty() ? null : tracked.get(notification);
+			if (pushes == null) {
+				return null;
+			}
+			for (Tracked t : pushes) {
+				if (!t.written) {
+					t.written = true;
+					return t;
+				}
+			}
+			return pushes.peekFirst();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the oldest push of the notification, counted in
+	 * {@code outcome} before waking up a connection waiting for everything
+	 * to settle.
+	 */
+	private Tracked removeOldest(ApnsNotification notification, AtomicInteger outcome) {
+		lock.lock();
+		try {
+			final Deque<Tracked> pushes = tracked.isEmpty() ? null : tracked.get(notification);
+			if (pushes == null) {
+				return null;
+			}
+			final Tracked t = pushes.pollFirst();
+			removed(notification, pushes, outcome);
+			return t;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean removeExact(Tracked t, AtomicInteger outcome) {
+		lock.lock();
+		try {
+			final ApnsNotification notification = t.future.getNotification();
+			final Deque<Tracked> pushes = tracked.get(notification);
+			if (pushes == null || !pushes.remove(t)) {
+				return false;
+			}
+			removed(notification, pushes, outcome);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Holding {@link #lock} */
+	private void removed(ApnsNotification notification, Deque<Tracked> pushes, AtomicInteger outcome) {
+		if (pushes.isEmpty()) {
+			tracked.remove(notification);
+		}
+		outstanding--;
+		outcome.incrementAndGet();
+		settled();
+	}
+
+	/**
+	 * Whether a future waits for the notification, which is then looked up
+	 * by identity.
+	 */
+	boolean isTracked(ApnsNotification notification) {
+		lock.lock();
+		try {
+			return !tracked.isEmpty() && tracked.containsKey(notification);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The notification was written to the socket, possibly again after a resend.
+	 */
+	void written(ApnsNotification notification) {
+		final Tracked t = toWrite(notification);
+		if (t == null) {
+			return;
+		}
+		final long now = System.nanoTime();
+		t.writtenAt = now;
+		t.future.complete(notification);
+		written.add(new Written(t, now));
+		scheduleSweep(windowNanos);
+	}
+
+	void failed(ApnsNotification notification, Throwable cause) {
+		if (notification == null) {
+			return;
+		}
+		final Tracked t = removeOldest(notification, failures);
+		if (t != null) {
+			t.future.completeExceptionally(cause);
+			t.future.delivered().completeExceptionally(cause);
+		}
+	}
+
+	/**
+	 * Fails everything that is still outstanding, used when the connection is closed.
+	 *
+	 * @return the notifications failed, not counted as failures
+	 */
+	List<ApnsNotification> failAll(Throwable cause) {
+		final List<Tracked> outstanding;
+		lock.lock();
+		try {
+			outstanding = new ArrayList<Tracked>(this.outstanding);
+			for (Deque<Tracked> pushes : tracked.values()) {
+				outstanding.addAll(pushes);
+			}
+			tracked.clear();
+			this.outstanding = 0;
+			settled();
+		} finally {
+			lock.unlock();
+		}
+		written.clear();
+		final List<ApnsNotification> abandoned = new ArrayList<ApnsNotification>(outstanding.size());
+		for (Tracked t : outstanding) {
+			abandoned.add(t.future.getNotification());
+			t.future.completeExceptionally(cause);
+			t.future.delivered().completeExceptionally(cause);
+		}
+		return abandoned;
+	}
+
+	int outstanding() {
+		lock.lock();
+		try {
+			return outstanding;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of notifications confirmed so far.
+	 */
+	int confirmed() {
+		return confirmed.get();
+	}
+
+	/**
+	 * Returns the number of notifications failed so far.
+	 */
+	int failures() {
+		return failures.get();
+	}
+
+	/**
+	 * Waits until nothing is outstanding, or until {@code deadline}, a
+	 * {@link System#nanoTime()}.
+	 *
+	 * @return true if nothing is outstanding
+	 */
+	boolean awaitSettled(long deadline) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			long remaining;
+			while (!tracked.isEmpty() && (remaining = deadline - System.nanoTime()) > 0) {
+				settled.awaitNanos(remaining);
+			}
+			return tracked.isEmpty();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Holding {@link #lock} */
+	private void settled() {
+		if (tracked.isEmpty()) {
+			settled.signalAll();
+		}
+	}
+
+	private void scheduleSweep(long delayNanos) {
+		if (!scheduler.isShutdown() && sweepScheduled.compareAndSet(false, true)) {
+			scheduler.schedule(sweeper, delayNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private void sweep() {
+		final long now = System.nanoTime();
+		Written head;
+		while ((head = written.peek()) != null) {
+			final long age = now - head.writtenAt;
+			if (age < windowNanos) {
+				scheduleSweep(windowNanos - age);
+				return;
+			}
+			written.poll();
+			final Tracked t = head.tracked;
+			// a newer entry exists if the notification was resent meanwhile
+			if (t.writtenAt == head.writtenAt && removeExact(t, confirmed)) {
+				t.future.delivered().complete(t.future.getNotification());
+			}
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package com.notnoop.apns.internal;
+
+import java.io.Closeable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads the error-responses of the gateway sockets of one service, the
+ * connection and all of its copies.
+ *
+ * A few reader threads take turns on all the open sockets: each turn reads
+ * a socket for at most {@link #POLL_MILLIS}, then puts it back at the end
+ * of the line.  Error-responses are rare, so the readers mostly wait out
+ * the timeouts, and the number of threads stays the same however many
+ * sockets the pool opens.  Readers idle for a minute time out.
+ *
+ * Virtual threads are cheap enough to block on a read: with them each
+ * socket is read on a new one instead.
+ *
+ * The non-blocking transport reads its error-responses on its selector
+ * loops instead, see {@link ApnsNioConnection}.
+ */
+public class ErrorResponseReader implements Closeable {
+
+	/**
+	 * The read loop of a socket, run on a thread of its own with
+	 * {@link #run()}, or one turn at a time with {@link #poll()}.
+	 */
+	public interface Monitor extends Runnable {
+
+		/**
+		 * Called once before the first {@link #poll()}, by the thread handing
+		 * over the socket: reads wait at most {@code pollMillis} from then on.
+		 */
+		void startPolling(int pollMillis);
+
+		/**
+		 * Reads what arrived on the socket until the poll timeout.
+		 *
+		 * @return false once the socket is done with
+		 */
+		boolean poll();
+
+		/**
+		 * Gives the socket up unread, the reader was closed.
+		 */
+		void abandon();
+	}
+
+	/**
+	 * How long a turn waits for a socket to have something to read
+	 */
+	public static final int POLL_MILLIS = 10;
+
+	public static final int DEFAULT_READERS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+	private static final AtomicInteger readerId = new AtomicInteger(0);
+
+	private static final long KEEP_ALIVE_SECONDS = 60;
+
+	private final ExecutorService executor;
+
+	/** Only counted for virtual threads, a pool knows its size */
+	private final AtomicInteger virtualReaders = new AtomicInteger(0);
+
+	public ErrorResponseReader() {
+		this(null);
+	}
+
+	/**
+	 * @param threadFactory  creates the reader threads, daemon platform threads when null
+	 */
+	public ErrorResponseReader(ThreadFactory threadFactory) {
+		this(DEFAULT_READERS, threadFactory);
+	}
+
+	/**
+	 * @param readers  the number of reader threads, ignored with virtual threads
+	 * @param threadFactory  creates the reader threads, daemon platform threads when null
+	 */
+	public ErrorResponseReader(int readers, ThreadFactory threadFactory) {
+		if (VirtualThreads.isVirtual(threadFactory)) {
+			this.executor = VirtualThreads.perTaskExecutor(threadFactory);
+			return;
+		}
+		final ThreadPoolExecutor pool = new ThreadPoolExecutor(readers, readers, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				threadFactory == null ? ConnectionScheduler.daemonThreadFactory("ErrorResponseReader-" + readerId.getAndIncrement() + "-") : threadFactory);
+		pool.allowCoreThreadTimeOut(true);
+		this.executor = pool;
+	}
+
+	/**
+	 * Reads the socket of {@code monitor} until it is done with: in turns
+	 * shared with the other sockets, or on a virtual thread of its own.
+	 *
+	 * @throws RejectedExecutionException once closed
+	 */
+	public void read(final Monitor monitor) {
+		if (executor instanceof ThreadPoolExecutor) {
+			if (executor.isShutdown()) {
+				throw new RejectedExecutionException("Error-response reader closed");
+			}
+			monitor.startPolling(POLL_MILLIS);
+			executor.execute(new Runnable() {
+				public void run() {
+					if (!monitor.poll()) {
+						return;
+					}
+					try {
+						executor.execute(this);
+					} catch (RejectedExecutionException e) {
+						monitor.abandon();
+					}
+				}
+			});
+			return;
+		}
+		executor.execute(new Runnable() {
+			public void run() {
+				virtualReaders.incrementAndGet();
+				try {
+					monitor.run();
+				} finally {
+					virtualReaders.decrementAndGet();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns the number of reader threads, busy or idle.
+	 */
+	public int getReaders() {
+		return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getPoolSize() : virtualReaders.get();
+	}
+
+	public boolean isShutdown() {
+		return executor.isShutdown();
+	}
+
+	/**
+	 * Stops taking sockets; the sockets read in turns are given up at their
+	 * next turn, those read on their own thread are read until their
+	 * connections close them.
+	 */
+	public void close() {
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,128 @@
+package com.notnoop.apns.internal;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.notnoop.apns.ApnsNotification;
+
+/**
+ * Off-heap memory holding the frames of the notifications a connection
+ * keeps for resending, so that the resend cache retains no notification
+ * objects.
+ *
+ * Frames are appended to direct slabs of {@code slabSize} bytes and never
+ * span two slabs.  A slab is reused once none of its frames is retained;
+ * as caches evict their oldest frames first, slabs are freed in about the
+ * order they were filled.  A few free slabs are kept, the others are left
+ * to the garbage collector.
+ *
+ * The sockets of a connection share its arena, so every method is
+ * synchronized.
+ */
+public class FrameArena {
+
+	public static final int DEFAULT_SLAB_SIZE = 256 * 1024;
+
+	private static final int SPARE_SLABS = 2;
+
+	private final int slabSize;
+	private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+	private int[] live = new int[4];
+	/** Slabs to reuse, and slots of slabs left to the garbage collector */
+	private final ArrayDeque<Integer> free = new ArrayDeque<Integer>();
+	private final ArrayDeque<Integer> dropped = new ArrayDeque<Integer>();
+	private int current = -1;
+
+	public FrameArena() {
+		this(DEFAULT_SLAB_SIZE);
+	}
+
+	public FrameArena(int slabSize) {
+		if (slabSize <= 0) {
+			throw new IllegalArgumentException("slabSize invalid:" + slabSize);
+		}
+		this.slabSize = slabSize;
+	}
+
+	/**
+	 * Copies the frame of {@code notification} into the arena.
+	 *
+	 * @return where the frame is, to {@link #copy} and {@link #release} it,
+	 *         or -1 if it is larger than a slab
+	 */
+	public synchronized long put(ApnsNotification notification) {
+		final int length = notification.length();
+		if (length > slabSize) {
+			return -1;
+		}
+		if (current < 0 || slabs.get(current).remaining() < length) {
+			nextSlab();
+		}
+		final ByteBuffer slab = slabs.get(current);
+		final int offset = slab.position();
+		notification.writeTo(slab);
+		live[current]++;
+		return ((long) current << 32) | offset;
+	}
+
+	private void nextSlab() {
+		final int filled = current;
+		Integer next = free.poll();
+		if (next == null) {
+			next = dropped.poll();
+			if (next == null) {
+				next = slabs.size();
+				slabs.add(null);
+				if (next == live.length) {
+					live = Arrays.copyOf(live, next << 1);
+				}
+			}
+			slabs.set(next, ByteBuffer.allocateDirect(slabSize));
+		}
+		slabs.get(next).clear();
+		current = next;
+		if (filled >= 0 && live[filled] == 0) {
+			recycle(filled);
+		}
+	}
+
+	/**
+	 * Appends the frame {@code at} to {@code target}.
+	 */
+	public synchronized void copy(long at, int length, ByteBuffer target) {
+		final int offset = (int) at;
+		final ByteBuffer frame = slabs.get((int) (at >>> 32)).duplicate();
+		frame.limit(offset + length);
+		frame.position(offset);
+		target.put(frame);
+	}
+
+	/**
+	 * The frame {@code at} is no longer retained.
+	 */
+	public synchronized void release(long at) {
+		final int slab = (int) (at >>> 32);
+		if (--live[slab] == 0 && slab != current) {
+			recycle(slab);
+		}
+	}
+
+	private void recycle(int slab) {
+		if (free.size() < SPARE_SLABS) {
+			free.add(slab);
+		} else {
+			slabs.set(slab, null);
+			dropped.add(slab);
+		}
+	}
+
+	/**
+	 * Returns the bytes of direct memory the arena holds.
+	 */
+	public synchronized long getAllocatedBytes() {
+		return (long) (slabs.size() - dropped.size()) * slabSize;
+	}
+}
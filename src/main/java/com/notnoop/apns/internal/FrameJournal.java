@@ -0,0 +1,371 @@
+package com.notnoop.apns.internal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.apns.ApnsNotification;
+
+/**
+ * Write-ahead journal of the notifications written to the gateway, so that
+ * those whose fate is unknown when the JVM dies are sent again on restart.
+ *
+ * Every frame that reached a socket is appended to memory-mapped segment
+ * files, and settled once the error-response window passed; the frames not
+ * settled when the journal is opened again are {@link #getRecovered()
+ * recovered}.  A frame is settled once every frame appended before it is,
+ * so a single watermark record settles them all.  Segments whose frames
+ * are all settled are reused for the next frames, the journal only ever
+ * writes sequentially.
+ *
+ * The mapped memory survives the death of the JVM, not of the machine:
+ * the segments are only forced to disk when the journal is closed.
+ *
+ * A record is a type byte, the length and CRC32 of its body, and the body:
+ * the sequence of the frame and the frame, or the sequence of the watermark.
+ * A zero byte follows the last record.  The connections of a service share
+ * its journal, every method is synchronized.
+ */
+public class FrameJournal implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(FrameJournal.class);
+
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	private static final String SUFFIX = ".journal";
+	private static final int MAGIC = 0x4a41504e;
+	private static final int SEGMENT_HEADER = 4 + 8;
+	private static final byte WRITTEN = 1;
+	private static final byte SETTLED = 2;
+	private static final int RECORD_HEADER = 1 + 4 + 4;
+	private static final int SEQUENCE = 8;
+
+	/** A segment holding a frame of a single byte */
+	public static final int MIN_SEGMENT_SIZE = SEGMENT_HEADER + RECORD_HEADER + SEQUENCE + 1;
+
+	private static class Segment {
+		final int index;
+		final MappedByteBuffer buffer;
+		long firstSequence;
+		long lastSequence;
+
+		Segment(int index, MappedByteBuffer buffer) {
+			this.index = index;
+			this.buffer = buffer;
+		}
+	}
+
+	private final File directory;
+	private final int segmentSize;
+	private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+	private final CRC32 crc = new CRC32();
+	/** First to last sequence of the batches not settled yet */
+	private final TreeMap<Long, Long> outstanding = new TreeMap<Long, Long>();
+	private List<ApnsNotification> recovered;
+	private long recoveredFrom;
+	private Segment current;
+	private long nextSequence = 1;
+	private long settledUpTo = 0;
+	private int nextIndex = 0;
+	private boolean closed;
+
+	private FrameJournal(File directory, int segmentSize) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Opens the journal in {@code directory}, creating it if needed, and
+	 * recovers the frames that were not settled.
+	 *
+	 * @param segmentSize  bytes of a segment file, which bounds the size of a frame
+	 */
+	public static FrameJournal open(File directory, int segmentSize) throws IOException {
+		if (segmentSize < MIN_SEGMENT_SIZE) {
+			throw new IllegalArgumentException("segmentSize invalid:" + segmentSize);
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create the journal directory " + directory);
+		}
+		final FrameJournal journal = new FrameJournal(directory, segmentSize);
+		journal.recover();
+		return journal;
+	}
+
+	private void recover() throws IOException {
+		final File[] files = directory.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().endsWith(SUFFIX);
+			}
+		});
+		final TreeMap<Long, byte[]> written = new TreeMap<Long, byte[]>();
+		final List<Segment> found = new ArrayList<Segment>();
+		for (File file : files == null ? new File[0] : files) {
+			final int index;
+			try {
+				index = Integer.parseInt(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			nextIndex = Math.max(nextIndex, index + 1);
+			final Segment segment = new Segment(index, map(file, file.length()));
+			if (segment.buffer.capacity() < SEGMENT_HEADER || segment.buffer.getInt() != MAGIC) {
+				logger.warn("Ignoring {}, not a journal segment", file);
+				continue;
+			}
+			segment.firstSequence = segment.buffer.getLong();
+			segment.lastSequence = read(segment.buffer, written);
+			found.add(segment);
+		}
+		Collections.sort(found, new Comparator<Segment>() {
+			public int compare(Segment a, Segment b) {
+				return Long.compare(a.firstSequence, b.firstSequence);
+			}
+		});
+		segments.addAll(found);
+
+		recovered = new ArrayList<ApnsNotification>();
+		for (Map.Entry<Long, byte[]> frame : written.tailMap(settledUpTo, false).entrySet()) {
+			try {
+				recovered.add(Utilities.parseFrame(ByteBuffer.wrap(frame.getValue())));
+			} catch (RuntimeException e) {
+				logger.warn("Cannot recover the frame " + frame.getKey() + " of the journal", e);
+			}
+		}
+		// the segments of the last frames may have been reused since
+		nextSequence = Math.max(nextSequence, settledUpTo + 1);
+		if (!written.isEmpty()) {
+			nextSequence = Math.max(nextSequence, written.lastKey() + 1);
+		}
+		// the recovered frames stay outstanding until sent again
+		recoveredFrom = settledUpTo + 1;
+		if (recoveredFrom < nextSequence) {
+			outstanding.put(recoveredFrom, nextSequence - 1);
+		}
+		logger.info("Journal {} opened, {} frames to recover", directory, recovered.size());
+		nextSegment();
+	}
+
+	/**
+	 * Reads the records of a segment up to the first invalid one.
+	 *
+	 * @return the last sequence found, 0 if none
+	 */
+	private long read(ByteBuffer buffer, Map<Long, byte[]> written) {
+		long last = 0;
+		while (buffer.remaining() >= RECORD_HEADER + SEQUENCE) {
+			final byte type = buffer.get();
+			final int length = buffer.getInt();
+			final int checksum = buffer.getInt();
+			if ((type != WRITTEN && type != SETTLED) || length < SEQUENCE || length > buffer.remaining()) {
+				break;
+			}
+			final ByteBuffer body = buffer.slice();
+			body.limit(length);
+			if (checksum(body) != checksum) {
+				break;
+			}
+			final long sequence = body.getLong();
+			if (type == WRITTEN) {
+				final byte[] frame = new byte[length - SEQUENCE];
+				body.get(frame);
+				written.put(sequence, frame);
+				last = Math.max(last, sequence);
+			} else {
+				settledUpTo = Math.max(settledUpTo, sequence);
+			}
+			buffer.position(buffer.position() + length);
+		}
+		return last;
+	}
+
+	private int checksum(ByteBuffer body) {
+		crc.reset();
+		crc.update(body.duplicate());
+		return (int) crc.getValue();
+	}
+
+	private MappedByteBuffer map(File file, long size) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (raf.length() < size) {
+				raf.setLength(size);
+			}
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			// the mapping outlives the channel
+			raf.close();
+		}
+	}
+
+	/**
+	 * Moves on to the oldest segment if all its frames are settled, or to a
+	 * new one.
+	 */
+	private void nextSegment() throws IOException {
+		final Segment oldest = segments.peekFirst();
+		Segment next;
+		if (oldest != null && oldest != current && oldest.lastSequence <= settledUpTo
+				&& oldest.buffer.capacity() == segmentSize) {
+			next = segments.pollFirst();
+			next.buffer.clear();
+		} else {
+			final int index = nextIndex++;
+			next = new Segment(index, map(new File(directory, String.format("%08d%s", index, SUFFIX)), segmentSize));
+		}
+		next.firstSequence = nextSequence;
+		next.lastSequence = 0;
+		next.buffer.putInt(MAGIC).putLong(nextSequence);
+		terminate(next.buffer);
+		segments.addLast(next);
+		current = next;
+	}
+
+	private static void terminate(ByteBuffer buffer) {
+		if (buffer.hasRemaining()) {
+			buffer.put(buffer.position(), (byte) 0);
+		}
+	}
+
+	/**
+	 * Returns the notifications whose frames were not settled when the
+	 * journal was opened, in the order they were written.
+	 */
+	public synchronized List<ApnsNotification> getRecovered() {
+		return recovered == null ? Collections.<ApnsNotification> emptyList() : Collections.unmodifiableList(recovered);
+	}
+
+	/**
+	 * The recovered notifications were sent again, and journaled anew.
+	 */
+	public synchronized void settleRecovered() {
+		recovered = null;
+		settled(recoveredFrom);
+	}
+
+	/**
+	 * Appends the frames of a batch written to the gateway.
+	 *
+	 * @return the sequence of the first frame, to {@link #settled(long)}
+	 *         the batch, or -1 once the journal is closed
+	 */
+	public synchronized long append(List<? extends ApnsNotification> batch) {
+		if (closed || batch.isEmpty()) {
+			return -1;
+		}
+		final long first = nextSequence;
+		for (ApnsNotification notification : batch) {
+			final long sequence = nextSequence++;
+			final int length = SEQUENCE + notification.length();
+			if (RECORD_HEADER + length >= segmentSize - SEGMENT_HEADER) {
+				logger.warn("Frame {} is larger than a journal segment, not journaled", notification.getIdentifier());
+				continue;
+			}
+			try {
+				final ByteBuffer buffer = reserve(RECORD_HEADER + length);
+				final int start = buffer.position();
+				buffer.put(WRITTEN).putInt(length).putInt(0).putLong(sequence);
+				notification.writeTo(buffer);
+				seal(buffer, start, length);
+				current.lastSequence = sequence;
+			} catch (IOException e) {
+				logger.error("Cannot journal frame " + notification.getIdentifier(), e);
+			}
+		}
+		outstanding.put(first, nextSequence - 1);
+		return first;
+	}
+
+	private ByteBuffer reserve(int length) throws IOException {
+		// one more for the terminator
+		if (current.buffer.remaining() < length + 1) {
+			nextSegment();
+		}
+		return current.buffer;
+	}
+
+	private void seal(ByteBuffer buffer, int start, int length) {
+		final ByteBuffer body = buffer.duplicate();
+		body.limit(start + RECORD_HEADER + length);
+		body.position(start + RECORD_HEADER);
+		buffer.putInt(start + 1 + 4, checksum(body));
+		terminate(buffer);
+	}
+
+	/**
+	 * The error-response window of the batch starting at {@code first} passed.
+	 */
+	public synchronized void settled(long first) {
+		if (outstanding.remove(first) == null || closed) {
+			return;
+		}
+		final long watermark = outstanding.isEmpty() ? nextSequence - 1 : outstanding.firstKey() - 1;
+		if (watermark > settledUpTo) {
+			writeWatermark(watermark);
+		}
+	}
+
+	private void writeWatermark(long watermark) {
+		settledUpTo = watermark;
+		try {
+			final ByteBuffer buffer = reserve(RECORD_HEADER + SEQUENCE);
+			final int start = buffer.position();
+			buffer.put(SETTLED).putInt(SEQUENCE).putInt(0).putLong(watermark);
+			seal(buffer, start, SEQUENCE);
+		} catch (IOException e) {
+			logger.error("Cannot journal the watermark " + watermark, e);
+		}
+	}
+
+	/**
+	 * Returns the number of segment files of the journal.
+	 */
+	public synchronized int getSegments() {
+		return segments.size();
+	}
+
+	/**
+	 * Settles everything, the connections reported what they could not
+	 * confirm, and forces the segments to disk.
+	 */
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		outstanding.clear();
+		if (nextSequence - 1 > settledUpTo) {
+			writeWatermark(nextSequence - 1);
+		}
+		closed = true;
+		for (Segment segment : segments) {
+			segment.buffer.force();
+		}
+		logger.debug("Journal {} closed, segments {}", directory, Arrays.toString(indexes()));
+	}
+
+	private int[] indexes() {
+		final int[] indexes = new int[segments.size()];
+		int i = 0;
+		for (Segment segment : segments) {
+			indexes[i++] = segment.index;
+		}
+		return indexes;
+	}
+}
@@ -0,0 +1,73 @@
+package com.notnoop.apns.internal;
+
+import java.nio.ByteBuffer;
+
+import com.notnoop.apns.ApnsNotification;
+
+/**
+ * A notification resent from its frame, as the {@link FrameArena} retained
+ * it.  It is written straight from the frame; the token, payload and other
+ * fields are only decoded when asked for.
+ */
+class FrameNotification implements ApnsNotification {
+
+	private final int identifier;
+	private final ByteBuffer frame;
+	private volatile ApnsNotification decoded;
+
+	/**
+	 * @param frame  the frame, from position 0 to the limit
+	 */
+	FrameNotification(int identifier, ByteBuffer frame) {
+		this.identifier = identifier;
+		this.frame = frame;
+	}
+
+	private ApnsNotification decoded() {
+		ApnsNotification notification = decoded;
+		if (notification == null) {
+			notification = Utilities.parseFrame(frame.duplicate());
+			decoded = notification;
+		}
+		return notification;
+	}
+
+	public byte[] getDeviceToken() {
+		return decoded().getDeviceToken();
+	}
+
+	public byte[] getPayload() {
+		return decoded().getPayload();
+	}
+
+	public int getIdentifier() {
+		return identifier;
+	}
+
+	public int getExpiry() {
+		return decoded().getExpiry();
+	}
+
+	public int getPriority() {
+		return decoded().getPriority();
+	}
+
+	public byte[] marshall() {
+		final byte[] bytes = new byte[frame.limit()];
+		frame.duplicate().get(bytes);
+		return bytes;
+	}
+
+	public int length() {
+		return frame.limit();
+	}
+
+	public void writeTo(ByteBuffer buffer) {
+		buffer.put(frame.duplicate());
+	}
+
+	@Override
+	public String toString() {
+		return decoded().toString();
+	}
+}
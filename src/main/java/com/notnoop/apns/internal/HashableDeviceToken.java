@@ -0,0 +1,23 @@
+package com.notnoop.apns.internal;
+
+import com.notnoop.apns.ApnsNotification;
+
+/**
+ * A notification that hashes its device token in place, so that a pool
+ * with device affinity routes it without the copy
+ * {@link ApnsNotification#getDeviceToken()} returns.
+ */
+public interface HashableDeviceToken {
+
+	/**
+	 * Returns {@link #hash(byte[])} of the device token.
+	 */
+	long hashDeviceToken();
+
+	/**
+	 * The hash of {@code token} on the ring of a pool, see {@link TokenRing}.
+	 */
+	static long hash(byte[] token) {
+		return TokenRing.hash(token);
+	}
+}
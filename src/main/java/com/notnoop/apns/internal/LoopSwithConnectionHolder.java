@@ -6,8 +6,12 @@ package com.notnoop.apns.internal;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
@@ -19,20 +23,39 @@ import com.notnoop.apns.ConnectionHolderAdapter;
 /**
  * 循环更换本地ip和端口
  * 
+ * Free addresses wait in a lock-free FIFO queue, so that they are still
+ * handed out in turn and that taking or returning one costs the same
+ * whatever the number of addresses and of threads.
+ * 
  * @author sean@guoqude.com
  *
  */
 public class LoopSwithConnectionHolder extends ConnectionHolderAdapter {
 	private final static Logger logger = LoggerFactory.getLogger(LoopSwithConnectionHolder.class);
 
-	private List<MonitorConnection> localAddresses = new ArrayList<MonitorConnection>();
+	private MonitorConnection[] localAddresses;
+
+	private final ConcurrentLinkedQueue<MonitorConnection> freeAddresses = new ConcurrentLinkedQueue<MonitorConnection>();
 
-	private int addressChoseIndex = 0;
+	/**
+	 * 1 while the address at that index is in {@link #freeAddresses}, so that
+	 * returning an address twice doesn't hand it out twice
+	 */
+	private AtomicIntegerArray free;
 
-	private ReentrantLock addressChoseLock = new ReentrantLock();
+	/**
+	 * Threads waiting for an address, only then does returning one take the
+	 * lock to wake them up.
+	 */
+	private final AtomicInteger waiters = new AtomicInteger(0);
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition returned = lock.newCondition();
 
 	public LoopSwithConnectionHolder(String ipPrefix, int[] ports) {
-		List<InetAddress> addresses = LocalAddressHolder.get(ipPrefix);
+		this(LocalAddressHolder.get(ipPrefix), ports);
+	}
+
+	public LoopSwithConnectionHolder(List<InetAddress> addresses, int[] ports) {
 		init(addresses, ports);
 	}
 
@@ -40,18 +63,20 @@ public class LoopSwithConnectionHolder extends ConnectionHolderAdapter {
 		if (addresses == null || addresses.size() == 0 || ports == null || ports.length == 0) {
 			throw new IllegalArgumentException("address or ports invalid");
 		}
-		if (ports.length > 1000) {
-			throw new IllegalArgumentException("ports length invalid:" + ports.length);
-		}
-		if (addresses.size() > 50) {
-			throw new IllegalArgumentException("addresses length invalid:" + ports.length);
+		final long size = (long) ports.length * addresses.size();
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("too many addresses:" + size);
 		}
+		localAddresses = new MonitorConnection[(int) size];
+		free = new AtomicIntegerArray(localAddresses.length);
 		int i = 0;
 		for (int port : ports) { // switch port first
 			for (InetAddress address : addresses) { // switch ip second
 				MonitorConnection localAddress = new MonitorConnection(address, address.getHostAddress(), port, i);
 				localAddress.setConnectionHolder(this);
-				localAddresses.add(localAddress);
+				localAddresses[i] = localAddress;
+				free.set(i, 1);
+				freeAddresses.add(localAddress);
 				i++;
 			}
 		}
@@ -59,14 +84,25 @@ public class LoopSwithConnectionHolder extends ConnectionHolderAdapter {
 
 	@Override
 	public void returnAddress(MonitorConnection localAddress) throws IOException {
-		addressChoseLock.lock();
-		try {
-			localAddress.setAvailable(true);
-			logger.info("address return success {}", localAddress);
-		} finally {
-			addressChoseLock.unlock();
+		final int index = localAddress.getIndex();
+		if (index < 0 || index >= localAddresses.length || localAddresses[index] != localAddress) {
+			logger.warn("address not from this holder {}", localAddress);
+			return;
 		}
-
+		if (!free.compareAndSet(index, 0, 1)) {
+			return;
+		}
+		localAddress.setAvailable(true);
+		freeAddresses.offer(localAddress);
+		if (waiters.get() > 0) {
+			lock.lock();
+			try {
+				returned.signal();
+			} finally {
+				lock.unlock();
+			}
+		}
+		logger.debug("address return success {}", localAddress);
 	}
 
 	/*
@@ -77,31 +113,42 @@ public class LoopSwithConnectionHolder extends ConnectionHolderAdapter {
 	 */
 	@Override
 	public MonitorConnection takeAddress() {
-		int choseIndex = -1;
-		MonitorConnection chosedAddress = null;
-		boolean hasAvailable = false;
-		int poolSize = localAddresses.size();
-		addressChoseLock.lock();
+		MonitorConnection chosedAddress = freeAddresses.poll();
+		if (chosedAddress != null) {
+			chosedAddress.setAvailable(false);
+			free.set(chosedAddress.getIndex(), 0);
+		}
+		logger.debug("address chosed {}", chosedAddress);
+		return chosedAddress;
+	}
+
+	@Override
+	public MonitorConnection takeAddress(long timeoutMillis) throws InterruptedException {
+		MonitorConnection chosedAddress = takeAddress();
+		if (chosedAddress != null) {
+			return chosedAddress;
+		}
+		long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		waiters.incrementAndGet();
+		lock.lockInterruptibly();
 		try {
-			choseIndex = addressChoseIndex;
-			for (int i = 0; i < poolSize; i++) {
-				choseIndex = choseIndex % poolSize;
-				MonitorConnection address = this.localAddresses.get(choseIndex);
-				if (address.isAvailable()) {
-					hasAvailable = true;
-					address.setAvailable(false);
-					chosedAddress = address;
-					break;
-				}
-				choseIndex++;
-			}
-			if (hasAvailable) {
-				addressChoseIndex = choseIndex + 1;
+			// an address returned after this check signals under the lock
+			while ((chosedAddress = takeAddress()) == null && nanos > 0) {
+				nanos = returned.awaitNanos(nanos);
 			}
 		} finally {
-			addressChoseLock.unlock();
+			lock.unlock();
+			waiters.decrementAndGet();
+		}
+		if (chosedAddress != null && !freeAddresses.isEmpty() && waiters.get() > 0) {
+			// pass on a signal this thread may have consumed for another address
+			lock.lock();
+			try {
+				returned.signal();
+			} finally {
+				lock.unlock();
+			}
 		}
-		logger.info("address chosed {}", chosedAddress);
 		return chosedAddress;
 	}
 	
@@ -117,7 +164,7 @@ public class LoopSwithConnectionHolder extends ConnectionHolderAdapter {
 	
 
 	public int getSize() {
-		return this.localAddresses.size();
+		return this.localAddresses.length;
 	}
 
 }
@@ -0,0 +1,261 @@
+package com.notnoop.apns.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.OverflowPolicy;
+import com.notnoop.exceptions.QueueFullException;
+
+/**
+ * The bounded queue of notifications waiting for the writer of a connection.
+ *
+ * The queue is bounded by a number of notifications and, optionally, by the
+ * size of their marshalled frames; the {@link OverflowPolicy} decides what
+ * happens once either bound is reached.  Space is reserved with atomic
+ * counters before a notification enters the ring, so offering and polling
+ * stay lock-free; only a producer blocked by a full queue, and the poll that
+ * makes room for it, take a lock.
+ */
+class OutboundQueue {
+
+	/**
+	 * Receives the notifications dropped to make room, and the watermark
+	 * crossings.
+	 */
+	interface Listener {
+		void dropped(ApnsNotification notification, QueueFullException e);
+
+		void highWatermark(int queued);
+
+		void lowWatermark(int queued);
+	}
+
+	static final long UNBOUNDED = Long.MAX_VALUE;
+
+	static final int DEFAULT_HIGH_WATERMARK = 80;
+	static final int DEFAULT_LOW_WATERMARK = 50;
+
+	private final int capacity;
+	private final long byteCapacity;
+	private final OverflowPolicy policy;
+	private final long blockTimeoutNanos;
+	private final int highWatermark;
+	private final int lowWatermark;
+	private final Listener listener;
+
+	private final RingBuffer<ApnsNotification> queue;
+	/** Notifications below {@link ApnsNotification#PRIORITY_IMMEDIATE}, only for DROP_LOWEST_PRIORITY */
+	private final RingBuffer<ApnsNotification> lowPriority;
+
+	private final AtomicInteger count = new AtomicInteger(0);
+	private final AtomicLong bytes = new AtomicLong(0);
+	private final AtomicBoolean aboveHighWatermark = new AtomicBoolean(false);
+
+	/**
+	 * Producers waiting for room with {@link OverflowPolicy#BLOCK}, only then
+	 * does a poll take the lock to wake them up.
+	 */
+	private final AtomicInteger blocked = new AtomicInteger(0);
+	private final ReentrantLock roomLock = new ReentrantLock();
+	private final Condition room = roomLock.newCondition();
+
+	/**
+	 * @param capacity maximum number of queued notifications
+	 * @param byteCapacity maximum size of the queued frames, or {@link #UNBOUNDED}
+	 * @param blockTimeoutMillis how long {@link OverflowPolicy#BLOCK} waits, {@link #UNBOUNDED} for ever
+	 * @param highWatermark occupancy in percent at which {@link Listener#highWatermark(int)} is called
+	 * @param lowWatermark occupancy in percent at which {@link Listener#lowWatermark(int)} is called
+	 */
+	OutboundQueue(int capacity, long byteCapacity, OverflowPolicy policy, long blockTimeoutMillis, //
+			int highWatermark, int lowWatermark, Listener listener) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity invalid:" + capacity);
+		}
+		if (byteCapacity < 1) {
+			throw new IllegalArgumentException("byteCapacity invalid:" + byteCapacity);
+		}
+		if (lowWatermark > highWatermark) {
+			throw new IllegalArgumentException("lowWatermark " + lowWatermark + " above highWatermark " + highWatermark);
+		}
+		this.capacity = capacity;
+		this.byteCapacity = byteCapacity;
+		this.policy = policy;
+		this.blockTimeoutNanos = blockTimeoutMillis == UNBOUNDED ? UNBOUNDED : TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+		this.highWatermark = highWatermark;
+		this.lowWatermark = lowWatermark;
+		this.listener = listener;
+		this.queue = new RingBuffer<ApnsNotification>(capacity);
+		this.lowPriority = policy == OverflowPolicy.DROP_LOWEST_PRIORITY ? new RingBuffer<ApnsNotification>(capacity) : null;
+	}
+
+	/**
+	 * @return an empty queue with the same settings
+	 */
+	OutboundQueue copy(Listener listener) {
+		return new OutboundQueue(capacity, byteCapacity, policy, //
+				blockTimeoutNanos == UNBOUNDED ? UNBOUNDED : TimeUnit.NANOSECONDS.toMillis(blockTimeoutNanos), //
+				highWatermark, lowWatermark, listener);
+	}
+
+	/**
+	 * Queues the notification, applying the overflow policy if the queue is full.
+	 *
+	 * @throws QueueFullException if the notification could not be queued
+	 */
+	void offer(ApnsNotification m) throws QueueFullException {
+		final int length = frameLength(m);
+		if (length > byteCapacity) {
+			throw new QueueFullException("Notification of " + length + " bytes exceeds the queue capacity of " + byteCapacity + " bytes");
+		}
+		if (!reserve(length) && !makeRoom(length)) {
+			throw new QueueFullException("Outbound queue full, " + count.get() + " notifications queued");
+		}
+		if (lowPriority != null && m.getPriority() < ApnsNotification.PRIORITY_IMMEDIATE) {
+			lowPriority.offer(m);
+		} else {
+			queue.offer(m);
+		}
+		if (!aboveHighWatermark.get() && occupancy() >= highWatermark && aboveHighWatermark.compareAndSet(false, true)) {
+			listener.highWatermark(count.get());
+		}
+	}
+
+	/**
+	 * @return the oldest queued notification, immediate ones first, or null if the queue is empty
+	 */
+	ApnsNotification poll() {
+		ApnsNotification m = queue.poll();
+		if (m == null && lowPriority != null) {
+			m = lowPriority.poll();
+		}
+		if (m != null) {
+			release(m);
+		}
+		return m;
+	}
+
+	int size() {
+		return count.get();
+	}
+
+	long bytes() {
+		return bytes.get();
+	}
+
+	private boolean makeRoom(int length) {
+		switch (policy) {
+		case FAIL_FAST:
+			return false;
+		case BLOCK:
+			return awaitRoom(length);
+		case DROP_OLDEST:
+			return dropUntilReserved(queue, length);
+		case DROP_LOWEST_PRIORITY:
+			return dropUntilReserved(lowPriority, length);
+		default:
+			throw new IllegalStateException("Unknown policy " + policy);
+		}
+	}
+
+	/**
+	 * Waits for the writer to poll enough to make room, see {@link #release(ApnsNotification)}.
+	 */
+	private boolean awaitRoom(int length) {
+		long remaining = blockTimeoutNanos;
+		blocked.incrementAndGet();
+		roomLock.lock();
+		try {
+			// a poll after this check signals under the lock
+			while (!reserve(length)) {
+				if (blockTimeoutNanos == UNBOUNDED) {
+					room.await();
+				} else if (remaining <= 0) {
+					return false;
+				} else {
+					remaining = room.awaitNanos(remaining);
+				}
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			roomLock.unlock();
+			blocked.decrementAndGet();
+		}
+	}
+
+	private boolean dropUntilReserved(RingBuffer<ApnsNotification> victims, int length) {
+		while (true) {
+			final ApnsNotification victim = victims.poll();
+			if (victim == null) {
+				// nothing left to drop, unless the writer made room meanwhile
+				return reserve(length);
+			}
+			release(victim);
+			listener.dropped(victim, new QueueFullException("Dropped from a full outbound queue"));
+			if (reserve(length)) {
+				return true;
+			}
+		}
+	}
+
+	private boolean reserve(int length) {
+		if (count.incrementAndGet() > capacity) {
+			count.decrementAndGet();
+			return false;
+		}
+		if (length > 0 && bytes.addAndGet(length) > byteCapacity) {
+			bytes.addAndGet(-length);
+			count.decrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	private void release(ApnsNotification m) {
+		final int length = frameLength(m);
+		if (length > 0) {
+			bytes.addAndGet(-length);
+		}
+		final int queued = count.decrementAndGet();
+		if (blocked.get() > 0) {
+			roomLock.lock();
+			try {
+				// a large frame may need more room than a small one, let them all check
+				room.signalAll();
+			} finally {
+				roomLock.unlock();
+			}
+		}
+		if (aboveHighWatermark.get() && occupancy() <= lowWatermark && aboveHighWatermark.compareAndSet(true, false)) {
+			listener.lowWatermark(queued);
+		}
+	}
+
+	/**
+	 * @return the fill level in percent of whichever bound is closer
+	 */
+	private int occupancy() {
+		final long byCount = count.get() * 100L / capacity;
+		if (byteCapacity == UNBOUNDED) {
+			return (int) byCount;
+		}
+		return (int) Math.max(byCount, bytes.get() * 100 / byteCapacity);
+	}
+
+	/**
+	 * Frames are only measured when the queue is bounded in bytes.
+	 */
+	private int frameLength(ApnsNotification m) {
+		if (byteCapacity == UNBOUNDED) {
+			return 0;
+		}
+		return m.length();
+	}
+}
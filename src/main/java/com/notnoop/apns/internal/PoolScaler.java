@@ -0,0 +1,139 @@
+package com.notnoop.apns.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides how many connections an elastic pool keeps open, from its
+ * backlog and from how long notifications wait to be written.
+ *
+ * The pool grows by one connection per 100 ms sample while the backlog
+ * per connection or the average enqueue-to-write latency of the sample
+ * is above its threshold, and shrinks by one connection per cool-down
+ * period once neither was for a whole cool-down period.
+ *
+ * A connection that is not ready, handshaking or recovering from a
+ * rejection, holds growth back: opening more sockets while Apple turns
+ * them down only adds handshakes.  The hold starts at one second and
+ * doubles while connections keep failing, up to the cool-down period.
+ *
+ * The pool threads report latencies, the thread that wins
+ * {@link #isDue(long)} evaluates the sample.
+ */
+public class PoolScaler {
+
+	private static final long SAMPLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final long INITIAL_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final int min;
+	private final int max;
+	private final int queueDepth;
+	private final long latencyNanos;
+	private final long coolDownNanos;
+
+	private final AtomicLong nextSample = new AtomicLong(Long.MIN_VALUE);
+	private final AtomicLong sampledLatency = new AtomicLong(0);
+	private final AtomicLong sampledWrites = new AtomicLong(0);
+
+	/** Evaluating thread only */
+	private long lastPressureAt;
+	private long lastResizeAt;
+	private long holdGrowthUntil;
+	private long backoffNanos = INITIAL_BACKOFF_NANOS;
+	private boolean started;
+
+	/**
+	 * @param queueDepth  notifications waiting per connection above which the pool grows
+	 * @param latencyMillis  average enqueue-to-write latency above which the pool grows
+	 * @param coolDownMillis  time without pressure before the pool shrinks
+	 */
+	public PoolScaler(int min, int max, int queueDepth, long latencyMillis, long coolDownMillis) {
+		if (min < 1 || max < min) {
+			throw new IllegalArgumentException("invalid pool bounds: " + min + ".." + max);
+		}
+		this.min = min;
+		this.max = max;
+		this.queueDepth = queueDepth;
+		this.latencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+		this.coolDownNanos = TimeUnit.MILLISECONDS.toNanos(coolDownMillis);
+	}
+
+	/**
+	 * Returns a scaler with the same settings and no history.
+	 */
+	public PoolScaler copy() {
+		return new PoolScaler(min, max, queueDepth, TimeUnit.NANOSECONDS.toMillis(latencyNanos), getCoolDownMillis());
+	}
+
+	public int getMin() {
+		return min;
+	}
+
+	public int getMax() {
+		return max;
+	}
+
+	public long getCoolDownMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(coolDownNanos);
+	}
+
+	/**
+	 * A notification was written {@code latencyNanos} after it was given to the pool.
+	 */
+	public void written(long latencyNanos) {
+		sampledLatency.addAndGet(latencyNanos);
+		sampledWrites.incrementAndGet();
+	}
+
+	/**
+	 * Whether the sample is over, true for a single caller.
+	 */
+	public boolean isDue(long now) {
+		final long next = nextSample.get();
+		return (next == Long.MIN_VALUE || now - next >= 0) && nextSample.compareAndSet(next, now + SAMPLE_NANOS);
+	}
+
+	/**
+	 * Ends the sample.
+	 *
+	 * @param size  the connections of the pool
+	 * @param backlog  notifications waiting in the pool
+	 * @param allReady  whether every connection is ready
+	 * @return the number of connections the pool should have
+	 */
+	public synchronized int evaluate(int size, int backlog, boolean allReady, long now) {
+		final long writes = sampledWrites.getAndSet(0);
+		final long latency = sampledLatency.getAndSet(0);
+		if (!started) {
+			started = true;
+			lastPressureAt = now;
+			lastResizeAt = now;
+			holdGrowthUntil = now;
+		}
+
+		final boolean pressure = (long) backlog > (long) queueDepth * size
+				|| (writes > 0 && latency / writes > latencyNanos);
+		if (pressure) {
+			lastPressureAt = now;
+		}
+
+		if (!allReady) {
+			if (now - holdGrowthUntil >= 0) {
+				holdGrowthUntil = now + backoffNanos;
+				backoffNanos = Math.min(Math.max(coolDownNanos, INITIAL_BACKOFF_NANOS), backoffNanos * 2);
+			}
+			return size;
+		}
+		backoffNanos = INITIAL_BACKOFF_NANOS;
+
+		if (pressure && size < max && now - holdGrowthUntil >= 0) {
+			lastResizeAt = now;
+			return size + 1;
+		}
+		if (!pressure && size > min && now - lastPressureAt >= coolDownNanos && now - lastResizeAt >= coolDownNanos) {
+			lastResizeAt = now;
+			return size - 1;
+		}
+		return size;
+	}
+}
@@ -0,0 +1,161 @@
+package com.notnoop.apns.internal;
+
+import java.io.Closeable;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * The provider authentication token of the HTTP/2 provider API, an ES256
+ * signed JWT.
+ *
+ * The token is signed once and then re-signed in the background before Apple
+ * stops accepting it, so a request only reads the current value from a
+ * volatile field.  One instance is shared by a connection and all of its
+ * copies.
+ */
+public class ProviderToken implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(ProviderToken.class);
+
+	/**
+	 * Apple accepts a token for an hour, and refuses tokens renewed more
+	 * often than every 20 minutes.
+	 */
+	public static final long DEFAULT_REFRESH_INTERVAL = TimeUnit.MINUTES.toMillis(40);
+
+	private static final long RETRY_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+	private static final Base64.Encoder base64 = Base64.getUrlEncoder().withoutPadding();
+
+	private final PrivateKey signingKey;
+	private final String keyId;
+	private final String teamId;
+	private final long refreshInterval;
+	private final ConnectionScheduler scheduler = new ConnectionScheduler(1);
+
+	private volatile String authorization;
+	private volatile ScheduledFuture<?> nextRefresh;
+
+	private final Runnable refresher = new Runnable() {
+		public void run() {
+			try {
+				authorization = "bearer " + sign(signingKey, keyId, teamId, System.currentTimeMillis());
+				schedule(refreshInterval);
+			} catch (GeneralSecurityException e) {
+				// the current token stays valid for a while, try again soon
+				logger.error("Couldn't refresh the provider token", e);
+				schedule(RETRY_INTERVAL);
+			}
+		}
+	};
+
+	public ProviderToken(PrivateKey signingKey, String keyId, String teamId) throws GeneralSecurityException {
+		this(signingKey, keyId, teamId, DEFAULT_REFRESH_INTERVAL);
+	}
+
+	public ProviderToken(PrivateKey signingKey, String keyId, String teamId, long refreshInterval)
+			throws GeneralSecurityException {
+		this.signingKey = signingKey;
+		this.keyId = keyId;
+		this.teamId = teamId;
+		this.refreshInterval = refreshInterval;
+		this.authorization = "bearer " + sign(signingKey, keyId, teamId, System.currentTimeMillis());
+		schedule(refreshInterval);
+	}
+
+	private void schedule(long delay) {
+		try {
+			nextRefresh = scheduler.schedule(refresher, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			logger.debug("Provider token closed, not refreshed");
+		}
+	}
+
+	/**
+	 * @return the value of the {@code authorization} header
+	 */
+	public String authorization() {
+		return authorization;
+	}
+
+	public void close() {
+		scheduler.close();
+		final ScheduledFuture<?> refresh = nextRefresh;
+		if (refresh != null) {
+			refresh.cancel(false);
+		}
+	}
+
+	/**
+	 * Signs a token issued by {@code teamId} at {@code issuedAt}.
+	 */
+	static String sign(PrivateKey signingKey, String keyId, String teamId, long issuedAt)
+			throws GeneralSecurityException {
+		final Map<String, Object> header = new LinkedHashMap<String, Object>();
+		header.put("alg", "ES256");
+		header.put("kid", keyId);
+		final Map<String, Object> claims = new LinkedHashMap<String, Object>();
+		claims.put("iss", teamId);
+		claims.put("iat", TimeUnit.MILLISECONDS.toSeconds(issuedAt));
+
+		final String unsigned = base64.encodeToString(json(header)) + "." + base64.encodeToString(json(claims));
+
+		final Signature signature = Signature.getInstance("SHA256withECDSA");
+		signature.initSign(signingKey);
+		signature.update(Utilities.toUTF8Bytes(unsigned));
+		return unsigned + "." + base64.encodeToString(derToJose(signature.sign(), 32));
+	}
+
+	private static byte[] json(Map<String, Object> value) {
+		try {
+			return mapper.writeValueAsBytes(value);
+		} catch (JsonProcessingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Converts a DER encoded ECDSA signature, SEQUENCE { INTEGER r, INTEGER s },
+	 * into the fixed length r || s form required by JWS.
+	 */
+	static byte[] derToJose(byte[] der, int length) throws GeneralSecurityException {
+		if (der.length < 8 || der[0] != 0x30) {
+			throw new GeneralSecurityException("Invalid ECDSA signature");
+		}
+		// the sequence length takes a second byte once above 127
+		int offset = (der[1] & 0x80) != 0 ? 3 : 2;
+		final byte[] jose = new byte[2 * length];
+		for (int i = 0; i < 2; i++) {
+			if (der[offset] != 0x02) {
+				throw new GeneralSecurityException("Invalid ECDSA signature");
+			}
+			int intLength = der[offset + 1];
+			int intStart = offset + 2;
+			offset = intStart + intLength;
+			// drop the sign byte, left pad short values
+			while (intLength > length && der[intStart] == 0) {
+				intStart++;
+				intLength--;
+			}
+			if (intLength > length) {
+				throw new GeneralSecurityException("Invalid ECDSA signature");
+			}
+			System.arraycopy(der, intStart, jose, (i + 1) * length - intLength, intLength);
+		}
+		return jose;
+	}
+}
@@ -0,0 +1,327 @@
+package com.notnoop.apns.internal;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.FramedApnsNotification;
+import com.notnoop.apns.ResendCacheBudget;
+
+/**
+ * The last notifications written on a socket, kept to resend the ones that
+ * followed a notification Apple rejected.
+ *
+ * The notifications sit in a ring in write order, each at its write
+ * sequence.  A direct-mapped index from identifier to sequence finds the
+ * rejected notification without scanning the ring, so adding, evicting and
+ * the lookup are all O(1), and what followed it is a contiguous run of the
+ * ring.  Two cached identifiers sharing an index slot are rare, the lookup
+ * then falls back to a scan.
+ *
+ * The cache keeps either the last {@code capacity} notifications or, given
+ * a {@link ResendCacheBudget}, those that fit its bytes and time window.
+ * The ring grows as needed, up to the capacity.
+ *
+ * Given a {@link FrameArena}, only the frames of the notifications are
+ * kept, off-heap.  Those to resend are then written from a copy of their
+ * frames, and decoded only if a delegate looks into them.
+ *
+ * The writer adds while the monitor reads error-responses, so every method
+ * is synchronized; none of them does I/O.
+ */
+public class ResendCache {
+
+	private static final int INITIAL_SIZE = 1024;
+	private static final int MAX_SIZE = 1 << 30;
+	/** Largest direct buffer the frames to resend are copied to */
+	private static final int RESEND_CHUNK = 16 * 1024 * 1024;
+
+	/** The notifications, null for those whose frame is in the arena */
+	private ApnsNotification[] ring;
+	private int[] ids;
+	private int[] lengths;
+	private long[] frames;
+	private long[] writtenAt;
+	private int ringMask;
+
+	/** Sequence + 1 of the last notification indexed in each slot, 0 if none */
+	private long[] index;
+	private int indexMask;
+
+	/** Sequence of the oldest cached notification, and of the next one */
+	private long head = 0;
+	private long tail = 0;
+	private long bytes = 0;
+	private int capacity;
+	private ResendCacheBudget budget;
+	private long windowNanos;
+	private FrameArena arena;
+
+	/**
+	 * @param capacity  maximum number of notifications kept, the oldest are evicted
+	 */
+	public ResendCache(int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("capacity invalid:" + capacity);
+		}
+		this.capacity = capacity;
+		allocate(Math.min(capacity, INITIAL_SIZE));
+	}
+
+	private void allocate(int capacity) {
+		final int size = Math.max(1, Integer.highestOneBit(Math.max(1, capacity - 1)) << 1);
+		this.ring = new ApnsNotification[size];
+		this.ids = new int[size];
+		this.lengths = new int[size];
+		this.frames = new long[size];
+		this.writtenAt = new long[size];
+		this.ringMask = size - 1;
+		// twice as many slots as notifications keeps consecutive identifiers apart
+		this.index = new long[size << 1];
+		this.indexMask = (size << 1) - 1;
+	}
+
+	/**
+	 * Moves the notifications to a ring of at least {@code capacity} slots,
+	 * at the same sequences.
+	 */
+	private void grow(int capacity) {
+		final ApnsNotification[] oldRing = ring;
+		final int[] oldIds = ids;
+		final int[] oldLengths = lengths;
+		final long[] oldFrames = frames;
+		final long[] oldWrittenAt = writtenAt;
+		final int oldMask = ringMask;
+		allocate(capacity);
+		for (long sequence = head; sequence < tail; sequence++) {
+			final int from = (int) (sequence & oldMask);
+			final int to = (int) (sequence & ringMask);
+			ring[to] = oldRing[from];
+			ids[to] = oldIds[from];
+			lengths[to] = oldLengths[from];
+			frames[to] = oldFrames[from];
+			writtenAt[to] = oldWrittenAt[from];
+			index[ids[to] & indexMask] = sequence + 1;
+		}
+	}
+
+	/**
+	 * Sizes the cache by {@code budget} from now on, instead of by capacity,
+	 * and reports to it what the cache retains.
+	 */
+	public synchronized void setBudget(ResendCacheBudget budget) {
+		if (this.budget != null) {
+			this.budget.retained((int) (head - tail), -bytes);
+		}
+		this.budget = budget;
+		if (budget != null) {
+			windowNanos = budget.getWindowMillis() * 1000000L;
+			budget.retained((int) (tail - head), bytes);
+			evict(System.nanoTime());
+		}
+	}
+
+	/**
+	 * Keeps the frames of the notifications added from now on in
+	 * {@code arena}, which may be shared with other caches.
+	 */
+	public synchronized void setArena(FrameArena arena) {
+		this.arena = arena;
+	}
+
+	private int limit() {
+		return budget == null ? capacity : MAX_SIZE;
+	}
+
+	public synchronized void add(ApnsNotification notification) {
+		add(notification, false);
+	}
+
+	/**
+	 * @param keepObject  keep the notification itself even with an arena,
+	 *        as someone looks it up by identity
+	 */
+	public synchronized void add(ApnsNotification notification, boolean keepObject) {
+		if (limit() == 0) {
+			return;
+		}
+		final long now = System.nanoTime();
+		if (tail - head == limit()) {
+			evictOldest();
+		}
+		if (tail - head == ring.length) {
+			grow(ring.length << 1);
+		}
+		final long frame = keepObject || arena == null || !isDecodable(notification) ? -1 : arena.put(notification);
+		final long sequence = tail++;
+		final int slot = (int) (sequence & ringMask);
+		final int length = budget == null && frame < 0 ? 0 : notification.length();
+		ring[slot] = frame < 0 ? notification : null;
+		ids[slot] = notification.getIdentifier();
+		lengths[slot] = length;
+		frames[slot] = frame;
+		writtenAt[slot] = now;
+		index[notification.getIdentifier() & indexMask] = sequence + 1;
+		bytes += length;
+		if (budget != null) {
+			budget.retained(1, length);
+			evict(now);
+		}
+	}
+
+	/**
+	 * Whether the notification can be rebuilt from its frame.
+	 */
+	private static boolean isDecodable(ApnsNotification notification) {
+		return notification.getClass() == EnhancedApnsNotification.class
+				|| notification.getClass() == FramedApnsNotification.class;
+	}
+
+	/**
+	 * Evicts what exceeds the bytes of the budget or is older than its window.
+	 */
+	private void evict(long now) {
+		while (bytes > budget.getMaxBytes()) {
+			evictOldest();
+		}
+		if (windowNanos > 0) {
+			while (head < tail && now - writtenAt[(int) (head & ringMask)] > windowNanos) {
+				evictOldest();
+			}
+		}
+	}
+
+	private void evictOldest() {
+		final int slot = (int) (head & ringMask);
+		if (ring[slot] == null) {
+			arena.release(frames[slot]);
+		}
+		ring[slot] = null;
+		bytes -= lengths[slot];
+		if (budget != null) {
+			budget.retained(-1, -lengths[slot]);
+		}
+		head++;
+	}
+
+	/**
+	 * Changes the capacity, keeping the newest notifications.
+	 */
+	public synchronized void setCapacity(int capacity) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("capacity invalid:" + capacity);
+		}
+		this.capacity = capacity;
+		while (tail - head > limit()) {
+			evictOldest();
+		}
+	}
+
+	public synchronized int getCapacity() {
+		return capacity;
+	}
+
+	public synchronized int size() {
+		return (int) (tail - head);
+	}
+
+	/**
+	 * Returns the bytes of the frames of the cached notifications, counted
+	 * with a budget, or for the frames in the arena.
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Empties the cache after Apple rejected the notification {@code identifier}.
+	 *
+	 * @param resend  receives, in write order, the notifications written after
+	 *        the rejected one, or all of them if it isn't cached
+	 * @return the rejected notification, null if it isn't cached
+	 */
+	public synchronized ApnsNotification removeAfter(int identifier, Collection<? super ApnsNotification> resend) {
+		if (windowNanos > 0) {
+			evict(System.nanoTime());
+		}
+		final long found = find(identifier);
+		ApnsNotification rejected = null;
+		if (found >= 0) {
+			final int slot = (int) (found & ringMask);
+			rejected = ring[slot];
+			if (rejected == null) {
+				// handed to the delegate, decoded right away
+				final ByteBuffer frame = ByteBuffer.allocate(lengths[slot]);
+				arena.copy(frames[slot], lengths[slot], frame);
+				frame.flip();
+				rejected = Utilities.parseFrame(frame);
+			}
+		}
+		ByteBuffer chunk = null;
+		for (long sequence = found < 0 ? head : found + 1; sequence < tail; sequence++) {
+			final int slot = (int) (sequence & ringMask);
+			if (ring[slot] != null) {
+				resend.add(ring[slot]);
+				continue;
+			}
+			if (chunk == null || chunk.remaining() < lengths[slot]) {
+				chunk = ByteBuffer.allocateDirect((int) Math.min(RESEND_CHUNK, Math.max(lengths[slot], framedBytes(sequence))));
+			}
+			final int start = chunk.position();
+			arena.copy(frames[slot], lengths[slot], chunk);
+			final ByteBuffer frame = chunk.duplicate();
+			frame.flip();
+			frame.position(start);
+			resend.add(new FrameNotification(ids[slot], frame.slice()));
+		}
+		clear();
+		return rejected;
+	}
+
+	/**
+	 * Returns the bytes of the frames in the arena from {@code sequence} on.
+	 */
+	private long framedBytes(long sequence) {
+		long total = 0;
+		for (; sequence < tail; sequence++) {
+			final int slot = (int) (sequence & ringMask);
+			if (ring[slot] == null) {
+				total += lengths[slot];
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Returns how long ago, in nanoseconds, the notification {@code identifier}
+	 * was added, -1 if it isn't cached.
+	 */
+	public synchronized long ageOf(int identifier) {
+		final long found = find(identifier);
+		return found < 0 ? -1 : System.nanoTime() - writtenAt[(int) (found & ringMask)];
+	}
+
+	/**
+	 * @return the sequence of the cached notification, -1 if none
+	 */
+	private long find(int identifier) {
+		final long indexed = index[identifier & indexMask] - 1;
+		if (indexed >= head && indexed < tail && ids[(int) (indexed & ringMask)] == identifier) {
+			return indexed;
+		}
+		// the slot was taken over by a later identifier
+		for (long sequence = tail - 1; sequence >= head; sequence--) {
+			if (ids[(int) (sequence & ringMask)] == identifier) {
+				return sequence;
+			}
+		}
+		return -1;
+	}
+
+	public synchronized void clear() {
+		while (head < tail) {
+			evictOldest();
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package com.notnoop.apns.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue backed by a ring of sequenced slots.
+ *
+ * Any number of threads may offer and poll concurrently; neither operation
+ * ever takes a lock, and both are O(1).  The capacity is rounded up to a
+ * power of two.
+ */
+public class RingBuffer<E> {
+
+	private final int mask;
+	private final AtomicReferenceArray<E> elements;
+	private final AtomicLongArray sequences;
+	private final AtomicLong head = new AtomicLong(0);
+	private final AtomicLong tail = new AtomicLong(0);
+
+	public RingBuffer(int capacity) {
+		if (capacity < 1 || capacity > (1 << 30)) {
+			throw new IllegalArgumentException("capacity invalid:" + capacity);
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		this.mask = size - 1;
+		this.elements = new AtomicReferenceArray<E>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * @return false if the ring is full
+	 */
+	public boolean offer(E e) {
+		if (e == null) {
+			throw new NullPointerException();
+		}
+		while (true) {
+			final long pos = tail.get();
+			final int index = (int) (pos & mask);
+			final long diff = sequences.get(index) - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					elements.lazySet(index, e);
+					sequences.set(index, pos + 1);
+					return true;
+				}
+			} else if (diff < 0) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * @return the oldest element, or null if the ring is empty
+	 */
+	public E poll() {
+		while (true) {
+			final long pos = head.get();
+			final int index = (int) (pos & mask);
+			final long diff = sequences.get(index) - (pos + 1);
+			if (diff == 0) {
+				if (head.compareAndSet(pos, pos + 1)) {
+					final E e = elements.get(index);
+					elements.lazySet(index, null);
+					sequences.set(index, pos + mask + 1);
+					return e;
+				}
+			} else if (diff < 0) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of queued elements, exact only when quiescent
+	 */
+	public int size() {
+		final long size = tail.get() - head.get();
+		return (int) Math.max(0, Math.min(size, capacity()));
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+}
@@ -0,0 +1,168 @@
+package com.notnoop.apns.internal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A small set of selector threads driving the non-blocking sockets of all
+ * the connections of one service.
+ *
+ * Every connection is bound to one loop, and its socket is only touched by
+ * the thread of that loop.  Loop threads are started by the first task
+ * submitted to them.
+ */
+class SelectorLoopGroup implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(SelectorLoopGroup.class);
+
+	private static final AtomicInteger groupId = new AtomicInteger(0);
+
+	/**
+	 * Called by the loop when the channel registered with it is ready.
+	 */
+	interface Handler {
+		void ready(SelectionKey key);
+	}
+
+	private final SelectorLoop[] loops;
+	private final AtomicInteger next = new AtomicInteger(0);
+
+	SelectorLoopGroup(int loops) {
+		final String prefix = "SelectorLoop-" + groupId.getAndIncrement() + "-";
+		this.loops = new SelectorLoop[loops];
+		for (int i = 0; i < loops; i++) {
+			this.loops[i] = new SelectorLoop(prefix + i);
+		}
+	}
+
+	/**
+	 * @return the loop the next connection is bound to, in turn
+	 */
+	SelectorLoop next() {
+		return loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+	}
+
+	public void close() {
+		for (SelectorLoop loop : loops) {
+			loop.close();
+		}
+	}
+
+	static final class SelectorLoop implements Runnable {
+
+		private final String name;
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		private final AtomicBoolean started = new AtomicBoolean(false);
+		private volatile Thread thread;
+		private volatile boolean closed = false;
+
+		SelectorLoop(String name) {
+			this.name = name;
+			try {
+				this.selector = Selector.open();
+			} catch (IOException e) {
+				throw new IllegalStateException("Cannot open a selector", e);
+			}
+		}
+
+		/**
+		 * Runs the task on the loop thread.
+		 *
+		 * @throws RejectedExecutionException if the loop is closed
+		 */
+		void execute(Runnable task) {
+			if (closed) {
+				throw new RejectedExecutionException("Selector loop closed");
+			}
+			tasks.add(task);
+			if (started.compareAndSet(false, true)) {
+				final Thread t = new Thread(this, name);
+				t.setDaemon(true);
+				thread = t;
+				t.start();
+			} else if (Thread.currentThread() != thread) {
+				selector.wakeup();
+			}
+		}
+
+		/**
+		 * Registers the channel with this loop, only called on the loop thread.
+		 */
+		SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+			return channel.register(selector, ops, handler);
+		}
+
+		public void run() {
+			while (!closed) {
+				runTasks();
+				try {
+					if (tasks.isEmpty()) {
+						selector.select();
+					} else {
+						// queued by the loop itself, which doesn't wake up the selector
+						selector.selectNow();
+					}
+				} catch (IOException e) {
+					logger.error("Selector failed", e);
+					break;
+				}
+				final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					final SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isValid()) {
+						dispatch(key);
+					}
+				}
+			}
+			// tasks submitted before the loop was closed still run, they release their connections
+			runTasks();
+			for (SelectionKey key : selector.keys()) {
+				Utilities.close(key.channel());
+			}
+			Utilities.close(selector);
+		}
+
+		private void dispatch(SelectionKey key) {
+			try {
+				((Handler) key.attachment()).ready(key);
+			} catch (RuntimeException e) {
+				logger.error("Selector loop handler failed", e);
+			}
+		}
+
+		private void runTasks() {
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					logger.error("Selector loop task failed", e);
+				}
+			}
+		}
+
+		void close() {
+			closed = true;
+			if (started.compareAndSet(false, true)) {
+				// never started, nothing else will release the selector
+				Utilities.close(selector);
+			} else {
+				selector.wakeup();
+			}
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package com.notnoop.apns.internal;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.notnoop.apns.ApnsDelegate;
+
+/**
+ * The TLS sessions of all the connections of a service, so that a
+ * reconnect resumes the session of an earlier socket to the same gateway
+ * and costs one round trip instead of a full handshake.
+ *
+ * Sessions live in the client session context of the SSLContext, which
+ * keys them by gateway host and port, whatever the local address of the
+ * socket.  Every socket of the service must therefore be created through
+ * {@link #socketFactory()}, or by an engine reporting to
+ * {@link #handshakeCompleted(SSLSession, long)}, and given the gateway host.
+ */
+public class TlsSessionCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(TlsSessionCache.class);
+
+	private final ApnsDelegate delegate;
+	private final SSLSocketFactory socketFactory;
+	private final AtomicLong resumed = new AtomicLong();
+	private final AtomicLong full = new AtomicLong();
+
+	public TlsSessionCache(SSLContext sslContext, ApnsDelegate delegate) {
+		this.delegate = delegate == null ? ApnsDelegate.EMPTY : delegate;
+		this.socketFactory = new ObservedSocketFactory(sslContext.getSocketFactory());
+	}
+
+	/**
+	 * Sizes the session cache of {@code sslContext}, which the JDK defaults
+	 * to 20480 sessions kept for a day.
+	 *
+	 * @param cacheSize  maximum number of sessions, 0 for no limit
+	 * @param timeoutSeconds  how long a session can be resumed, 0 for no limit
+	 */
+	public static void configure(SSLContext sslContext, int cacheSize, int timeoutSeconds) {
+		final SSLSessionContext sessions = sslContext.getClientSessionContext();
+		if (sessions != null) {
+			sessions.setSessionCacheSize(cacheSize);
+			sessions.setSessionTimeout(timeoutSeconds);
+		}
+	}
+
+	/**
+	 * Returns the factory of the sockets of the service, which report their
+	 * handshakes.
+	 */
+	public SSLSocketFactory socketFactory() {
+		return socketFactory;
+	}
+
+	/**
+	 * Counts a completed handshake.  A resumed session was created by an
+	 * earlier handshake, so before {@code startedAt}.
+	 *
+	 * @param startedAt  when the socket started connecting, from {@link System#currentTimeMillis()}
+	 */
+	public void handshakeCompleted(SSLSession session, long startedAt) {
+		final boolean wasResumed = session.getCreationTime() < startedAt;
+		if (wasResumed) {
+			resumed.incrementAndGet();
+		} else {
+			full.incrementAndGet();
+		}
+		logger.debug("{} TLS handshake with {}:{}, {} resumed / {} full so far", wasResumed ? "Resumed" : "Full", //
+				session.getPeerHost(), session.getPeerPort(), resumed.get(), full.get());
+		delegate.tlsHandshakeCompleted(session.getPeerHost(), session.getPeerPort(), wasResumed);
+	}
+
+	/**
+	 * Returns the number of handshakes that resumed an earlier session.
+	 */
+	public long getResumedHandshakes() {
+		return resumed.get();
+	}
+
+	/**
+	 * Returns the number of full handshakes.
+	 */
+	public long getFullHandshakes() {
+		return full.get();
+	}
+
+	private Socket observe(Socket socket, final long startedAt) {
+		if (socket instanceof SSLSocket) {
+			((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+				public void handshakeCompleted(HandshakeCompletedEvent event) {
+					TlsSessionCache.this.handshakeCompleted(event.getSession(), startedAt);
+				}
+			});
+		}
+		return socket;
+	}
+
+	/**
+	 * Creates the sockets with the gateway host, the key of the sessions,
+	 * and registers for their handshakes.
+	 */
+	private class ObservedSocketFactory extends SSLSocketFactory {
+
+		private final SSLSocketFactory factory;
+
+		ObservedSocketFactory(SSLSocketFactory factory) {
+			this.factory = factory;
+		}
+
+		public String[] getDefaultCipherSuites() {
+			return factory.getDefaultCipherSuites();
+		}
+
+		public String[] getSupportedCipherSuites() {
+			return factory.getSupportedCipherSuites();
+		}
+
+		public Socket createSocket() throws IOException {
+			return observe(factory.createSocket(), System.currentTimeMillis());
+		}
+
+		public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+			return observe(factory.createSocket(s, host, port, autoClose), System.currentTimeMillis());
+		}
+
+		public Socket createSocket(String host, int port) throws IOException {
+			final long startedAt = System.currentTimeMillis();
+			return observe(factory.createSocket(host, port), startedAt);
+		}
+
+		public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+			final long startedAt = System.currentTimeMillis();
+			return observe(factory.createSocket(host, port, localHost, localPort), startedAt);
+		}
+
+		public Socket createSocket(InetAddress host, int port) throws IOException {
+			final long startedAt = System.currentTimeMillis();
+			return observe(factory.createSocket(host, port), startedAt);
+		}
+
+		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+			final long startedAt = System.currentTimeMillis();
+			return observe(factory.createSocket(address, port, localAddress, localPort), startedAt);
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package com.notnoop.apns.internal;
+
+import java.util.Arrays;
+
+import com.notnoop.apns.ApnsNotification;
+
+/**
+ * Consistent-hash ring mapping device tokens to the copies of a pool.
+ *
+ * Every copy owns {@link #POINTS} points of the ring, placed by hashing its
+ * index, and a token belongs to the copy owning the first point at or
+ * after the hash of its raw bytes.  Adding the copy at the next index, or
+ * removing the last one, only moves the tokens of the points it gains or
+ * loses, about one n-th of them.
+ *
+ * A ring is immutable, the pool builds a new one when its copies change.
+ * Looking a token up allocates nothing, nor does looking up a
+ * {@link HashableDeviceToken} notification; other notifications copy their
+ * token.
+ */
+final class TokenRing {
+
+	static final int POINTS = 128;
+
+	private final ApnsConnection[] copies;
+	private final long[] points;
+	private final ApnsConnection[] owners;
+
+	TokenRing(ApnsConnection[] copies) {
+		this.copies = copies;
+		final int size = copies.length * POINTS;
+		final long[] hashes = new long[size];
+		for (int copy = 0; copy < copies.length; copy++) {
+			for (int point = 0; point < POINTS; point++) {
+				// the copy in the low bits, to find it back once sorted
+				hashes[copy * POINTS + point] = (mix(((long) copy << 32) | point) & ~0xffffL) | copy;
+			}
+		}
+		Arrays.sort(hashes);
+		this.points = hashes;
+		this.owners = new ApnsConnection[size];
+		for (int i = 0; i < size; i++) {
+			owners[i] = copies[(int) (hashes[i] & 0xffff)];
+		}
+	}
+
+	/**
+	 * Whether the ring was built for exactly these copies.
+	 */
+	boolean isFor(ApnsConnection[] copies) {
+		return this.copies == copies;
+	}
+
+	/**
+	 * Returns the copy the device of {@code notification} belongs to.
+	 */
+	ApnsConnection get(ApnsNotification notification) {
+		if (notification instanceof HashableDeviceToken) {
+			return owner(((HashableDeviceToken) notification).hashDeviceToken());
+		}
+		return get(notification.getDeviceToken());
+	}
+
+	/**
+	 * Returns the copy {@code token} belongs to.
+	 */
+	ApnsConnection get(byte[] token) {
+		return owner(hash(token));
+	}
+
+	private ApnsConnection owner(long hash) {
+		int at = Arrays.binarySearch(points, hash);
+		if (at < 0) {
+			at = -at - 1;
+			if (at == points.length) {
+				at = 0;
+			}
+		}
+		return owners[at];
+	}
+
+	/**
+	 * FNV-1a over the raw bytes, then mixed so that close tokens spread.
+	 */
+	static long hash(byte[] token) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : token) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return mix(hash);
+	}
+
+	/**
+	 * The finalizer of MurmurHash3.
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -30,6 +30,7 @@
  */
 package com.notnoop.apns.internal;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.DataInputStream;
@@ -37,12 +38,22 @@ import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
 import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Base64;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Pattern;
 
 import javax.annotation.Nonnull;
@@ -54,6 +65,10 @@ import javax.net.ssl.TrustManagerFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.FramedApnsNotification;
+import com.notnoop.apns.PrewarmReport;
 import com.notnoop.exceptions.InvalidSSLConfig;
 
 public final class Utilities {
@@ -71,6 +86,10 @@ public final class Utilities {
     public static final String PRODUCTION_FEEDBACK_HOST = "feedback.push.apple.com";
     public static final int PRODUCTION_FEEDBACK_PORT = 2196;
 
+    public static final String SANDBOX_HTTP2_HOST = "api.sandbox.push.apple.com";
+    public static final String PRODUCTION_HTTP2_HOST = "api.push.apple.com";
+    public static final int HTTP2_PORT = 443;
+
     public static final int MAX_PAYLOAD_LENGTH = 2048;
 
     private Utilities() { throw new AssertionError("Uninstantiable class"); }
@@ -113,6 +132,27 @@ public final class Utilities {
            }
        }
     
+    /**
+     * Reads a PKCS#8 private key in PEM format, as the .p8 signing keys
+     * issued by Apple.
+     */
+    public static PrivateKey loadSigningKey(final InputStream pem) throws InvalidSSLConfig {
+        try {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(pem, "UTF-8"));
+            final StringBuilder base64 = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith("-----")) {
+                    base64.append(line.trim());
+                }
+            }
+            final byte[] der = Base64.getDecoder().decode(base64.toString());
+            return KeyFactory.getInstance("EC").generatePrivate(new PKCS8EncodedKeySpec(der));
+        } catch (final Exception e) {
+            throw new InvalidSSLConfig(e);
+        }
+    }
+
     private static final Pattern pattern = Pattern.compile("[ -]");
     public static byte[] decodeHex(final String deviceToken) {
         final String hex = pattern.matcher(deviceToken).replaceAll("");
@@ -176,21 +216,122 @@ public final class Utilities {
 
     public static byte[] marshallEnhanced(final byte command, final int identifier,
             final int expiryTime, final byte[] deviceToken, final byte[] payload) {
-        final ByteArrayOutputStream boas = new ByteArrayOutputStream();
-        final DataOutputStream dos = new DataOutputStream(boas);
+        final ByteBuffer buffer = ByteBuffer.allocate(enhancedLength(deviceToken.length, payload.length));
+        writeEnhanced(buffer, command, identifier, expiryTime, deviceToken, payload);
+        return buffer.array();
+    }
 
-        try {
-            dos.writeByte(command);
-            dos.writeInt(identifier);
-            dos.writeInt(expiryTime);
-            dos.writeShort(deviceToken.length);
-            dos.write(deviceToken);
-            dos.writeShort(payload.length);
-            dos.write(payload);
-            return boas.toByteArray();
-        } catch (final IOException e) {
-            throw new AssertionError();
+    /**
+     * Returns the length on the wire of a command 1 frame.
+     */
+    public static int enhancedLength(final int deviceTokenLength, final int payloadLength) {
+        return 1 + 4 + 4 + 2 + deviceTokenLength + 2 + payloadLength;
+    }
+
+    /**
+     * Writes a command 1 frame at the position of {@code buffer}, which needs
+     * {@link #enhancedLength(int, int)} bytes remaining.
+     */
+    public static void writeEnhanced(final ByteBuffer buffer, final byte command, final int identifier,
+            final int expiryTime, final byte[] deviceToken, final byte[] payload) {
+        buffer.put(command);
+        buffer.putInt(identifier);
+        buffer.putInt(expiryTime);
+        buffer.putShort((short) deviceToken.length).put(deviceToken);
+        buffer.putShort((short) payload.length).put(payload);
+    }
+
+    /*
+     * Items of the command 2 frame format
+     */
+    private static final byte ITEM_DEVICE_TOKEN = 1;
+    private static final byte ITEM_PAYLOAD = 2;
+    private static final byte ITEM_IDENTIFIER = 3;
+    private static final byte ITEM_EXPIRATION_DATE = 4;
+    private static final byte ITEM_PRIORITY = 5;
+    private static final int ITEM_HEADER = 1 + 2;
+
+    /**
+     * Returns the length on the wire of a command 2 frame.
+     */
+    public static int framedLength(final int deviceTokenLength, final int payloadLength) {
+        return 1 + 4 + framedItemsLength(deviceTokenLength, payloadLength);
+    }
+
+    private static int framedItemsLength(final int deviceTokenLength, final int payloadLength) {
+        return ITEM_HEADER + deviceTokenLength
+                + ITEM_HEADER + payloadLength
+                + ITEM_HEADER + 4
+                + ITEM_HEADER + 4
+                + ITEM_HEADER + 1;
+    }
+
+    /**
+     * Writes a command 2 frame at the position of {@code buffer}, which needs
+     * {@link #framedLength(int, int)} bytes remaining.
+     */
+    public static void writeFramed(final ByteBuffer buffer, final int identifier, final int expiryTime,
+            final byte[] deviceToken, final byte[] payload, final int priority) {
+        buffer.put((byte) 2);
+        buffer.putInt(framedItemsLength(deviceToken.length, payload.length));
+
+        buffer.put(ITEM_DEVICE_TOKEN).putShort((short) deviceToken.length).put(deviceToken);
+        buffer.put(ITEM_PAYLOAD).putShort((short) payload.length).put(payload);
+        buffer.put(ITEM_IDENTIFIER).putShort((short) 4).putInt(identifier);
+        buffer.put(ITEM_EXPIRATION_DATE).putShort((short) 4).putInt(expiryTime);
+        buffer.put(ITEM_PRIORITY).putShort((short) 1).put((byte) priority);
+    }
+
+    /**
+     * Decodes a command 1 or command 2 frame, as written by
+     * {@link #writeEnhanced} or {@link #writeFramed}, from the position of
+     * {@code frame}.
+     *
+     * @throws IllegalArgumentException for any other command
+     */
+    public static ApnsNotification parseFrame(final ByteBuffer frame) {
+        final int command = frame.get() & 0xFF;
+        if (command == 1) {
+            final int identifier = frame.getInt();
+            final int expiry = frame.getInt();
+            final byte[] deviceToken = new byte[frame.getShort() & 0xFFFF];
+            frame.get(deviceToken);
+            final byte[] payload = new byte[frame.getShort() & 0xFFFF];
+            frame.get(payload);
+            return new EnhancedApnsNotification(identifier, expiry, deviceToken, payload);
+        }
+        if (command != 2) {
+            throw new IllegalArgumentException("Unexpected command byte " + command);
         }
+        final int end = frame.getInt() + frame.position();
+        byte[] deviceToken = null, payload = null;
+        int identifier = 0, expiry = 0, priority = ApnsNotification.PRIORITY_IMMEDIATE;
+        while (frame.position() < end) {
+            final byte item = frame.get();
+            final int length = frame.getShort() & 0xFFFF;
+            switch (item) {
+            case ITEM_DEVICE_TOKEN:
+                deviceToken = new byte[length];
+                frame.get(deviceToken);
+                break;
+            case ITEM_PAYLOAD:
+                payload = new byte[length];
+                frame.get(payload);
+                break;
+            case ITEM_IDENTIFIER:
+                identifier = frame.getInt();
+                break;
+            case ITEM_EXPIRATION_DATE:
+                expiry = frame.getInt();
+                break;
+            case ITEM_PRIORITY:
+                priority = frame.get() & 0xFF;
+                break;
+            default:
+                frame.position(frame.position() + length);
+            }
+        }
+        return new FramedApnsNotification(identifier, expiry, deviceToken, payload, priority);
     }
 
     public static Map<byte[], Integer> parseFeedbackStreamRaw(final InputStream in) {
@@ -256,6 +397,27 @@ public final class Utilities {
         }
     }
 
+    /**
+     * Waits for a connection to come up and reports the outcome, see
+     * {@link ApnsConnection#prewarm(long)}.
+     *
+     * @param startNanos when pre-warming started, from {@link System#nanoTime()}
+     */
+    public static PrewarmReport awaitPrewarm(final Future<?> connected, final long startNanos, final long timeoutMillis) {
+        Throwable failure = null;
+        try {
+            connected.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = e;
+        } catch (final ExecutionException e) {
+            failure = e.getCause();
+        } catch (final TimeoutException e) {
+            failure = e;
+        }
+        return PrewarmReport.of(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos), failure);
+    }
+
     public static byte[] copyOf(final byte[] bytes) {
         final byte[] copy = new byte[bytes.length];
         System.arraycopy(bytes, 0, copy, 0, bytes.length);
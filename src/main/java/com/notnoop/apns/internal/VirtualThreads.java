@@ -0,0 +1,117 @@
+package com.notnoop.apns.internal;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates virtual threads on the JVMs that have them.
+ *
+ * The library is built for Java 8, so {@code Thread.ofVirtual()} is looked up
+ * reflectively once; older JVMs simply report that virtual threads are not
+ * supported.
+ *
+ * Virtual threads are cheap to create and must not be pooled: blocking work
+ * runs on a thread per task, see {@link #perTaskExecutor(ThreadFactory)}, and
+ * only timers stay on a small pool of platform threads.
+ */
+public final class VirtualThreads {
+
+	private static final Logger logger = LoggerFactory.getLogger(VirtualThreads.class);
+
+	private static final Method OF_VIRTUAL;
+	private static final Method NAME;
+	private static final Method FACTORY;
+	private static final Method IS_VIRTUAL;
+	private static final Method PER_TASK;
+
+	static {
+		Method ofVirtual = null;
+		Method name = null;
+		Method factory = null;
+		Method isVirtual = null;
+		Method perTask = null;
+		try {
+			final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			name = builder.getMethod("name", String.class, long.class);
+			factory = builder.getMethod("factory");
+			isVirtual = Thread.class.getMethod("isVirtual");
+			perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			// preview builds throw here unless previews are enabled
+			factory.invoke(ofVirtual.invoke(null));
+		} catch (Exception e) {
+			logger.debug("Virtual threads not supported", e);
+			ofVirtual = null;
+		} catch (LinkageError e) {
+			logger.debug("Virtual threads not supported", e);
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		FACTORY = factory;
+		IS_VIRTUAL = isVirtual;
+		PER_TASK = perTask;
+	}
+
+	private VirtualThreads() {
+	}
+
+	public static boolean isSupported() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * @param prefix  the name of the threads, followed by a counter
+	 * @return a factory of virtual threads
+	 * @throws UnsupportedOperationException if the JVM has no virtual threads
+	 */
+	public static ThreadFactory factory(String prefix) {
+		if (!isSupported()) {
+			throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+		}
+		try {
+			return (ThreadFactory) FACTORY.invoke(NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 0L));
+		} catch (Exception e) {
+			throw new UnsupportedOperationException("Virtual threads not available", e);
+		}
+	}
+
+	/**
+	 * Returns true if {@code threadFactory} creates virtual threads.
+	 */
+	public static boolean isVirtual(ThreadFactory threadFactory) {
+		if (!isSupported() || threadFactory == null) {
+			return false;
+		}
+		try {
+			// never started
+			return (Boolean) IS_VIRTUAL.invoke(threadFactory.newThread(new Runnable() {
+				public void run() {
+				}
+			}));
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return an executor starting a new thread of {@code threadFactory} for
+	 * every task
+	 * @throws UnsupportedOperationException if the JVM has no virtual threads
+	 */
+	public static ExecutorService perTaskExecutor(ThreadFactory threadFactory) {
+		if (!isSupported()) {
+			throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+		}
+		try {
+			return (ExecutorService) PER_TASK.invoke(null, threadFactory);
+		} catch (Exception e) {
+			throw new UnsupportedOperationException("Virtual threads not available", e);
+		}
+	}
+}
@@ -15,19 +15,48 @@ public class ApnsDeliveryErrorException extends ApnsException {
 	private static final long serialVersionUID = -5682875904814023912L;
 	
 	private final DeliveryError deliveryError;
+	private final int status;
+	private final String reason;
 
     public ApnsDeliveryErrorException(DeliveryError error) {
+        this(error, 0, null);
+    }
+
+    /**
+     * @param status  the HTTP status of an HTTP/2 provider API response
+     * @param reason  the reason given in the response body, may be null
+     */
+    public ApnsDeliveryErrorException(DeliveryError error, int status, String reason) {
         this.deliveryError = error;
+        this.status = status;
+        this.reason = reason;
     }
 
     @Override
     public String getMessage() {
+        if (status != 0) {
+            return "Failed to deliver notification with status " + status + " (" + reason + ")";
+        }
         return "Failed to deliver notification with error code " + deliveryError.code();
     }
 
     public DeliveryError getDeliveryError() {
         return deliveryError;
     }
+
+    /**
+     * @return the HTTP status of the rejection, 0 for the binary gateway
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the reason Apple gave for the rejection, null for the binary gateway
+     */
+    public String getReason() {
+        return reason;
+    }
     
     
 }
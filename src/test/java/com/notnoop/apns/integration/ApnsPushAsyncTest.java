@@ -0,0 +1,163 @@
+package com.notnoop.apns.integration;
+
+import static com.notnoop.apns.utils.FixedCertificates.LOCALHOST;
+import static com.notnoop.apns.utils.FixedCertificates.clientContext;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.notnoop.apns.APNS;
+import com.notnoop.apns.ApnsPushFuture;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.DeliveryError;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.internal.Utilities;
+import com.notnoop.apns.utils.FixedCertificates;
+import com.notnoop.apns.utils.Simulator.FailingApnsServerSimulator;
+import com.notnoop.exceptions.ApnsDeliveryErrorException;
+import com.notnoop.exceptions.NetworkIOException;
+
+public class ApnsPushAsyncTest {
+
+    private static final int ERROR_RESPONSE_WINDOW = 300;
+
+    private FailingApnsServerSimulator server;
+    private ApnsService service;
+
+    @Before
+    public void startup() {
+        server = new FailingApnsServerSimulator(FixedCertificates.serverContext().getServerSocketFactory());
+        server.start();
+        service = APNS.newService()
+                .withSSLContext(clientContext())
+                .withGatewayDestination(LOCALHOST, server.getEffectiveGatewayPort())
+                .withFeedbackDestination(LOCALHOST, server.getEffectiveFeedbackPort())
+                .withErrorResponseWindow(ERROR_RESPONSE_WINDOW)
+                .build();
+    }
+
+    @After
+    public void tearDown() {
+        service.stop();
+        server.stop();
+    }
+
+    @Test
+    public void writtenThenDelivered() throws Exception {
+        EnhancedApnsNotification notification = notification(0);
+        ApnsPushFuture future = service.pushAsync(notification);
+
+        assertSame(notification, future.get(5, TimeUnit.SECONDS));
+        assertSame(notification, future.delivered().get(5, TimeUnit.SECONDS));
+        assertEquals(notification.getIdentifier(), server.getQueue().poll(5, TimeUnit.SECONDS).getIdentifier());
+    }
+
+    @Test
+    public void rejectedNotificationFailsDelivery() throws Exception {
+        ApnsPushFuture future = service.pushAsync(notification(DeliveryError.INVALID_TOKEN.code()));
+
+        future.get(5, TimeUnit.SECONDS);
+        try {
+            future.delivered().get(5, TimeUnit.SECONDS);
+            fail("delivery should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ApnsDeliveryErrorException);
+            assertEquals(DeliveryError.INVALID_TOKEN, ((ApnsDeliveryErrorException) e.getCause()).getDeliveryError());
+        }
+    }
+
+    @Test
+    public void deliveryWaitsForTheErrorResponseWindow() throws Exception {
+        ApnsPushFuture future = service.pushAsync(notification(0));
+
+        future.get(5, TimeUnit.SECONDS);
+        assertFalse(future.delivered().isDone());
+        future.delivered().get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void theSameNotificationPushedTwiceIsTrackedTwice() throws Exception {
+        EnhancedApnsNotification notification = notification(0);
+        ApnsPushFuture first = service.pushAsync(notification);
+        ApnsPushFuture second = service.pushAsync(notification);
+
+        assertSame(notification, first.delivered().get(5, TimeUnit.SECONDS));
+        assertSame(notification, second.delivered().get(5, TimeUnit.SECONDS));
+        assertNotNull(server.getQueue().poll(5, TimeUnit.SECONDS));
+        assertNotNull(server.getQueue().poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void anInterruptedPushThrowsAndStaysInterrupted() throws Exception {
+        // takes the connection, never answers the handshake
+        ServerSocket silent = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        ApnsService stalled = APNS.newService()
+                .withSSLContext(clientContext())
+                .withGatewayDestination(LOCALHOST, silent.getLocalPort())
+                .withFeedbackDestination(LOCALHOST, server.getEffectiveFeedbackPort())
+                .withReadTimeout(1000)
+                .build();
+        try {
+            Thread.currentThread().interrupt();
+            try {
+                stalled.push(notification(0));
+                fail("an interrupted push isn't written");
+            } catch (NetworkIOException expected) {
+            }
+            assertTrue(Thread.interrupted());
+        } finally {
+            stalled.stop(Duration.ofMillis(100));
+            silent.close();
+        }
+    }
+
+    @Test
+    public void pooledServiceOnVirtualThreads() throws Exception {
+        // falls back to platform threads before Java 21
+        ApnsService pooled = APNS.newService()
+                .withSSLContext(clientContext())
+                .withGatewayDestination(LOCALHOST, server.getEffectiveGatewayPort())
+                .withFeedbackDestination(LOCALHOST, server.getEffectiveFeedbackPort())
+                .withErrorResponseWindow(ERROR_RESPONSE_WINDOW)
+                .withVirtualThreads()
+                .asPool(4)
+                .build();
+        try {
+            EnhancedApnsNotification notification = notification(0);
+            assertSame(notification, pooled.pushAsync(notification).delivered().get(5, TimeUnit.SECONDS));
+        } finally {
+            pooled.stop();
+        }
+    }
+
+    /**
+     * A notification the {@link FailingApnsServerSimulator} accepts for
+     * {@code code} 0, and rejects with {@code code} as error otherwise.
+     */
+    private static EnhancedApnsNotification notification(int code) {
+        byte[] deviceToken = new byte[32];
+        if (code == 0) {
+            deviceToken[0] = 42;
+        } else {
+            deviceToken[0] = (byte) 0xff;
+            deviceToken[1] = (byte) 0xff;
+            deviceToken[2] = (byte) 0;
+            deviceToken[3] = (byte) code;
+        }
+        return new EnhancedApnsNotification(EnhancedApnsNotification.INCREMENT_ID(), 1, deviceToken,
+                Utilities.toUTF8Bytes("{\"aps\":{}}"));
+    }
+}
@@ -0,0 +1,92 @@
+package com.notnoop.apns.integration;
+
+import static com.notnoop.apns.utils.FixedCertificates.LOCALHOST;
+import static com.notnoop.apns.utils.FixedCertificates.clientContext;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.notnoop.apns.APNS;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsPushFuture;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.FramedApnsNotification;
+import com.notnoop.apns.internal.Utilities;
+import com.notnoop.apns.utils.FixedCertificates;
+import com.notnoop.apns.utils.Simulator.ApnsServerSimulator;
+import com.notnoop.apns.utils.Simulator.FailingApnsServerSimulator;
+
+public class FramedNotificationTest {
+
+    private FailingApnsServerSimulator server;
+    private ApnsService service;
+
+    @Before
+    public void startup() {
+        server = new FailingApnsServerSimulator(FixedCertificates.serverContext().getServerSocketFactory());
+        server.start();
+        service = APNS.newService()
+                .withSSLContext(clientContext())
+                .withGatewayDestination(LOCALHOST, server.getEffectiveGatewayPort())
+                .withFeedbackDestination(LOCALHOST, server.getEffectiveFeedbackPort())
+                .withWriteCoalescing(16 * 1024, 2)
+                .build();
+    }
+
+    @After
+    public void tearDown() {
+        service.stop();
+        server.stop();
+    }
+
+    @Test
+    public void framedNotificationIsReceivedWithItsPriority() throws Exception {
+        FramedApnsNotification notification = new FramedApnsNotification(11, 1234, token(),
+                Utilities.toUTF8Bytes("{\"aps\":{}}"), ApnsNotification.PRIORITY_CONSERVE_POWER);
+        service.push(notification);
+
+        ApnsServerSimulator.Notification received = server.getQueue().poll(5, TimeUnit.SECONDS);
+        assertNotNull(received);
+        assertEquals(2, received.getType());
+        assertEquals(11, received.getIdentifier());
+        assertEquals(1234, received.getExpiry());
+        assertEquals(ApnsNotification.PRIORITY_CONSERVE_POWER, received.getPriority());
+        assertArrayEquals(notification.getDeviceToken(), received.getDeviceToken());
+        assertArrayEquals(notification.getPayload(), received.getPayload());
+    }
+
+    @Test
+    public void framedAndEnhancedFramesArePackedBackToBack() throws Exception {
+        List<ApnsPushFuture> futures = new ArrayList<ApnsPushFuture>();
+        for (int i = 0; i < 200; i++) {
+            ApnsNotification notification = i % 2 == 0
+                    ? new FramedApnsNotification(i, 1, token(), Utilities.toUTF8Bytes("{}"), ApnsNotification.PRIORITY_IMMEDIATE)
+                    : new EnhancedApnsNotification(i, 1, token(), Utilities.toUTF8Bytes("{}"));
+            futures.add(service.pushAsync(notification));
+        }
+        for (ApnsPushFuture future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        for (int i = 0; i < 200; i++) {
+            ApnsServerSimulator.Notification received = server.getQueue().poll(5, TimeUnit.SECONDS);
+            assertNotNull(received);
+            assertEquals(i, received.getIdentifier());
+            assertEquals(i % 2 == 0 ? 2 : 1, received.getType());
+        }
+    }
+
+    private static byte[] token() {
+        byte[] deviceToken = new byte[32];
+        deviceToken[0] = 42;
+        return deviceToken;
+    }
+}
@@ -0,0 +1,134 @@
+package com.notnoop.apns.integration;
+
+import static com.notnoop.apns.utils.FixedCertificates.LOCALHOST;
+import static com.notnoop.apns.utils.FixedCertificates.clientContext;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.notnoop.apns.APNS;
+import com.notnoop.apns.ApnsPushFuture;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.ApnsServiceBuilder;
+import com.notnoop.apns.DrainReport;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.Transport;
+import com.notnoop.apns.internal.Utilities;
+import com.notnoop.apns.utils.FixedCertificates;
+import com.notnoop.apns.utils.Simulator.FailingApnsServerSimulator;
+
+public class GracefulStopTest {
+
+    private static final int NOTIFICATIONS = 20;
+
+    private FailingApnsServerSimulator server;
+
+    @Before
+    public void startup() {
+        server = new FailingApnsServerSimulator(FixedCertificates.serverContext().getServerSocketFactory());
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void coalescedNotificationsAreFlushedAndConfirmed() throws Exception {
+        // the batch would be held back for far longer than the stop takes
+        assertDrained(builder(Transport.BINARY, 300).withWriteCoalescing(1 << 20, 60000).build());
+    }
+
+    @Test
+    public void nioNotificationsAreConfirmed() throws Exception {
+        assertDrained(builder(Transport.NIO, 300).build());
+    }
+
+    @Test
+    public void pooledNotificationsAreConfirmed() throws Exception {
+        assertDrained(builder(Transport.BINARY, 300).asPool(3).build());
+    }
+
+    @Test
+    public void unconfirmedNotificationsAreAbandonedAtTheDeadline() throws Exception {
+        ApnsService service = builder(Transport.BINARY, 60000).build();
+        List<ApnsPushFuture> futures = push(service);
+
+        DrainReport report = service.stop(Duration.ofMillis(500));
+
+        assertEquals(0, report.getConfirmed());
+        assertEquals(NOTIFICATIONS, report.getAbandoned().size());
+        assertTrue(!report.isComplete());
+        assertTrue(String.valueOf(report.getElapsedMillis()), report.getElapsedMillis() < 5000);
+        for (ApnsPushFuture future : futures) {
+            assertTrue(report.getAbandoned().contains(future.getNotification()));
+            try {
+                future.delivered().get();
+                fail("an abandoned notification isn't delivered");
+            } catch (ExecutionException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void notificationsAreRefusedOnceStopped() throws Exception {
+        ApnsService service = builder(Transport.BINARY, 300).build();
+        service.stop(Duration.ofSeconds(5));
+        try {
+            service.pushAsync(notification()).get();
+            fail("a stopped service takes no notification");
+        } catch (ExecutionException expected) {
+        }
+    }
+
+    private void assertDrained(ApnsService service) throws Exception {
+        List<ApnsPushFuture> futures = push(service);
+
+        DrainReport report = service.stop(Duration.ofSeconds(10));
+
+        assertEquals(report.toString(), NOTIFICATIONS, report.getConfirmed());
+        assertEquals(0, report.getFailed());
+        assertTrue(report.isComplete());
+        for (ApnsPushFuture future : futures) {
+            // completed right after being counted
+            assertSame(future.getNotification(), future.delivered().get(1, TimeUnit.SECONDS));
+        }
+        assertEquals(NOTIFICATIONS, server.getQueue().size());
+    }
+
+    private static List<ApnsPushFuture> push(ApnsService service) {
+        List<ApnsPushFuture> futures = new ArrayList<ApnsPushFuture>();
+        for (int i = 0; i < NOTIFICATIONS; i++) {
+            futures.add(service.pushAsync(notification()));
+        }
+        return futures;
+    }
+
+    private ApnsServiceBuilder builder(Transport transport, int errorResponseWindow) {
+        return APNS.newService()
+                .withSSLContext(clientContext())
+                .withGatewayDestination(LOCALHOST, server.getEffectiveGatewayPort())
+                .withFeedbackDestination(LOCALHOST, server.getEffectiveFeedbackPort())
+                .withTransport(transport)
+                .withErrorResponseWindow(errorResponseWindow);
+    }
+
+    private static EnhancedApnsNotification notification() {
+        byte[] deviceToken = new byte[32];
+        deviceToken[0] = 42;
+        return new EnhancedApnsNotification(EnhancedApnsNotification.INCREMENT_ID(), 1, deviceToken,
+                Utilities.toUTF8Bytes("{\"aps\":{}}"));
+    }
+}
@@ -0,0 +1,204 @@
+package com.notnoop.apns.integration;
+
+import static com.notnoop.apns.utils.FixedCertificates.LOCALHOST;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.notnoop.apns.APNS;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsPushFuture;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.DeliveryError;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.FramedApnsNotification;
+import com.notnoop.apns.OverflowPolicy;
+import com.notnoop.apns.Transport;
+import com.notnoop.apns.internal.ApnsHttp2Connection;
+import com.notnoop.apns.internal.Utilities;
+import com.notnoop.apns.utils.Simulator.Http2ApnsServerSimulator;
+import com.notnoop.exceptions.ApnsDeliveryErrorException;
+import com.notnoop.exceptions.QueueFullException;
+
+public class Http2TransportTest {
+
+    private static final String TOPIC = "com.notnoop.test";
+
+    private Http2ApnsServerSimulator server;
+    private ApnsService service;
+
+    @Before
+    public void startup() {
+        server = new Http2ApnsServerSimulator();
+        server.start();
+        service = APNS.newService()
+                .withSSLContext(server.clientContext())
+                .withTransport(Transport.HTTP2)
+                .withHttp2Destination(LOCALHOST, server.getPort())
+                .withTopic(TOPIC)
+                .build();
+    }
+
+    @After
+    public void tearDown() {
+        service.stop();
+        server.stop();
+    }
+
+    @Test
+    public void notificationIsPostedToItsDevice() throws Exception {
+        FramedApnsNotification notification = new FramedApnsNotification(1, 1234, token(1),
+                Utilities.toUTF8Bytes("{\"aps\":{}}"), ApnsNotification.PRIORITY_CONSERVE_POWER);
+
+        ApnsPushFuture future = service.pushAsync(notification);
+        future.delivered().get(5, TimeUnit.SECONDS);
+
+        Http2ApnsServerSimulator.Request request = server.getQueue().poll(5, TimeUnit.SECONDS);
+        assertNotNull(request);
+        assertEquals(Utilities.encodeHex(token(1)).toLowerCase(), request.getDeviceToken());
+        assertEquals(TOPIC, request.getTopic());
+        assertEquals(ApnsNotification.PRIORITY_CONSERVE_POWER, request.getPriority());
+        assertEquals(1234, request.getExpiration());
+        assertArrayEquals(notification.getPayload(), request.getPayload());
+    }
+
+    @Test
+    public void rejectionFailsOnlyItsOwnStream() throws Exception {
+        server.reject(Utilities.encodeHex(token(2)), 400, "BadDeviceToken");
+
+        ApnsPushFuture rejected = service.pushAsync(notification(token(2)));
+        ApnsPushFuture accepted = service.pushAsync(notification(token(3)));
+
+        accepted.delivered().get(5, TimeUnit.SECONDS);
+        rejected.get(5, TimeUnit.SECONDS);
+        try {
+            rejected.delivered().get(5, TimeUnit.SECONDS);
+            fail("delivery should have failed");
+        } catch (ExecutionException e) {
+            ApnsDeliveryErrorException cause = (ApnsDeliveryErrorException) e.getCause();
+            assertEquals(DeliveryError.INVALID_TOKEN, cause.getDeliveryError());
+            assertEquals(400, cause.getStatus());
+            assertEquals("BadDeviceToken", cause.getReason());
+        }
+    }
+
+    @Test
+    public void concurrentStreamsShareOneConnection() throws Exception {
+        final int count = 200;
+        final long latency = 200;
+        server.setLatency(latency);
+
+        final long start = System.nanoTime();
+        List<ApnsPushFuture> futures = new ArrayList<ApnsPushFuture>();
+        for (int i = 0; i < count; i++) {
+            futures.add(service.pushAsync(notification(token(i))));
+        }
+        for (ApnsPushFuture future : futures) {
+            future.delivered().get(10, TimeUnit.SECONDS);
+        }
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // one at a time this would take count * latency
+        assertTrue("took " + elapsed + "ms", elapsed < count * latency / 4);
+
+        Set<Integer> sequenceNumbers = new HashSet<Integer>();
+        for (int i = 0; i < count; i++) {
+            sequenceNumbers.add(server.getQueue().poll(5, TimeUnit.SECONDS).getSequenceNumber());
+        }
+        // all streams were numbered on the same connection
+        assertEquals(count, sequenceNumbers.size());
+    }
+
+    @Test
+    public void notificationsBeyondTheStreamsWaitInTheBoundedQueue() throws Exception {
+        final int streams = 20;
+        final int capacity = 10;
+        final int rejected = 5;
+        server.setLatency(300);
+        ApnsHttp2Connection connection = new ApnsHttp2Connection(LOCALHOST, server.getPort(), server.clientContext(),
+                TOPIC, null, 10000);
+        connection.setMaxConcurrentStreams(streams);
+        connection.setOutboundQueue(capacity, Long.MAX_VALUE, OverflowPolicy.FAIL_FAST, 0, 80, 50);
+        try {
+            List<ApnsPushFuture> futures = new ArrayList<ApnsPushFuture>();
+            for (int i = 0; i < streams + capacity + rejected; i++) {
+                ApnsPushFuture future = new ApnsPushFuture(notification(token(i)));
+                connection.sendMessageAsync(future.getNotification(), future);
+                futures.add(future);
+            }
+            assertEquals(streams + capacity, connection.getQueueDepth());
+            int full = 0;
+            for (ApnsPushFuture future : futures) {
+                if (future.isCompletedExceptionally()) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof QueueFullException);
+                    }
+                    full++;
+                }
+            }
+            assertEquals(rejected, full);
+            // the queued ones are sent as the first responses come back
+            for (ApnsPushFuture future : futures) {
+                if (!future.isCompletedExceptionally()) {
+                    future.delivered().get(10, TimeUnit.SECONDS);
+                }
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void signingKeyAuthenticatesEveryRequest() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        ApnsService tokenService = APNS.newService()
+                .withSSLContext(server.clientContext())
+                .withTransport(Transport.HTTP2)
+                .withHttp2Destination(LOCALHOST, server.getPort())
+                .withTopic(TOPIC)
+                .withSigningKey(generator.generateKeyPair().getPrivate(), "ABC123DEFG", "DEF123GHIJ")
+                .build();
+        try {
+            tokenService.pushAsync(notification(token(4))).delivered().get(5, TimeUnit.SECONDS);
+            tokenService.pushAsync(notification(token(5))).delivered().get(5, TimeUnit.SECONDS);
+        } finally {
+            tokenService.stop();
+        }
+
+        String first = server.getQueue().poll(5, TimeUnit.SECONDS).getAuthorization();
+        String second = server.getQueue().poll(5, TimeUnit.SECONDS).getAuthorization();
+        assertTrue(first, first.startsWith("bearer "));
+        // signed once, not per request
+        assertEquals(first, second);
+    }
+
+    private static ApnsNotification notification(byte[] token) {
+        return new FramedApnsNotification(EnhancedApnsNotification.INCREMENT_ID(), 0, token, Utilities.toUTF8Bytes("{}"),
+                ApnsNotification.PRIORITY_IMMEDIATE);
+    }
+
+    private static byte[] token(int id) {
+        byte[] deviceToken = new byte[32];
+        deviceToken[0] = (byte) (id >> 8);
+        deviceToken[1] = (byte) id;
+        return deviceToken;
+    }
+}
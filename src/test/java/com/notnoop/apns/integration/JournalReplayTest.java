@@ -0,0 +1,113 @@
+package com.notnoop.apns.integration;
+
+import static com.notnoop.apns.utils.FixedCertificates.LOCALHOST;
+import static com.notnoop.apns.utils.FixedCertificates.clientContext;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.notnoop.apns.APNS;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.ApnsServiceBuilder;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.Transport;
+import com.notnoop.apns.internal.FrameJournal;
+import com.notnoop.apns.internal.Utilities;
+import com.notnoop.apns.utils.FixedCertificates;
+import com.notnoop.apns.utils.Simulator.ApnsServerSimulator.Notification;
+import com.notnoop.apns.utils.Simulator.FailingApnsServerSimulator;
+
+public class JournalReplayTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FailingApnsServerSimulator server;
+
+    @Before
+    public void startup() {
+        server = new FailingApnsServerSimulator(FixedCertificates.serverContext().getServerSocketFactory());
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void unsettledNotificationsAreReplayedOnBuild() throws Exception {
+        assertReplayed(Transport.BINARY);
+    }
+
+    @Test
+    public void nioUnsettledNotificationsAreReplayedOnBuild() throws Exception {
+        assertReplayed(Transport.NIO);
+    }
+
+    @Test
+    public void theJournalIsOpenedByBuildNotByTheBuilder() throws Exception {
+        File dir = new File(folder.getRoot(), "journal");
+        ApnsServiceBuilder builder = APNS.newService()
+                .withSSLContext(clientContext())
+                .withGatewayDestination(LOCALHOST, server.getEffectiveGatewayPort())
+                .withFeedbackDestination(LOCALHOST, server.getEffectiveFeedbackPort())
+                .withJournal(dir);
+        assertTrue(!dir.exists());
+
+        ApnsService service = builder.build();
+        try {
+            assertTrue(dir.isDirectory());
+        } finally {
+            service.stop();
+        }
+    }
+
+    private void assertReplayed(Transport transport) throws Exception {
+        File dir = folder.newFolder();
+        EnhancedApnsNotification first = notification(1);
+        EnhancedApnsNotification second = notification(2);
+        // written right before the process died
+        FrameJournal crashed = FrameJournal.open(dir, FrameJournal.DEFAULT_SEGMENT_SIZE);
+        crashed.append(Arrays.asList(first, second));
+
+        ApnsService service = APNS.newService()
+                .withSSLContext(clientContext())
+                .withGatewayDestination(LOCALHOST, server.getEffectiveGatewayPort())
+                .withFeedbackDestination(LOCALHOST, server.getEffectiveFeedbackPort())
+                .withTransport(transport)
+                .withJournal(dir)
+                .build();
+        try {
+            for (EnhancedApnsNotification expected : new EnhancedApnsNotification[] { first, second }) {
+                Notification received = server.getQueue().poll(5, TimeUnit.SECONDS);
+                assertNotNull(received);
+                assertEquals(expected.getIdentifier(), received.getIdentifier());
+                assertArrayEquals(expected.getDeviceToken(), received.getDeviceToken());
+            }
+        } finally {
+            service.stop();
+        }
+        // stopping settled the journal
+        assertTrue(FrameJournal.open(dir, FrameJournal.DEFAULT_SEGMENT_SIZE).getRecovered().isEmpty());
+    }
+
+    private static EnhancedApnsNotification notification(int code) {
+        byte[] deviceToken = new byte[32];
+        deviceToken[0] = 42;
+        deviceToken[1] = (byte) code;
+        return new EnhancedApnsNotification(EnhancedApnsNotification.INCREMENT_ID(), 1, deviceToken,
+                Utilities.toUTF8Bytes("{\"aps\":{}}"));
+    }
+}
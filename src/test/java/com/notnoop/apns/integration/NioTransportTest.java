@@ -0,0 +1,154 @@
+package com.notnoop.apns.integration;
+
+import static com.notnoop.apns.utils.FixedCertificates.LOCALHOST;
+import static com.notnoop.apns.utils.FixedCertificates.clientContext;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.notnoop.apns.APNS;
+import com.notnoop.apns.ApnsPushFuture;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.DeliveryError;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.Transport;
+import com.notnoop.apns.internal.Utilities;
+import com.notnoop.apns.utils.FixedCertificates;
+import com.notnoop.apns.utils.Simulator.ApnsServerSimulator;
+import com.notnoop.apns.utils.Simulator.FailingApnsServerSimulator;
+import com.notnoop.exceptions.ApnsDeliveryErrorException;
+
+public class NioTransportTest {
+
+    private static final int ERROR_RESPONSE_WINDOW = 300;
+
+    private FailingApnsServerSimulator server;
+    private ApnsService service;
+
+    @Before
+    public void startup() {
+        server = new FailingApnsServerSimulator(FixedCertificates.serverContext().getServerSocketFactory());
+        server.start();
+        service = APNS.newService()
+                .withSSLContext(clientContext())
+                .withGatewayDestination(LOCALHOST, server.getEffectiveGatewayPort())
+                .withFeedbackDestination(LOCALHOST, server.getEffectiveFeedbackPort())
+                .withTransport(Transport.NIO)
+                .withEventLoops(2)
+                .withErrorResponseWindow(ERROR_RESPONSE_WINDOW)
+                .build();
+    }
+
+    @After
+    public void tearDown() {
+        service.stop();
+        server.stop();
+    }
+
+    @Test
+    public void notificationsAreWrittenInOrderAndDelivered() throws Exception {
+        List<ApnsPushFuture> futures = new ArrayList<ApnsPushFuture>();
+        List<EnhancedApnsNotification> notifications = new ArrayList<EnhancedApnsNotification>();
+        for (int i = 0; i < 100; i++) {
+            EnhancedApnsNotification notification = notification(0);
+            notifications.add(notification);
+            futures.add(service.pushAsync(notification));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertSame(notifications.get(i), futures.get(i).delivered().get(5, TimeUnit.SECONDS));
+            ApnsServerSimulator.Notification received = server.getQueue().poll(5, TimeUnit.SECONDS);
+            assertNotNull(received);
+            assertEquals(notifications.get(i).getIdentifier(), received.getIdentifier());
+        }
+    }
+
+    @Test
+    public void rejectedNotificationFailsAndFollowersAreResent() throws Exception {
+        ApnsPushFuture before = service.pushAsync(notification(0));
+        before.get(5, TimeUnit.SECONDS);
+        ApnsPushFuture rejected = service.pushAsync(notification(DeliveryError.INVALID_TOKEN.code()));
+        List<ApnsPushFuture> after = new ArrayList<ApnsPushFuture>();
+        for (int i = 0; i < 10; i++) {
+            after.add(service.pushAsync(notification(0)));
+        }
+
+        try {
+            rejected.delivered().get(5, TimeUnit.SECONDS);
+            fail("delivery should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ApnsDeliveryErrorException);
+            assertEquals(DeliveryError.INVALID_TOKEN, ((ApnsDeliveryErrorException) e.getCause()).getDeliveryError());
+        }
+        before.delivered().get(5, TimeUnit.SECONDS);
+
+        Set<Integer> received = new HashSet<Integer>();
+        for (ApnsPushFuture future : after) {
+            future.delivered().get(5, TimeUnit.SECONDS);
+        }
+        ApnsServerSimulator.Notification notification;
+        while ((notification = server.getQueue().poll(500, TimeUnit.MILLISECONDS)) != null) {
+            received.add(notification.getIdentifier());
+        }
+        for (ApnsPushFuture future : after) {
+            assertTrue(received.contains(future.getNotification().getIdentifier()));
+        }
+    }
+
+    @Test
+    public void pooledCopiesShareTheLoops() throws Exception {
+        ApnsService pooled = APNS.newService()
+                .withSSLContext(clientContext())
+                .withGatewayDestination(LOCALHOST, server.getEffectiveGatewayPort())
+                .withFeedbackDestination(LOCALHOST, server.getEffectiveFeedbackPort())
+                .withTransport(Transport.NIO)
+                .withEventLoops(1)
+                .withErrorResponseWindow(ERROR_RESPONSE_WINDOW)
+                .asPool(4)
+                .build();
+        try {
+            List<ApnsPushFuture> futures = new ArrayList<ApnsPushFuture>();
+            for (int i = 0; i < 200; i++) {
+                futures.add(pooled.pushAsync(notification(0)));
+            }
+            for (ApnsPushFuture future : futures) {
+                future.delivered().get(5, TimeUnit.SECONDS);
+            }
+            for (int i = 0; i < 200; i++) {
+                assertNotNull(server.getQueue().poll(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            pooled.stop();
+        }
+    }
+
+    /**
+     * A notification the {@link FailingApnsServerSimulator} accepts for
+     * {@code code} 0, and rejects with {@code code} as error otherwise.
+     */
+    private static EnhancedApnsNotification notification(int code) {
+        byte[] deviceToken = new byte[32];
+        if (code == 0) {
+            deviceToken[0] = 42;
+        } else {
+            deviceToken[0] = (byte) 0xff;
+            deviceToken[1] = (byte) 0xff;
+            deviceToken[2] = (byte) 0;
+            deviceToken[3] = (byte) code;
+        }
+        return new EnhancedApnsNotification(EnhancedApnsNotification.INCREMENT_ID(), 1, deviceToken,
+                Utilities.toUTF8Bytes("{\"aps\":{}}"));
+    }
+}
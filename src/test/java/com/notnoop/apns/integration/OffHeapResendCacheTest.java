@@ -0,0 +1,127 @@
+package com.notnoop.apns.integration;
+
+import static com.notnoop.apns.utils.FixedCertificates.LOCALHOST;
+import static com.notnoop.apns.utils.FixedCertificates.clientContext;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.notnoop.apns.APNS;
+import com.notnoop.apns.ApnsDelegateAdapter;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.DeliveryError;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.Transport;
+import com.notnoop.apns.internal.Utilities;
+import com.notnoop.apns.utils.FixedCertificates;
+import com.notnoop.apns.utils.Simulator.ApnsServerSimulator.Notification;
+import com.notnoop.apns.utils.Simulator.FailingApnsServerSimulator;
+
+public class OffHeapResendCacheTest {
+
+    private FailingApnsServerSimulator server;
+    private final BlockingQueue<ApnsNotification> failed = new LinkedBlockingQueue<ApnsNotification>();
+    private final BlockingQueue<ApnsNotification> resent = new LinkedBlockingQueue<ApnsNotification>();
+
+    @Before
+    public void startup() {
+        server = new FailingApnsServerSimulator(FixedCertificates.serverContext().getServerSocketFactory());
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void notificationsAfterARejectedOneAreResentFromTheirFrames() throws Exception {
+        assertResentFromFrames(Transport.BINARY);
+    }
+
+    @Test
+    public void nioNotificationsAfterARejectedOneAreResentFromTheirFrames() throws Exception {
+        assertResentFromFrames(Transport.NIO);
+    }
+
+    private void assertResentFromFrames(Transport transport) throws Exception {
+        ApnsService service = APNS.newService()
+                .withSSLContext(clientContext())
+                .withGatewayDestination(LOCALHOST, server.getEffectiveGatewayPort())
+                .withFeedbackDestination(LOCALHOST, server.getEffectiveFeedbackPort())
+                .withTransport(transport)
+                .withOffHeapResendCache()
+                .withDelegate(new ApnsDelegateAdapter() {
+                    @Override
+                    public void messageSendFailed(ApnsNotification message, Throwable e) {
+                        failed.add(message);
+                    }
+
+                    @Override
+                    public void messageSent(ApnsNotification message, boolean resent) {
+                        if (resent) {
+                            OffHeapResendCacheTest.this.resent.add(message);
+                        }
+                    }
+                })
+                .build();
+        try {
+            // the gateway holds on to the first one, the others are written meanwhile
+            service.push(notification(1, 5));
+            EnhancedApnsNotification rejected = notification(0, DeliveryError.INVALID_TOKEN.code());
+            service.push(rejected);
+            EnhancedApnsNotification first = notification(2, 0);
+            EnhancedApnsNotification second = notification(2, 1);
+            service.push(first);
+            service.push(second);
+
+            assertEquals(rejected, failed.poll(5, TimeUnit.SECONDS));
+            ApnsNotification resentFirst = resent.poll(5, TimeUnit.SECONDS);
+            ApnsNotification resentSecond = resent.poll(5, TimeUnit.SECONDS);
+            assertEquals(first.getIdentifier(), resentFirst.getIdentifier());
+            assertArrayEquals(first.getDeviceToken(), resentFirst.getDeviceToken());
+            assertEquals(second.getIdentifier(), resentSecond.getIdentifier());
+
+            // the gateway closed the socket before reading past the rejected one
+            for (int i = 0; i < 2; i++) {
+                assertNotNull(server.getQueue().poll(5, TimeUnit.SECONDS));
+            }
+            for (EnhancedApnsNotification expected : new EnhancedApnsNotification[] { first, second }) {
+                Notification received = server.getQueue().poll(5, TimeUnit.SECONDS);
+                assertNotNull(received);
+                assertEquals(expected.getIdentifier(), received.getIdentifier());
+                assertArrayEquals(expected.getDeviceToken(), received.getDeviceToken());
+            }
+        } finally {
+            service.stop();
+        }
+    }
+
+    /**
+     * @param action  what the gateway does: 0 fails the notification with
+     *        {@code code}, 1 waits {@code code} tenths of a second, 2 accepts it
+     */
+    private static EnhancedApnsNotification notification(int action, int code) {
+        byte[] deviceToken = new byte[32];
+        if (action < 2) {
+            deviceToken[0] = (byte) 0xff;
+            deviceToken[1] = (byte) 0xff;
+            deviceToken[2] = (byte) action;
+            deviceToken[3] = (byte) code;
+        } else {
+            deviceToken[0] = 42;
+            deviceToken[1] = (byte) code;
+        }
+        return new EnhancedApnsNotification(EnhancedApnsNotification.INCREMENT_ID(), 1, deviceToken,
+                Utilities.toUTF8Bytes("{\"aps\":{}}"));
+    }
+}
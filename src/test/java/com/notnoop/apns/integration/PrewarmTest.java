@@ -0,0 +1,260 @@
+package com.notnoop.apns.integration;
+
+import static com.notnoop.apns.utils.FixedCertificates.LOCALHOST;
+import static com.notnoop.apns.utils.FixedCertificates.clientContext;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.notnoop.apns.APNS;
+import com.notnoop.apns.ApnsDelegateAdapter;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.PrewarmReport;
+import com.notnoop.apns.Transport;
+import com.notnoop.apns.internal.ConnectionScheduler;
+import com.notnoop.apns.internal.Utilities;
+import com.notnoop.apns.utils.FixedCertificates;
+import com.notnoop.apns.utils.Simulator.FailingApnsServerSimulator;
+
+public class PrewarmTest {
+
+    private static final long HANDSHAKE_DELAY = 500;
+
+    private FailingApnsServerSimulator server;
+    private ApnsService service;
+    private final PrewarmRecorder recorder = new PrewarmRecorder();
+
+    @Before
+    public void startup() {
+        server = new FailingApnsServerSimulator(FixedCertificates.serverContext().getServerSocketFactory());
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        if (service != null) {
+            service.stop();
+        }
+        server.stop();
+    }
+
+    @Test
+    public void everyPooledConnectionIsOpenedBeforeTheFirstPush() throws Exception {
+        service = APNS.newService()
+                .withSSLContext(clientContext())
+                .withGatewayDestination(LOCALHOST, server.getEffectiveGatewayPort())
+                .withFeedbackDestination(LOCALHOST, server.getEffectiveFeedbackPort())
+                .asPool(4)
+                .withPrewarm(5000)
+                .withDelegate(recorder)
+                .build();
+
+        PrewarmReport report = recorder.report;
+        assertNotNull(report);
+        assertEquals(4, report.getRequested());
+        assertEquals(report.toString(), 4, report.getConnected());
+        assertTrue(report.isComplete());
+        assertEquals(4, recorder.created.get());
+
+        service.pushAsync(notification()).get(5, TimeUnit.SECONDS);
+        assertNotNull(server.getQueue().poll(5, TimeUnit.SECONDS));
+        // sent on one of the warm connections
+        assertEquals(4, recorder.created.get());
+    }
+
+    @Test
+    public void anElasticPoolOpensItsMinimum() throws Exception {
+        service = APNS.newService()
+                .withSSLContext(clientContext())
+                .withGatewayDestination(LOCALHOST, server.getEffectiveGatewayPort())
+                .withFeedbackDestination(LOCALHOST, server.getEffectiveFeedbackPort())
+                .asElasticPool(2, 6)
+                .withPrewarm(5000)
+                .withDelegate(recorder)
+                .build();
+
+        PrewarmReport report = recorder.report;
+        assertEquals(2, report.getRequested());
+        assertEquals(report.toString(), 2, report.getConnected());
+        assertTrue(report.isComplete());
+        assertEquals(2, recorder.created.get());
+    }
+
+    @Test
+    public void nioConnectionIsOpenedBeforeTheFirstPush() throws Exception {
+        service = APNS.newService()
+                .withSSLContext(clientContext())
+                .withGatewayDestination(LOCALHOST, server.getEffectiveGatewayPort())
+                .withFeedbackDestination(LOCALHOST, server.getEffectiveFeedbackPort())
+                .withTransport(Transport.NIO)
+                .withPrewarm(5000)
+                .withDelegate(recorder)
+                .build();
+
+        assertEquals(1, recorder.report.getConnected());
+        assertEquals(1, recorder.created.get());
+
+        service.pushAsync(notification()).get(5, TimeUnit.SECONDS);
+        assertNotNull(server.getQueue().poll(5, TimeUnit.SECONDS));
+        assertEquals(1, recorder.created.get());
+    }
+
+    @Test
+    public void unreachableGatewayIsReportedWithoutFailingTheBuild() throws Exception {
+        ServerSocket closed = new ServerSocket(0);
+        int port = closed.getLocalPort();
+        closed.close();
+
+        service = APNS.newService()
+                .withSSLContext(clientContext())
+                .withGatewayDestination(LOCALHOST, port)
+                .withFeedbackDestination(LOCALHOST, port)
+                .withPrewarm(5000)
+                .withDelegate(recorder)
+                .build();
+
+        PrewarmReport report = recorder.report;
+        assertEquals(1, report.getRequested());
+        assertEquals(0, report.getConnected());
+        assertFalse(report.isComplete());
+        assertEquals(1, report.getFailures().size());
+        assertTrue(report.getElapsedMillis() < 5000);
+    }
+
+    @Test
+    public void moreCopiesThanSchedulerThreadsHandshakeAtOnce() throws Exception {
+        final int copies = ConnectionScheduler.DEFAULT_THREADS * 2 + 1;
+        SlowProxy proxy = new SlowProxy(server.getEffectiveGatewayPort(), HANDSHAKE_DELAY);
+        try {
+            service = APNS.newService()
+                    .withSSLContext(clientContext())
+                    .withGatewayDestination(LOCALHOST, proxy.getPort())
+                    .withFeedbackDestination(LOCALHOST, server.getEffectiveFeedbackPort())
+                    .asPool(copies)
+                    .withPrewarm(10000)
+                    .withDelegate(recorder)
+                    .build();
+
+            PrewarmReport report = recorder.report;
+            assertEquals(report.toString(), copies, report.getConnected());
+            // about one handshake, not one per copy beyond the scheduler threads
+            assertTrue(report.toString(), report.getElapsedMillis() >= HANDSHAKE_DELAY);
+            assertTrue(report.toString(), report.getElapsedMillis() < 2 * HANDSHAKE_DELAY);
+        } finally {
+            proxy.close();
+        }
+    }
+
+    private static EnhancedApnsNotification notification() {
+        return new EnhancedApnsNotification(EnhancedApnsNotification.INCREMENT_ID(), 1, new byte[32],
+                Utilities.toUTF8Bytes("{}"));
+    }
+
+    /**
+     * Relays connections to the simulator, each only after a delay, so that
+     * every handshake takes at least that long.
+     */
+    private static class SlowProxy implements Closeable {
+        private final ServerSocket listener;
+
+        SlowProxy(final int targetPort, final long delayMillis) throws IOException {
+            listener = new ServerSocket(0);
+            Thread acceptor = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (true) {
+                            final Socket client = listener.accept();
+                            daemon(new Runnable() {
+                                public void run() {
+                                    try {
+                                        Thread.sleep(delayMillis);
+                                        Socket target = new Socket(LOCALHOST, targetPort);
+                                        daemon(pump(target, client));
+                                        pump(client, target).run();
+                                    } catch (Exception e) {
+                                        close(client);
+                                    }
+                                }
+                            });
+                        }
+                    } catch (IOException closed) {
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int getPort() {
+            return listener.getLocalPort();
+        }
+
+        public void close() throws IOException {
+            listener.close();
+        }
+
+        private static Runnable pump(final Socket from, final Socket to) {
+            return new Runnable() {
+                public void run() {
+                    byte[] buffer = new byte[4096];
+                    try {
+                        InputStream in = from.getInputStream();
+                        OutputStream out = to.getOutputStream();
+                        int n;
+                        while ((n = in.read(buffer)) >= 0) {
+                            out.write(buffer, 0, n);
+                            out.flush();
+                        }
+                    } catch (IOException e) {
+                    } finally {
+                        close(from);
+                        close(to);
+                    }
+                }
+            };
+        }
+
+        private static void daemon(Runnable task) {
+            Thread thread = new Thread(task);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private static void close(Socket socket) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static class PrewarmRecorder extends ApnsDelegateAdapter {
+        private final AtomicInteger created = new AtomicInteger();
+        private volatile PrewarmReport report;
+
+        @Override
+        public void connectionCreate(String localHost, int localPort) {
+            created.incrementAndGet();
+        }
+
+        @Override
+        public void connectionsPrewarmed(PrewarmReport report) {
+            this.report = report;
+        }
+    }
+}
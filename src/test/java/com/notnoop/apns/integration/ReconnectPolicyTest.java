@@ -0,0 +1,137 @@
+package com.notnoop.apns.integration;
+
+import static com.notnoop.apns.utils.FixedCertificates.LOCALHOST;
+import static com.notnoop.apns.utils.FixedCertificates.clientContext;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.notnoop.apns.APNS;
+import com.notnoop.apns.ApnsDelegateAdapter;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.ReconnectPolicy;
+import com.notnoop.apns.internal.Utilities;
+import com.notnoop.apns.utils.FixedCertificates;
+import com.notnoop.apns.utils.Simulator.FailingApnsServerSimulator;
+
+public class ReconnectPolicyTest {
+
+    private FailingApnsServerSimulator server;
+    private final AtomicInteger created = new AtomicInteger();
+
+    @Before
+    public void startup() {
+        server = new FailingApnsServerSimulator(FixedCertificates.serverContext().getServerSocketFactory());
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void connectionIsRotatedInTheBackground() throws Exception {
+        SwitchablePolicy policy = new SwitchablePolicy();
+        ApnsService service = newService(policy);
+        try {
+            service.pushAsync(notification()).get(5, TimeUnit.SECONDS);
+            assertEquals(1, created.get());
+            assertEquals(1, policy.reconnects.get());
+
+            policy.due.set(true);
+            // written on the current socket while the replacement connects
+            service.pushAsync(notification()).get(5, TimeUnit.SECONDS);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (created.get() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, created.get());
+
+            for (int i = 0; i < 10; i++) {
+                service.pushAsync(notification()).delivered().get(5, TimeUnit.SECONDS);
+            }
+            assertEquals(2, policy.reconnects.get());
+            assertEquals(2, created.get());
+            for (int i = 0; i < 12; i++) {
+                assertNotNull(server.getQueue().poll(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            service.stop();
+        }
+    }
+
+    @Test
+    public void pooledCopiesGetTheirOwnPolicy() throws Exception {
+        SwitchablePolicy policy = new SwitchablePolicy();
+        ApnsService service = APNS.newService()
+                .withSSLContext(clientContext())
+                .withGatewayDestination(LOCALHOST, server.getEffectiveGatewayPort())
+                .withFeedbackDestination(LOCALHOST, server.getEffectiveFeedbackPort())
+                .withReconnectPolicy(policy)
+                .asPool(3)
+                .withPrewarm(5000)
+                .build();
+        try {
+            // one for the prototype, one per pool thread
+            assertEquals(4, policy.copies.get());
+        } finally {
+            service.stop();
+        }
+    }
+
+    private ApnsService newService(ReconnectPolicy policy) {
+        return APNS.newService()
+                .withSSLContext(clientContext())
+                .withGatewayDestination(LOCALHOST, server.getEffectiveGatewayPort())
+                .withFeedbackDestination(LOCALHOST, server.getEffectiveFeedbackPort())
+                .withErrorResponseWindow(300)
+                .withReconnectPolicy(policy)
+                .withDelegate(new ApnsDelegateAdapter() {
+                    @Override
+                    public void connectionCreate(String localHost, int localPort) {
+                        created.incrementAndGet();
+                    }
+                })
+                .build();
+    }
+
+    private static EnhancedApnsNotification notification() {
+        byte[] deviceToken = new byte[32];
+        deviceToken[0] = 42;
+        return new EnhancedApnsNotification(EnhancedApnsNotification.INCREMENT_ID(), 1, deviceToken,
+                Utilities.toUTF8Bytes("{\"aps\":{}}"));
+    }
+
+    /**
+     * Asks for one rotation whenever {@code due} is set.  Copies share the
+     * instance, so that the test sees what the connection does with it.
+     */
+    private static class SwitchablePolicy implements ReconnectPolicy {
+        final AtomicBoolean due = new AtomicBoolean();
+        final AtomicInteger reconnects = new AtomicInteger();
+        final AtomicInteger copies = new AtomicInteger();
+
+        public boolean shouldReconnect() {
+            return due.get();
+        }
+
+        public void reconnected() {
+            due.set(false);
+            reconnects.incrementAndGet();
+        }
+
+        public ReconnectPolicy copy() {
+            copies.incrementAndGet();
+            return this;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.notnoop.apns.integration;
+
+import static com.notnoop.apns.utils.FixedCertificates.LOCALHOST;
+import static com.notnoop.apns.utils.FixedCertificates.clientContext;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.notnoop.apns.APNS;
+import com.notnoop.apns.ApnsDelegateAdapter;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.DeliveryError;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.Transport;
+import com.notnoop.apns.internal.Utilities;
+import com.notnoop.apns.utils.FixedCertificates;
+import com.notnoop.apns.utils.Simulator.FailingApnsServerSimulator;
+
+public class TlsSessionResumptionTest {
+
+    private FailingApnsServerSimulator server;
+    private final BlockingQueue<Boolean> handshakes = new LinkedBlockingQueue<Boolean>();
+
+    @Before
+    public void startup() {
+        server = new FailingApnsServerSimulator(FixedCertificates.serverContext().getServerSocketFactory());
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void reconnectAfterErrorResponseResumesTheSession() throws Exception {
+        assertReconnectResumes(Transport.BINARY);
+    }
+
+    @Test
+    public void nioReconnectAfterErrorResponseResumesTheSession() throws Exception {
+        assertReconnectResumes(Transport.NIO);
+    }
+
+    private void assertReconnectResumes(Transport transport) throws Exception {
+        ApnsService service = APNS.newService()
+                .withSSLContext(clientContext())
+                .withGatewayDestination(LOCALHOST, server.getEffectiveGatewayPort())
+                .withFeedbackDestination(LOCALHOST, server.getEffectiveFeedbackPort())
+                .withTransport(transport)
+                .withErrorResponseWindow(300)
+                .withTlsSessionCache(16, 60)
+                .withDelegate(new ApnsDelegateAdapter() {
+                    @Override
+                    public void tlsHandshakeCompleted(String host, int port, boolean resumed) {
+                        handshakes.add(resumed);
+                    }
+                })
+                .build();
+        try {
+            service.pushAsync(notification(0)).delivered().get(5, TimeUnit.SECONDS);
+            assertEquals(Boolean.FALSE, handshakes.poll(5, TimeUnit.SECONDS));
+
+            // the gateway closes the socket after an error-response
+            try {
+                service.pushAsync(notification(DeliveryError.INVALID_TOKEN.code())).delivered().get(5, TimeUnit.SECONDS);
+                fail("delivery should have failed");
+            } catch (ExecutionException expected) {
+            }
+            service.pushAsync(notification(0)).delivered().get(5, TimeUnit.SECONDS);
+            assertEquals(Boolean.TRUE, handshakes.poll(5, TimeUnit.SECONDS));
+        } finally {
+            service.stop();
+        }
+    }
+
+    private static EnhancedApnsNotification notification(int code) {
+        byte[] deviceToken = new byte[32];
+        if (code == 0) {
+            deviceToken[0] = 42;
+        } else {
+            deviceToken[0] = (byte) 0xff;
+            deviceToken[1] = (byte) 0xff;
+            deviceToken[2] = (byte) 0;
+            deviceToken[3] = (byte) code;
+        }
+        return new EnhancedApnsNotification(EnhancedApnsNotification.INCREMENT_ID(), 1, deviceToken,
+                Utilities.toUTF8Bytes("{\"aps\":{}}"));
+    }
+}
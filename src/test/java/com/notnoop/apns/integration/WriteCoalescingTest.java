@@ -0,0 +1,77 @@
+package com.notnoop.apns.integration;
+
+import static com.notnoop.apns.utils.FixedCertificates.LOCALHOST;
+import static com.notnoop.apns.utils.FixedCertificates.clientContext;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.notnoop.apns.APNS;
+import com.notnoop.apns.ApnsPushFuture;
+import com.notnoop.apns.ApnsService;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.internal.Utilities;
+import com.notnoop.apns.utils.FixedCertificates;
+import com.notnoop.apns.utils.Simulator.ApnsServerSimulator;
+import com.notnoop.apns.utils.Simulator.FailingApnsServerSimulator;
+
+public class WriteCoalescingTest {
+
+    private FailingApnsServerSimulator server;
+    private ApnsService service;
+
+    @Before
+    public void startup() {
+        server = new FailingApnsServerSimulator(FixedCertificates.serverContext().getServerSocketFactory());
+        server.start();
+        service = APNS.newService()
+                .withSSLContext(clientContext())
+                .withGatewayDestination(LOCALHOST, server.getEffectiveGatewayPort())
+                .withFeedbackDestination(LOCALHOST, server.getEffectiveFeedbackPort())
+                .withWriteCoalescing(16 * 1024, 2)
+                .build();
+    }
+
+    @After
+    public void tearDown() {
+        service.stop();
+        server.stop();
+    }
+
+    @Test
+    public void coalescedNotificationsArriveInOrder() throws Exception {
+        List<ApnsPushFuture> futures = new ArrayList<ApnsPushFuture>();
+        for (int i = 0; i < 500; i++) {
+            futures.add(service.pushAsync(notification(i)));
+        }
+        for (ApnsPushFuture future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        for (int i = 0; i < 500; i++) {
+            ApnsServerSimulator.Notification received = server.getQueue().poll(5, TimeUnit.SECONDS);
+            assertNotNull(received);
+            assertEquals(i, received.getIdentifier());
+        }
+    }
+
+    @Test
+    public void synchronousPushIsWrittenImmediately() throws Exception {
+        service.push(notification(7));
+        ApnsServerSimulator.Notification received = server.getQueue().poll(5, TimeUnit.SECONDS);
+        assertNotNull(received);
+        assertEquals(7, received.getIdentifier());
+    }
+
+    private static EnhancedApnsNotification notification(int id) {
+        byte[] deviceToken = new byte[32];
+        deviceToken[0] = 42;
+        return new EnhancedApnsNotification(id, 1, deviceToken, Utilities.toUTF8Bytes("{\"aps\":{}}"));
+    }
+}
@@ -0,0 +1,61 @@
+package com.notnoop.apns.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class AdaptiveCacheLengthTest {
+
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	@Test
+	public void growsWithTheSendRate() {
+		AdaptiveCacheLength sizer = new AdaptiveCacheLength(10, 100000, 1000, 100);
+		assertEquals(-1, sizer.written(1000, 0));
+		// 20 notifications per ms, for 1 s of latency, plus half
+		assertEquals(30000, sizer.written(1000, 100 * MS));
+		assertEquals(30000, sizer.getLength());
+	}
+
+	@Test
+	public void shrinksWhenTrafficFalls() {
+		AdaptiveCacheLength sizer = new AdaptiveCacheLength(10, 100000, 1000, 100);
+		sizer.written(1000, 0);
+		sizer.written(1000, 100 * MS);
+
+		// a little slower, not worth resizing
+		assertEquals(-1, sizer.written(1800, 200 * MS));
+		// ten samples later
+		int shrunk = sizer.written(10, 1200 * MS);
+		assertTrue(String.valueOf(shrunk), shrunk > 2000 && shrunk < 4000);
+
+		// idle for a minute
+		assertEquals(10, sizer.written(1, 61200 * MS));
+	}
+
+	@Test
+	public void followsTheErrorResponseLatency() {
+		AdaptiveCacheLength sizer = new AdaptiveCacheLength(0, 1000000, 2000, 100);
+		sizer.errorResponse(200 * MS);
+		assertEquals(1100, sizer.getLatencyMillis());
+		sizer.errorResponse(200 * MS);
+		assertEquals(650, sizer.getLatencyMillis());
+		// never below the last one seen
+		sizer.errorResponse(900 * MS);
+		assertEquals(900, sizer.getLatencyMillis());
+
+		sizer.unknownIdentifier();
+		assertEquals(1800, sizer.getLatencyMillis());
+	}
+
+	@Test
+	public void staysWithinBounds() {
+		AdaptiveCacheLength sizer = new AdaptiveCacheLength(50, 500, 1000, 10);
+		assertEquals(50, sizer.getLength());
+		sizer.written(100000, 0);
+		assertEquals(500, sizer.written(100000, 100 * MS));
+	}
+}
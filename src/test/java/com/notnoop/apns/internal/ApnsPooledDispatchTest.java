@@ -0,0 +1,236 @@
+package com.notnoop.apns.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ApnsPushFuture;
+import com.notnoop.apns.DrainReport;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.PrewarmReport;
+import com.notnoop.exceptions.QueueFullException;
+
+public class ApnsPooledDispatchTest {
+
+	private ApnsPooledConnection pool;
+
+	@After
+	public void cleanup() {
+		if (pool != null) {
+			pool.close();
+		}
+	}
+
+	@Test
+	public void copiesNotReadyAreSkipped() {
+		StubConnection prototype = new StubConnection();
+		pool = new ApnsPooledConnection(prototype, 4, Executors.newFixedThreadPool(4));
+		pool.dispatch();
+		for (int i = 0; i < 3; i++) {
+			prototype.copies.get(i).ready = false;
+		}
+		for (int i = 0; i < 100; i++) {
+			assertSame(prototype.copies.get(3), pool.dispatch());
+		}
+	}
+
+	@Test
+	public void theShorterQueueIsPreferred() {
+		StubConnection prototype = new StubConnection();
+		pool = new ApnsPooledConnection(prototype, 2, Executors.newFixedThreadPool(2));
+		pool.dispatch();
+		prototype.copies.get(0).depth = 10;
+		for (int i = 0; i < 100; i++) {
+			assertSame(prototype.copies.get(1), pool.dispatch());
+		}
+	}
+
+	@Test
+	public void loadIsSpreadEvenly() throws Exception {
+		StubConnection prototype = new StubConnection();
+		pool = new ApnsPooledConnection(prototype, 4, Executors.newFixedThreadPool(4));
+		ApnsNotification notification = new EnhancedApnsNotification(1, 1, new byte[32], new byte[0]);
+		for (int i = 0; i < 400; i++) {
+			// nothing is ever written, the queues only grow
+			pool.sendMessage(notification);
+		}
+		assertEquals(4, prototype.copies.size());
+		for (StubConnection copy : prototype.copies) {
+			assertTrue(String.valueOf(copy.depth), copy.depth >= 90 && copy.depth <= 110);
+		}
+		int[] depths = pool.getQueueDepths();
+		assertEquals(4, depths.length);
+		assertArrayEquals(new int[] { prototype.copies.get(0).depth, prototype.copies.get(1).depth,
+				prototype.copies.get(2).depth, prototype.copies.get(3).depth }, depths);
+	}
+
+	@Test
+	public void anElasticPoolGrowsWithItsBacklog() throws Exception {
+		StubConnection prototype = new StubConnection();
+		pool = new ApnsPooledConnection(prototype, new PoolScaler(1, 3, 10, 1000, 60000), Executors.newFixedThreadPool(3));
+		pool.dispatch();
+		assertEquals(1, pool.getQueueDepths().length);
+
+		prototype.copies.get(0).depth = 100;
+		long deadline = System.currentTimeMillis() + 5000;
+		while (pool.getQueueDepths().length < 3 && System.currentTimeMillis() < deadline) {
+			pool.dispatch();
+			Thread.sleep(10);
+		}
+		assertEquals(3, prototype.copies.size());
+		// the new copies are empty, they get the next notifications
+		assertTrue(pool.dispatch() != prototype.copies.get(0));
+	}
+
+	@Test
+	public void aDeviceKeepsItsConnection() throws Exception {
+		StubConnection prototype = new StubConnection();
+		pool = new ApnsPooledConnection(prototype, 4, Executors.newFixedThreadPool(4));
+		pool.setDeviceAffinity(true);
+		byte[] token = new byte[32];
+		token[0] = 7;
+		ApnsNotification notification = new EnhancedApnsNotification(1, 1, token, new byte[0]);
+		ApnsConnection copy = pool.route(notification);
+		// however loaded or unready it is
+		((StubConnection) copy).depth = 1000;
+		((StubConnection) copy).ready = false;
+		for (int i = 0; i < 100; i++) {
+			assertSame(copy, pool.route(notification));
+		}
+		pool.sendMessageAsync(notification, new ApnsPushFuture(notification));
+		assertEquals(1001, ((StubConnection) copy).depth);
+	}
+
+	@Test
+	public void aCopiedPoolKeepsItsThreadsAndQueueBounds() throws Exception {
+		StubConnection prototype = new StubConnection();
+		prototype.release = new CountDownLatch(1);
+		ThreadFactory threads = new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "custom-pool");
+			}
+		};
+		ApnsPooledConnection original = new ApnsPooledConnection(prototype, 1, 1, 0, threads);
+		pool = (ApnsPooledConnection) original.copy();
+		original.close();
+		try {
+			List<ApnsPushFuture> futures = new ArrayList<ApnsPushFuture>();
+			for (int i = 0; i < 3; i++) {
+				ApnsNotification notification = new EnhancedApnsNotification(i, 1, new byte[32], new byte[0]);
+				ApnsPushFuture future = new ApnsPushFuture(notification);
+				futures.add(future);
+				// one written, one queued, no room for the third
+				pool.sendMessageAsync(notification, future);
+			}
+			try {
+				futures.get(2).get(5, TimeUnit.SECONDS);
+				fail("the copy holds one notification besides the one written");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof QueueFullException);
+			}
+			prototype.release.countDown();
+			futures.get(0).get(5, TimeUnit.SECONDS);
+			futures.get(1).get(5, TimeUnit.SECONDS);
+		} finally {
+			prototype.release.countDown();
+		}
+		assertEquals("custom-pool", prototype.copies.get(0).thread);
+	}
+
+	@Test
+	public void copiesArePrewarmedOnThePoolThreads() {
+		StubConnection prototype = new StubConnection();
+		pool = new ApnsPooledConnection(prototype, 3, 1, 0, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "custom-pool");
+			}
+		});
+		PrewarmReport report = pool.prewarm(1000);
+		assertEquals(3, report.getRequested());
+		assertEquals(3, report.getConnected());
+		for (StubConnection copy : prototype.copies) {
+			assertEquals("custom-pool", copy.thread);
+		}
+	}
+
+	private static class StubConnection implements ApnsConnection {
+		final List<StubConnection> copies = new ArrayList<StubConnection>();
+		volatile int depth;
+		volatile boolean ready = true;
+		/** Holds the writes back until counted down, if set */
+		volatile CountDownLatch release;
+		volatile String thread;
+
+		public void sendMessage(ApnsNotification m) {
+			thread = Thread.currentThread().getName();
+			final CountDownLatch held = release;
+			if (held != null) {
+				try {
+					held.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			synchronized (this) {
+				depth++;
+			}
+		}
+
+		public void sendMessageAsync(ApnsNotification m, ApnsPushFuture future) {
+			sendMessage(m);
+			future.complete(m);
+		}
+
+		public void testConnection() {
+		}
+
+		public PrewarmReport prewarm(long timeoutMillis) {
+			thread = Thread.currentThread().getName();
+			return PrewarmReport.of(0, null);
+		}
+
+		public DrainReport stop(long timeoutMillis) {
+			return new DrainReport(0, 0, Collections.<ApnsNotification> emptyList(), 0);
+		}
+
+		public synchronized ApnsConnection copy() {
+			StubConnection copy = new StubConnection();
+			copy.release = release;
+			copies.add(copy);
+			return copy;
+		}
+
+		public int getQueueDepth() {
+			return depth;
+		}
+
+		public boolean isReady() {
+			return ready;
+		}
+
+		public void setCacheLength(int cacheLength) {
+		}
+
+		public int getCacheLength() {
+			return 0;
+		}
+
+		public void close() {
+		}
+	}
+}
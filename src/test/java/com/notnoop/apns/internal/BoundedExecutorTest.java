@@ -0,0 +1,93 @@
+package com.notnoop.apns.internal;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class BoundedExecutorTest {
+
+	@Test
+	public void tasksUpToTheCapacityRunAtOnce() throws Exception {
+		// a thread per task, like virtual threads
+		BoundedExecutor executor = new BoundedExecutor(Executors.newCachedThreadPool(), 3, 0);
+		CountDownLatch running = new CountDownLatch(3);
+		CountDownLatch release = new CountDownLatch(1);
+		try {
+			for (int i = 0; i < 3; i++) {
+				executor.execute(blocking(running, release));
+			}
+			assertTrue(running.await(5, TimeUnit.SECONDS));
+		} finally {
+			release.countDown();
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void aTaskBeyondTheCapacityIsRejected() throws Exception {
+		BoundedExecutor executor = new BoundedExecutor(Executors.newCachedThreadPool(), 1, 0);
+		CountDownLatch release = new CountDownLatch(1);
+		try {
+			executor.execute(blocking(new CountDownLatch(1), release));
+			try {
+				executor.execute(blocking(new CountDownLatch(1), release));
+				fail("the executor is full");
+			} catch (RejectedExecutionException expected) {
+			}
+		} finally {
+			release.countDown();
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void aBlockedSubmitterGetsTheRoomOfAFinishedTask() throws Exception {
+		BoundedExecutor executor = new BoundedExecutor(Executors.newCachedThreadPool(), 1, 5000);
+		final CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch second = new CountDownLatch(1);
+		try {
+			executor.execute(blocking(new CountDownLatch(1), release));
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						Thread.sleep(100);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					release.countDown();
+				}
+			}).start();
+			executor.execute(blocking(second, release));
+			assertTrue(second.await(5, TimeUnit.SECONDS));
+		} finally {
+			release.countDown();
+			executor.shutdown();
+		}
+	}
+
+	@Test(expected = RejectedExecutionException.class)
+	public void aShutDownExecutorTakesNoTask() {
+		BoundedExecutor executor = new BoundedExecutor(Executors.newCachedThreadPool(), 1, 0);
+		executor.shutdown();
+		executor.execute(blocking(new CountDownLatch(1), new CountDownLatch(0)));
+	}
+
+	private static Runnable blocking(final CountDownLatch running, final CountDownLatch release) {
+		return new Runnable() {
+			public void run() {
+				running.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,200 @@
+package com.notnoop.apns.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.notnoop.apns.ApnsDelegateAdapter;
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.ConnectionHolder;
+import com.notnoop.apns.DeliveryError;
+import com.notnoop.apns.MonitorConnection;
+
+public class ErrorResponseReaderTest {
+
+	@Test
+	public void aReaderIsReusedForTheNextSocket() throws Exception {
+		ErrorResponseReader reader = new ErrorResponseReader(1, null);
+		try {
+			Thread first = readOnce(reader);
+			Thread second = readOnce(reader);
+			assertSame(first, second);
+			assertEquals(1, reader.getReaders());
+			assertTrue(first.isDaemon());
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	public void theReadersStayFewWhateverTheNumberOfSockets() throws Exception {
+		ErrorResponseReader reader = new ErrorResponseReader(2, null);
+		final CountDownLatch polledThrice = new CountDownLatch(50);
+		final CountDownLatch abandoned = new CountDownLatch(50);
+		try {
+			for (int i = 0; i < 50; i++) {
+				reader.read(new Polled(polledThrice, abandoned, 3, Integer.MAX_VALUE));
+			}
+			assertTrue(polledThrice.await(5, TimeUnit.SECONDS));
+			assertTrue(String.valueOf(reader.getReaders()), reader.getReaders() <= 2);
+		} finally {
+			reader.close();
+		}
+		assertTrue(abandoned.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void aSocketDoneWithIsNoLongerPolled() throws Exception {
+		ErrorResponseReader reader = new ErrorResponseReader(1, null);
+		final CountDownLatch done = new CountDownLatch(1);
+		final CountDownLatch next = new CountDownLatch(1);
+		try {
+			Polled first = new Polled(done, new CountDownLatch(1), 3, 3);
+			reader.read(first);
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+			// with a single reader taking sockets in turn, the first would come first
+			reader.read(new Polled(next, new CountDownLatch(1), 2, Integer.MAX_VALUE));
+			assertTrue(next.await(5, TimeUnit.SECONDS));
+			assertEquals(3, first.polls.get());
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test(expected = RejectedExecutionException.class)
+	public void aClosedReaderTakesNoSocket() {
+		ErrorResponseReader reader = new ErrorResponseReader();
+		reader.close();
+		reader.read(new Polled(new CountDownLatch(1), new CountDownLatch(1), 1, 1));
+	}
+
+	@Test
+	public void aPacketSplitAcrossPollsIsReadWhole() throws Exception {
+		ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		ErrorResponseReader reader = new ErrorResponseReader(1, null);
+		try {
+			final AtomicReference<DeliveryError> error = new AtomicReference<DeliveryError>();
+			final AtomicInteger id = new AtomicInteger();
+			final CountDownLatch closed = new CountDownLatch(1);
+			MonitorConnection monitored = monitored(server, 20000);
+			monitored.startMonitor(new ApnsDelegateAdapter() {
+				@Override
+				public void connectionClosed(DeliveryError e, int messageIdentifier) {
+					error.set(e);
+					id.set(messageIdentifier);
+					closed.countDown();
+				}
+			}, false, new ConcurrentLinkedQueue<ApnsNotification>(), null, reader);
+			Socket gateway = server.accept();
+			OutputStream out = gateway.getOutputStream();
+			out.write(new byte[] { 8, 8, 0 });
+			out.flush();
+			// several polls go by
+			Thread.sleep(ErrorResponseReader.POLL_MILLIS * 5);
+			out.write(new byte[] { 0, 0, 42 });
+			out.flush();
+			assertTrue(closed.await(5, TimeUnit.SECONDS));
+			assertEquals(DeliveryError.INVALID_TOKEN, error.get());
+			assertEquals(42, id.get());
+			gateway.close();
+		} finally {
+			reader.close();
+			server.close();
+		}
+	}
+
+	@Test
+	public void anIdleSocketIsClosedAfterItsReadTimeout() throws Exception {
+		ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		ErrorResponseReader reader = new ErrorResponseReader(1, null);
+		try {
+			MonitorConnection monitored = monitored(server, 200);
+			long start = System.nanoTime();
+			monitored.startMonitor(new ApnsDelegateAdapter(), false, new ConcurrentLinkedQueue<ApnsNotification>(), null, reader);
+			Socket gateway = server.accept();
+			// the gateway sees the end of the stream once the monitor closes the socket
+			assertEquals(-1, gateway.getInputStream().read());
+			long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			assertTrue(String.valueOf(elapsed), elapsed >= 200 && elapsed < 5000);
+			assertTrue(monitored.isSocketClosed());
+			gateway.close();
+		} finally {
+			reader.close();
+			server.close();
+		}
+	}
+
+	private static MonitorConnection monitored(ServerSocket server, int readTimeout) throws Exception {
+		Socket socket = new Socket(server.getInetAddress(), server.getLocalPort());
+		socket.setSoTimeout(readTimeout);
+		MonitorConnection monitored = new MonitorConnection();
+		monitored.setConnectionHolder(ConnectionHolder.EMPTY);
+		monitored.setSocket(socket);
+		return monitored;
+	}
+
+	private static Thread readOnce(ErrorResponseReader reader) throws InterruptedException {
+		final AtomicReference<Thread> thread = new AtomicReference<Thread>();
+		final CountDownLatch done = new CountDownLatch(1);
+		reader.read(new Polled(done, new CountDownLatch(1), 1, 1) {
+			@Override
+			public boolean poll() {
+				thread.set(Thread.currentThread());
+				return super.poll();
+			}
+		});
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		return thread.get();
+	}
+
+	/**
+	 * A socket counting its polls, done with after {@code lastPoll} of them
+	 */
+	private static class Polled implements ErrorResponseReader.Monitor {
+		final AtomicInteger polls = new AtomicInteger();
+		final CountDownLatch polled;
+		final CountDownLatch abandoned;
+		final int countDownAt;
+		final int lastPoll;
+
+		Polled(CountDownLatch polled, CountDownLatch abandoned, int countDownAt, int lastPoll) {
+			this.polled = polled;
+			this.abandoned = abandoned;
+			this.countDownAt = countDownAt;
+			this.lastPoll = lastPoll;
+		}
+
+		public void run() {
+			throw new UnsupportedOperationException("polled only");
+		}
+
+		public void startPolling(int pollMillis) {
+			assertEquals(ErrorResponseReader.POLL_MILLIS, pollMillis);
+		}
+
+		public boolean poll() {
+			final int n = polls.incrementAndGet();
+			if (n == countDownAt) {
+				polled.countDown();
+			}
+			return n < lastPoll;
+		}
+
+		public void abandon() {
+			abandoned.countDown();
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package com.notnoop.apns.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.FramedApnsNotification;
+
+public class FrameJournalTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void unsettledFramesAreRecovered() throws Exception {
+		File dir = folder.newFolder();
+		FrameJournal journal = FrameJournal.open(dir, FrameJournal.DEFAULT_SEGMENT_SIZE);
+		assertTrue(journal.getRecovered().isEmpty());
+		ApnsNotification framed = new FramedApnsNotification(3, 7, new byte[] { 1, 2, 3 }, new byte[] { 4, 5 },
+				ApnsNotification.PRIORITY_CONSERVE_POWER);
+		long first = journal.append(Arrays.asList(notification(1), notification(2)));
+		long second = journal.append(Arrays.asList(framed, notification(4)));
+		journal.settled(first);
+		// the process dies, the journal is never closed
+
+		FrameJournal reopened = FrameJournal.open(dir, FrameJournal.DEFAULT_SEGMENT_SIZE);
+		assertIds(reopened.getRecovered(), 3, 4);
+		assertEquals(framed, reopened.getRecovered().get(0));
+		assertTrue(second > first);
+		reopened.close();
+	}
+
+	@Test
+	public void framesAreSettledInOrder() throws Exception {
+		File dir = folder.newFolder();
+		FrameJournal journal = FrameJournal.open(dir, FrameJournal.DEFAULT_SEGMENT_SIZE);
+		long first = journal.append(Collections.singletonList(notification(1)));
+		long second = journal.append(Collections.singletonList(notification(2)));
+		journal.append(Collections.singletonList(notification(3)));
+		// settled out of order, the first one still holds the watermark
+		journal.settled(second);
+
+		assertIds(FrameJournal.open(dir, FrameJournal.DEFAULT_SEGMENT_SIZE).getRecovered(), 1, 2, 3);
+		journal.settled(first);
+		assertIds(FrameJournal.open(dir, FrameJournal.DEFAULT_SEGMENT_SIZE).getRecovered(), 3);
+	}
+
+	@Test
+	public void recoveredFramesAreSettledOnceResent() throws Exception {
+		File dir = folder.newFolder();
+		FrameJournal journal = FrameJournal.open(dir, FrameJournal.DEFAULT_SEGMENT_SIZE);
+		journal.append(Arrays.asList(notification(1), notification(2)));
+
+		FrameJournal reopened = FrameJournal.open(dir, FrameJournal.DEFAULT_SEGMENT_SIZE);
+		assertIds(reopened.getRecovered(), 1, 2);
+		long resent = reopened.append(reopened.getRecovered());
+		reopened.settleRecovered();
+		assertTrue(reopened.getRecovered().isEmpty());
+		// the frames sent again are still in their window
+		assertIds(FrameJournal.open(dir, FrameJournal.DEFAULT_SEGMENT_SIZE).getRecovered(), 1, 2);
+
+		reopened.settled(resent);
+		assertTrue(FrameJournal.open(dir, FrameJournal.DEFAULT_SEGMENT_SIZE).getRecovered().isEmpty());
+	}
+
+	@Test
+	public void closingSettlesEverything() throws Exception {
+		File dir = folder.newFolder();
+		FrameJournal journal = FrameJournal.open(dir, FrameJournal.DEFAULT_SEGMENT_SIZE);
+		journal.append(Arrays.asList(notification(1), notification(2)));
+		journal.close();
+		assertEquals(-1, journal.append(Arrays.asList(notification(3))));
+
+		assertTrue(FrameJournal.open(dir, FrameJournal.DEFAULT_SEGMENT_SIZE).getRecovered().isEmpty());
+	}
+
+	@Test
+	public void settledSegmentsAreReused() throws Exception {
+		File dir = folder.newFolder();
+		// a few frames per segment
+		int segmentSize = 4 * (notification(0).length() + 32);
+		FrameJournal journal = FrameJournal.open(dir, segmentSize);
+		for (int id = 0; id < 1000; id++) {
+			journal.settled(journal.append(Collections.singletonList(notification(id))));
+		}
+		assertTrue(String.valueOf(journal.getSegments()), journal.getSegments() <= 2);
+		assertTrue(dir.listFiles().length <= 2);
+
+		// an unsettled frame holds on to its segment
+		journal.append(Collections.singletonList(notification(1000)));
+		for (int id = 1001; id < 1100; id++) {
+			journal.settled(journal.append(Collections.singletonList(notification(id))));
+		}
+		assertTrue(journal.getSegments() > 2);
+		// and on to those after it, settled by a single watermark
+		List<ApnsNotification> recovered = FrameJournal.open(dir, segmentSize).getRecovered();
+		assertEquals(100, recovered.size());
+		assertEquals(1000, recovered.get(0).getIdentifier());
+	}
+
+	@Test
+	public void aTornRecordEndsTheSegment() throws Exception {
+		File dir = folder.newFolder();
+		FrameJournal journal = FrameJournal.open(dir, FrameJournal.DEFAULT_SEGMENT_SIZE);
+		journal.append(Arrays.asList(notification(1), notification(2)));
+
+		// flip a byte of the second frame
+		File segment = dir.listFiles()[0];
+		RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+		try {
+			long at = 12 + 2 * (9 + 8 + notification(0).length()) - 1;
+			raf.seek(at);
+			byte b = raf.readByte();
+			raf.seek(at);
+			raf.writeByte(b ^ 0xff);
+		} finally {
+			raf.close();
+		}
+
+		FrameJournal reopened = FrameJournal.open(dir, FrameJournal.DEFAULT_SEGMENT_SIZE);
+		assertIds(reopened.getRecovered(), 1);
+		// sequences go on after the torn record
+		long next = reopened.append(Collections.singletonList(notification(3)));
+		assertTrue(next > 1);
+	}
+
+	private static void assertIds(List<ApnsNotification> notifications, int... ids) {
+		List<Integer> found = new ArrayList<Integer>();
+		for (ApnsNotification notification : notifications) {
+			found.add(notification.getIdentifier());
+		}
+		List<Integer> expected = new ArrayList<Integer>();
+		for (int id : ids) {
+			expected.add(id);
+		}
+		assertEquals(expected, found);
+	}
+
+	private static ApnsNotification notification(int id) {
+		return new EnhancedApnsNotification(id, 1, new byte[32], new byte[] { 'x' });
+	}
+}
@@ -4,8 +4,14 @@
 package com.notnoop.apns.internal;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -54,4 +60,104 @@ public class LoopLocalAddressSwitcherTest {
 		Assert.assertNull(switcher.takeAddress());
 	}
 
+	@Test
+	public void testAddressesAreTakenInTurn() throws IOException {
+		LoopSwithConnectionHolder switcher = new LoopSwithConnectionHolder(
+				Collections.singletonList(InetAddress.getLoopbackAddress()), new int[] { 9997, 9998, 9999 });
+		MonitorConnection first = switcher.takeAddress();
+		switcher.returnAddress(first);
+		// the others first
+		Assert.assertNotSame(first, switcher.takeAddress());
+		Assert.assertNotSame(first, switcher.takeAddress());
+		Assert.assertSame(first, switcher.takeAddress());
+	}
+
+	@Test
+	public void testAddressReturnedTwiceIsTakenOnce() throws IOException {
+		LoopSwithConnectionHolder switcher = new LoopSwithConnectionHolder(
+				Collections.singletonList(InetAddress.getLoopbackAddress()), new int[] { 9998 });
+		MonitorConnection address = switcher.takeAddress();
+		switcher.returnAddress(address);
+		switcher.returnAddress(address);
+		Assert.assertSame(address, switcher.takeAddress());
+		Assert.assertNull(switcher.takeAddress());
+	}
+
+	@Test
+	public void testAddressIsNeverHeldTwice() throws Exception {
+		final int[] ports = new int[2000];
+		for (int i = 0; i < ports.length; i++) {
+			ports[i] = 10000 + i;
+		}
+		final LoopSwithConnectionHolder switcher = new LoopSwithConnectionHolder(
+				Collections.singletonList(InetAddress.getLoopbackAddress()), ports);
+		final AtomicIntegerArray held = new AtomicIntegerArray(switcher.getSize());
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CountDownLatch done = new CountDownLatch(16);
+		for (int t = 0; t < 16; t++) {
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						for (int i = 0; i < 2000; i++) {
+							MonitorConnection address = switcher.takeAddress();
+							if (address == null) {
+								continue;
+							}
+							if (!held.compareAndSet(address.getIndex(), 0, 1)) {
+								throw new AssertionError("taken twice: " + address);
+							}
+							held.set(address.getIndex(), 0);
+							switcher.returnAddress(address);
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+		done.await();
+		Assert.assertNull(String.valueOf(failure.get()), failure.get());
+		for (int i = 0; i < switcher.getSize(); i++) {
+			Assert.assertNotNull(switcher.takeAddress());
+		}
+		Assert.assertNull(switcher.takeAddress());
+	}
+
+	@Test
+	public void testWaitingTakeGetsTheReturnedAddress() throws Exception {
+		final LoopSwithConnectionHolder switcher = new LoopSwithConnectionHolder(
+				Collections.singletonList(InetAddress.getLoopbackAddress()), new int[] { 9998 });
+		final MonitorConnection address = switcher.takeAddress();
+		final AtomicReference<MonitorConnection> taken = new AtomicReference<MonitorConnection>();
+		final CountDownLatch waiting = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					waiting.countDown();
+					taken.set(switcher.takeAddress(10000));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					done.countDown();
+				}
+			}
+		}).start();
+		waiting.await();
+		switcher.returnAddress(address);
+		Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+		Assert.assertSame(address, taken.get());
+	}
+
+	@Test
+	public void testWaitingTakeTimesOut() throws Exception {
+		LoopSwithConnectionHolder switcher = new LoopSwithConnectionHolder(
+				Collections.singletonList(InetAddress.getLoopbackAddress()), new int[] { 9998 });
+		Assert.assertNotNull(switcher.takeAddress(0));
+		long start = System.nanoTime();
+		Assert.assertNull(switcher.takeAddress(100));
+		Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+	}
 }
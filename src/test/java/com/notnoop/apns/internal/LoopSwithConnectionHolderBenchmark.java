@@ -0,0 +1,66 @@
+package com.notnoop.apns.internal;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.notnoop.apns.MonitorConnection;
+
+/**
+ * Measures take/return throughput of {@link LoopSwithConnectionHolder}
+ * with 64 threads over 100k local addresses.
+ */
+public class LoopSwithConnectionHolderBenchmark {
+
+    private static final int THREADS = 64;
+    private static final int PORTS = 50000;
+    private static final int ITERATIONS = 200000;
+
+    public static void main(String[] args) throws Exception {
+        // two local addresses by 50k ports, 100k slots
+        List<InetAddress> addresses = Arrays.asList(InetAddress.getByName("127.0.0.1"), InetAddress.getByName("127.0.0.2"));
+        int[] ports = new int[PORTS];
+        for (int i = 0; i < PORTS; i++) {
+            ports[i] = 10000 + i;
+        }
+        final LoopSwithConnectionHolder holder = new LoopSwithConnectionHolder(addresses, ports);
+
+        for (int round = 0; round < 5; round++) {
+            final AtomicLong sink = new AtomicLong();
+            final CountDownLatch start = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(THREADS);
+            for (int t = 0; t < THREADS; t++) {
+                new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            start.await();
+                            long taken = 0;
+                            for (int i = 0; i < ITERATIONS; i++) {
+                                MonitorConnection address = holder.takeAddress();
+                                if (address != null) {
+                                    taken += address.getIndex();
+                                    holder.returnAddress(address);
+                                }
+                            }
+                            sink.addAndGet(taken);
+                        } catch (Exception e) {
+                            throw new IllegalStateException(e);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }).start();
+            }
+            long begin = System.nanoTime();
+            start.countDown();
+            done.await();
+            long elapsed = System.nanoTime() - begin;
+            long operations = (long) THREADS * ITERATIONS;
+            System.out.println("round " + round + ": " + holder.getSize() + " slots, " + THREADS + " threads, "
+                    + operations * 1000000000L / elapsed + " take/return per second, "
+                    + elapsed / operations + " ns each (" + sink.get() + ")");
+        }
+    }
+}
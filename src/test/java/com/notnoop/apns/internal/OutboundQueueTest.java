@@ -0,0 +1,168 @@
+package com.notnoop.apns.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.OverflowPolicy;
+import com.notnoop.exceptions.QueueFullException;
+
+public class OutboundQueueTest {
+
+	private final List<ApnsNotification> dropped = new ArrayList<ApnsNotification>();
+	private final List<String> watermarks = new ArrayList<String>();
+
+	private final OutboundQueue.Listener listener = new OutboundQueue.Listener() {
+		public void dropped(ApnsNotification notification, QueueFullException e) {
+			dropped.add(notification);
+		}
+
+		public void highWatermark(int queued) {
+			watermarks.add("high:" + queued);
+		}
+
+		public void lowWatermark(int queued) {
+			watermarks.add("low:" + queued);
+		}
+	};
+
+	private OutboundQueue queue(int capacity, OverflowPolicy policy) {
+		return new OutboundQueue(capacity, OutboundQueue.UNBOUNDED, policy, 50, 100, 0, listener);
+	}
+
+	@Test
+	public void failFastRejectsWhenFull() throws QueueFullException {
+		OutboundQueue queue = queue(2, OverflowPolicy.FAIL_FAST);
+		queue.offer(notification(1, ApnsNotification.PRIORITY_IMMEDIATE));
+		queue.offer(notification(2, ApnsNotification.PRIORITY_IMMEDIATE));
+		try {
+			queue.offer(notification(3, ApnsNotification.PRIORITY_IMMEDIATE));
+			fail("queue should be full");
+		} catch (QueueFullException expected) {
+		}
+		assertEquals(2, queue.size());
+		assertEquals(1, queue.poll().getIdentifier());
+		queue.offer(notification(3, ApnsNotification.PRIORITY_IMMEDIATE));
+	}
+
+	@Test
+	public void blockGivesUpAfterTimeout() throws QueueFullException {
+		OutboundQueue queue = queue(1, OverflowPolicy.BLOCK);
+		queue.offer(notification(1, ApnsNotification.PRIORITY_IMMEDIATE));
+		final long start = System.nanoTime();
+		try {
+			queue.offer(notification(2, ApnsNotification.PRIORITY_IMMEDIATE));
+			fail("queue should be full");
+		} catch (QueueFullException expected) {
+		}
+		assertTrue(System.nanoTime() - start >= 50 * 1000 * 1000L);
+	}
+
+	@Test
+	public void blockedProducersWakeUpOnceThePollMadeRoom() throws Exception {
+		final OutboundQueue queue = new OutboundQueue(1, OutboundQueue.UNBOUNDED, OverflowPolicy.BLOCK, //
+				OutboundQueue.UNBOUNDED, 100, 0, listener);
+		queue.offer(notification(1, ApnsNotification.PRIORITY_IMMEDIATE));
+		final CountDownLatch offering = new CountDownLatch(1);
+		final CountDownLatch offered = new CountDownLatch(1);
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					offering.countDown();
+					queue.offer(notification(2, ApnsNotification.PRIORITY_IMMEDIATE));
+					offered.countDown();
+				} catch (QueueFullException e) {
+					throw new AssertionError(e);
+				}
+			}
+		}).start();
+		offering.await();
+		assertTrue(!offered.await(50, TimeUnit.MILLISECONDS));
+		assertEquals(1, queue.poll().getIdentifier());
+		assertTrue(offered.await(5, TimeUnit.SECONDS));
+		assertEquals(2, queue.poll().getIdentifier());
+	}
+
+	@Test
+	public void dropOldestMakesRoom() throws QueueFullException {
+		OutboundQueue queue = queue(2, OverflowPolicy.DROP_OLDEST);
+		for (int i = 1; i <= 4; i++) {
+			queue.offer(notification(i, ApnsNotification.PRIORITY_IMMEDIATE));
+		}
+		assertEquals(2, dropped.size());
+		assertEquals(1, dropped.get(0).getIdentifier());
+		assertEquals(2, dropped.get(1).getIdentifier());
+		assertEquals(3, queue.poll().getIdentifier());
+		assertEquals(4, queue.poll().getIdentifier());
+		assertNull(queue.poll());
+	}
+
+	@Test
+	public void dropLowestPriorityKeepsImmediateNotifications() throws QueueFullException {
+		OutboundQueue queue = queue(2, OverflowPolicy.DROP_LOWEST_PRIORITY);
+		ApnsNotification low = notification(1, ApnsNotification.PRIORITY_CONSERVE_POWER);
+		queue.offer(low);
+		queue.offer(notification(2, ApnsNotification.PRIORITY_IMMEDIATE));
+		queue.offer(notification(3, ApnsNotification.PRIORITY_IMMEDIATE));
+		assertEquals(1, dropped.size());
+		assertSame(low, dropped.get(0));
+
+		try {
+			queue.offer(notification(4, ApnsNotification.PRIORITY_IMMEDIATE));
+			fail("nothing left to drop");
+		} catch (QueueFullException expected) {
+		}
+		assertEquals(2, queue.poll().getIdentifier());
+		assertEquals(3, queue.poll().getIdentifier());
+	}
+
+	@Test
+	public void byteCapacityBoundsMarshalledFrames() throws QueueFullException {
+		ApnsNotification first = notification(1, ApnsNotification.PRIORITY_IMMEDIATE);
+		final int frame = first.marshall().length;
+		OutboundQueue queue = new OutboundQueue(100, frame * 2, OverflowPolicy.FAIL_FAST, 0, 100, 0, listener);
+		queue.offer(first);
+		queue.offer(notification(2, ApnsNotification.PRIORITY_IMMEDIATE));
+		assertEquals(frame * 2, queue.bytes());
+		try {
+			queue.offer(notification(3, ApnsNotification.PRIORITY_IMMEDIATE));
+			fail("queue should be full");
+		} catch (QueueFullException expected) {
+		}
+		queue.poll();
+		assertEquals(frame, queue.bytes());
+	}
+
+	@Test
+	public void watermarksAreReportedOncePerCrossing() throws QueueFullException {
+		OutboundQueue queue = new OutboundQueue(10, OutboundQueue.UNBOUNDED, OverflowPolicy.FAIL_FAST, 0, 80, 20, listener);
+		for (int i = 0; i < 9; i++) {
+			queue.offer(notification(i, ApnsNotification.PRIORITY_IMMEDIATE));
+		}
+		for (int i = 0; i < 9; i++) {
+			queue.poll();
+		}
+		queue.offer(notification(9, ApnsNotification.PRIORITY_IMMEDIATE));
+		assertEquals("[high:8, low:2]", watermarks.toString());
+	}
+
+	private static ApnsNotification notification(int id, final int priority) {
+		return new EnhancedApnsNotification(id, 1, new byte[32], new byte[] { '{', '}' }) {
+			@Override
+			public int getPriority() {
+				return priority;
+			}
+		};
+	}
+}
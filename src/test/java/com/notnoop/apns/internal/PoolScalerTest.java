@@ -0,0 +1,76 @@
+package com.notnoop.apns.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class PoolScalerTest {
+
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	@Test
+	public void growsWithTheBacklog() {
+		PoolScaler scaler = new PoolScaler(1, 3, 100, 1000, 60000);
+		assertEquals(1, scaler.evaluate(1, 50, true, 0));
+		assertEquals(2, scaler.evaluate(1, 150, true, 100 * MS));
+		// a hundred per connection
+		assertEquals(2, scaler.evaluate(2, 150, true, 200 * MS));
+		assertEquals(3, scaler.evaluate(2, 250, true, 300 * MS));
+		// the ceiling
+		assertEquals(3, scaler.evaluate(3, 100000, true, 400 * MS));
+	}
+
+	@Test
+	public void growsWithTheLatency() {
+		PoolScaler scaler = new PoolScaler(1, 3, 100, 200, 60000);
+		scaler.written(100 * MS);
+		scaler.written(500 * MS);
+		assertEquals(2, scaler.evaluate(1, 0, true, 0));
+		// the latencies of a sample only count once
+		assertEquals(2, scaler.evaluate(2, 0, true, 100 * MS));
+		scaler.written(100 * MS);
+		assertEquals(2, scaler.evaluate(2, 0, true, 200 * MS));
+	}
+
+	@Test
+	public void shrinksAfterTheCoolDown() {
+		PoolScaler scaler = new PoolScaler(1, 3, 100, 1000, 1000);
+		assertEquals(3, scaler.evaluate(3, 1000, true, 0));
+		assertEquals(3, scaler.evaluate(3, 0, true, 500 * MS));
+		assertEquals(2, scaler.evaluate(3, 0, true, 1000 * MS));
+		// one connection per cool-down period
+		assertEquals(2, scaler.evaluate(2, 0, true, 1500 * MS));
+		assertEquals(1, scaler.evaluate(2, 0, true, 2000 * MS));
+		assertEquals(1, scaler.evaluate(1, 0, true, 10000 * MS));
+	}
+
+	@Test
+	public void rejectedConnectionsHoldGrowthBack() {
+		PoolScaler scaler = new PoolScaler(1, 10, 100, 1000, 60000);
+		assertEquals(1, scaler.evaluate(1, 1000, false, 0));
+		// held for a second, though every connection is ready again
+		assertEquals(1, scaler.evaluate(1, 1000, true, 500 * MS));
+		assertEquals(2, scaler.evaluate(1, 1000, true, 1000 * MS));
+
+		// failing again and again, the hold doubles
+		assertEquals(2, scaler.evaluate(2, 1000, false, 1100 * MS));
+		assertEquals(2, scaler.evaluate(2, 1000, false, 2100 * MS));
+		assertEquals(2, scaler.evaluate(2, 1000, false, 2200 * MS));
+		// still held until 4100 ms
+		assertEquals(2, scaler.evaluate(2, 1000, true, 4000 * MS));
+		assertEquals(3, scaler.evaluate(2, 1000, true, 4100 * MS));
+	}
+
+	@Test
+	public void aSingleCallerEvaluatesASample() {
+		PoolScaler scaler = new PoolScaler(1, 2, 100, 1000, 60000);
+		assertTrue(scaler.isDue(0));
+		assertFalse(scaler.isDue(50 * MS));
+		assertTrue(scaler.isDue(100 * MS));
+		assertFalse(scaler.isDue(100 * MS));
+	}
+}
@@ -0,0 +1,70 @@
+package com.notnoop.apns.internal;
+
+import static com.notnoop.apns.utils.FixedCertificates.LOCALHOST;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.notnoop.apns.ApnsPushFuture;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.utils.Simulator.Http2ApnsServerSimulator;
+
+public class PooledHttp2DispatcherTest {
+
+	private static final int COPIES = 3;
+	private static final int STREAMS = 10;
+
+	private Http2ApnsServerSimulator server;
+
+	@Before
+	public void startup() {
+		server = new Http2ApnsServerSimulator();
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+
+	@Test
+	public void everyCopyKeepsItsRequestsOutOfTheDispatcherQueue() throws Exception {
+		server.setLatency(300);
+		ApnsHttp2Connection prototype = new ApnsHttp2Connection(LOCALHOST, server.getPort(), server.clientContext(),
+				"com.notnoop.test", null, 10000);
+		prototype.setMaxConcurrentStreams(STREAMS);
+		ApnsPooledConnection pool = new ApnsPooledConnection(prototype, COPIES);
+		try {
+			ApnsConnection[] copies = pool.copies();
+			for (int i = 1; i < copies.length; i++) {
+				assertNotSame(((ApnsHttp2Connection) copies[0]).dispatcher(), ((ApnsHttp2Connection) copies[i]).dispatcher());
+			}
+
+			List<ApnsPushFuture> futures = new ArrayList<ApnsPushFuture>();
+			for (int i = 0; i < COPIES * STREAMS * 5; i++) {
+				EnhancedApnsNotification notification = new EnhancedApnsNotification(i, 1, new byte[32], new byte[] { '{', '}' });
+				ApnsPushFuture future = new ApnsPushFuture(notification);
+				pool.sendMessageAsync(notification, future);
+				futures.add(future);
+			}
+			int queued = 0;
+			for (ApnsPushFuture future : futures) {
+				for (ApnsConnection copy : copies) {
+					queued = Math.max(queued, ((ApnsHttp2Connection) copy).dispatcher().queuedCallsCount());
+				}
+				future.delivered().get(10, TimeUnit.SECONDS);
+			}
+			// the other notifications waited in the bounded queue of their copy
+			assertEquals(0, queued);
+		} finally {
+			pool.close();
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package com.notnoop.apns.internal;
+
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.spec.ECGenParameterSpec;
+
+/**
+ * Compares the authorization cost of a request when reading the shared
+ * {@link ProviderToken} with signing a token inline.
+ */
+public class ProviderTokenBenchmark {
+
+    private static final int ITERATIONS = 20000;
+
+    public static void main(String[] args) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        PrivateKey key = generator.generateKeyPair().getPrivate();
+
+        ProviderToken token = new ProviderToken(key, "ABC123DEFG", "DEF123GHIJ");
+        try {
+            for (int round = 0; round < 3; round++) {
+                int sink = 0;
+                long start = System.nanoTime();
+                for (int i = 0; i < ITERATIONS; i++) {
+                    sink += token.authorization().length();
+                }
+                long cached = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i = 0; i < ITERATIONS; i++) {
+                    sink += ProviderToken.sign(key, "ABC123DEFG", "DEF123GHIJ", System.currentTimeMillis()).length();
+                }
+                long inline = System.nanoTime() - start;
+
+                System.out.println("round " + round + ": cached " + cached / ITERATIONS + " ns/request, inline "
+                        + inline / ITERATIONS + " ns/request (" + sink + ")");
+            }
+        } finally {
+            token.close();
+        }
+    }
+}
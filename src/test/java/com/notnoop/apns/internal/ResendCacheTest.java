@@ -0,0 +1,218 @@
+package com.notnoop.apns.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.FramedApnsNotification;
+import com.notnoop.apns.ResendCacheBudget;
+
+public class ResendCacheTest {
+
+	@Test
+	public void oldestAreEvicted() {
+		ResendCache cache = new ResendCache(3);
+		for (int id = 1; id <= 5; id++) {
+			cache.add(notification(id));
+		}
+		assertEquals(3, cache.size());
+
+		List<ApnsNotification> resend = new ArrayList<ApnsNotification>();
+		assertNull(cache.removeAfter(1, resend));
+		assertIds(resend, 3, 4, 5);
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void notificationsAfterTheRejectedOneAreResent() {
+		ResendCache cache = new ResendCache(1000);
+		for (int id = 0; id < 5000; id++) {
+			cache.add(notification(id));
+		}
+
+		List<ApnsNotification> resend = new ArrayList<ApnsNotification>();
+		assertEquals(4500, cache.removeAfter(4500, resend).getIdentifier());
+		assertEquals(499, resend.size());
+		assertEquals(4501, resend.get(0).getIdentifier());
+		assertEquals(4999, resend.get(498).getIdentifier());
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void identifiersSharingAnIndexSlotAreFound() {
+		// four notifications, eight index slots
+		ResendCache cache = new ResendCache(4);
+		cache.add(notification(3));
+		cache.add(notification(11));
+		cache.add(notification(19));
+		cache.add(notification(4));
+
+		List<ApnsNotification> resend = new ArrayList<ApnsNotification>();
+		assertEquals(3, cache.removeAfter(3, resend).getIdentifier());
+		assertIds(resend, 11, 19, 4);
+	}
+
+	@Test
+	public void resizingKeepsTheNewest() {
+		ResendCache cache = new ResendCache(4);
+		for (int id = 1; id <= 4; id++) {
+			cache.add(notification(id));
+		}
+		cache.setCapacity(2);
+		assertEquals(2, cache.size());
+
+		cache.setCapacity(100);
+		for (int id = 5; id <= 8; id++) {
+			cache.add(notification(id));
+		}
+		List<ApnsNotification> resend = new ArrayList<ApnsNotification>();
+		assertEquals(5, cache.removeAfter(5, resend).getIdentifier());
+		assertIds(resend, 6, 7, 8);
+
+		cache.add(notification(9));
+		resend.clear();
+		assertNull(cache.removeAfter(42, resend));
+		assertIds(resend, 9);
+	}
+
+	@Test
+	public void nothingIsKeptWithoutCapacity() {
+		ResendCache cache = new ResendCache(0);
+		ApnsNotification notification = notification(1);
+		cache.add(notification);
+		assertEquals(0, cache.size());
+
+		cache.setCapacity(1);
+		cache.add(notification);
+		assertSame(notification, cache.removeAfter(1, new ArrayList<ApnsNotification>()));
+	}
+
+	@Test
+	public void budgetEvictsByBytes() {
+		int frame = notification(0).length();
+		ResendCacheBudget budget = new ResendCacheBudget(10 * frame, 0);
+		ResendCache cache = new ResendCache(3);
+		cache.setBudget(budget);
+		// the budget replaces the capacity, the ring grows past its initial size
+		for (int id = 0; id < 5000; id++) {
+			cache.add(notification(id));
+		}
+		assertEquals(10, cache.size());
+		assertEquals(10 * frame, cache.getBytes());
+		assertEquals(10, budget.getRetainedNotifications());
+		assertEquals(10 * frame, budget.getRetainedBytes());
+
+		// four frames long, four of the oldest make room
+		cache.add(new EnhancedApnsNotification(5000, 1, new byte[32], new byte[3 * frame]));
+		assertEquals(7, cache.size());
+
+		List<ApnsNotification> resend = new ArrayList<ApnsNotification>();
+		assertEquals(4998, cache.removeAfter(4998, resend).getIdentifier());
+		assertIds(resend, 4999, 5000);
+		assertEquals(0, budget.getRetainedNotifications());
+		assertEquals(0, budget.getRetainedBytes());
+	}
+
+	@Test
+	public void budgetEvictsByAge() throws InterruptedException {
+		ResendCacheBudget budget = new ResendCacheBudget(1 << 20, 100);
+		ResendCache cache = new ResendCache(1000);
+		cache.setBudget(budget);
+		cache.add(notification(1));
+		cache.add(notification(2));
+		Thread.sleep(200);
+		cache.add(notification(3));
+		assertEquals(1, cache.size());
+		assertEquals(1, budget.getRetainedNotifications());
+
+		Thread.sleep(200);
+		List<ApnsNotification> resend = new ArrayList<ApnsNotification>();
+		assertNull(cache.removeAfter(3, resend));
+		assertTrue(resend.isEmpty());
+	}
+
+	@Test
+	public void cachesSharingABudgetAreMeasuredTogether() {
+		ResendCacheBudget budget = new ResendCacheBudget(1 << 20, 0);
+		ResendCache first = new ResendCache(1000);
+		ResendCache second = new ResendCache(1000);
+		first.setBudget(budget);
+		second.setBudget(budget);
+		first.add(notification(1));
+		second.add(notification(2));
+		second.add(notification(3));
+		assertEquals(3, budget.getRetainedNotifications());
+		assertEquals(3 * notification(0).length(), budget.getRetainedBytes());
+
+		second.clear();
+		assertEquals(1, budget.getRetainedNotifications());
+	}
+
+	@Test
+	public void framesAreResentFromTheArena() {
+		ResendCache cache = new ResendCache(100);
+		cache.setArena(new FrameArena());
+		ApnsNotification rejected = notification(1);
+		ApnsNotification enhanced = notification(2);
+		ApnsNotification framed = new FramedApnsNotification(3, 7, new byte[] { 1, 2, 3 }, new byte[] { 4, 5 },
+				ApnsNotification.PRIORITY_CONSERVE_POWER);
+		ApnsNotification tracked = notification(4);
+		cache.add(rejected);
+		cache.add(enhanced);
+		cache.add(framed);
+		cache.add(tracked, true);
+		assertEquals(enhanced.length() * 3 + framed.length(), cache.getBytes() + tracked.length());
+
+		List<ApnsNotification> resend = new ArrayList<ApnsNotification>();
+		ApnsNotification found = cache.removeAfter(1, resend);
+		// decoded for the delegate
+		assertNotSame(rejected, found);
+		assertEquals(rejected, found);
+
+		assertIds(resend, 2, 3, 4);
+		assertArrayEquals(enhanced.marshall(), resend.get(0).marshall());
+		assertArrayEquals(framed.marshall(), resend.get(1).marshall());
+		assertArrayEquals(framed.getDeviceToken(), resend.get(1).getDeviceToken());
+		assertEquals(ApnsNotification.PRIORITY_CONSERVE_POWER, resend.get(1).getPriority());
+		assertSame(tracked, resend.get(2));
+		assertEquals(0, cache.getBytes());
+	}
+
+	@Test
+	public void arenaSlabsAreReused() {
+		int frame = notification(0).length();
+		FrameArena arena = new FrameArena(4 * frame);
+		ResendCache cache = new ResendCache(6);
+		cache.setArena(arena);
+		for (int id = 0; id < 1000; id++) {
+			cache.add(notification(id));
+		}
+		// the cache spans at most three slabs, two more are kept spare
+		assertTrue(arena.getAllocatedBytes() <= 5 * 4 * frame);
+
+		List<ApnsNotification> resend = new ArrayList<ApnsNotification>();
+		cache.removeAfter(995, resend);
+		assertIds(resend, 996, 997, 998, 999);
+	}
+
+	private static void assertIds(List<ApnsNotification> notifications, int... ids) {
+		assertEquals(ids.length, notifications.size());
+		for (int i = 0; i < ids.length; i++) {
+			assertEquals(ids[i], notifications.get(i).getIdentifier());
+		}
+	}
+
+	private static ApnsNotification notification(int id) {
+		return new EnhancedApnsNotification(id, 1, new byte[32], new byte[0]);
+	}
+}
@@ -0,0 +1,80 @@
+package com.notnoop.apns.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RingBufferTest {
+
+	@Test
+	public void capacityIsRoundedToPowerOfTwo() {
+		assertEquals(8, new RingBuffer<Object>(5).capacity());
+		assertEquals(8, new RingBuffer<Object>(8).capacity());
+	}
+
+	@Test
+	public void offerFailsWhenFull() {
+		RingBuffer<Integer> ring = new RingBuffer<Integer>(4);
+		for (int i = 0; i < 4; i++) {
+			assertTrue(ring.offer(i));
+		}
+		assertFalse(ring.offer(4));
+		assertEquals(4, ring.size());
+
+		assertEquals(Integer.valueOf(0), ring.poll());
+		assertTrue(ring.offer(4));
+		for (int i = 1; i <= 4; i++) {
+			assertEquals(Integer.valueOf(i), ring.poll());
+		}
+		assertNull(ring.poll());
+		assertTrue(ring.isEmpty());
+	}
+
+	@Test
+	public void concurrentProducersKeepTheirOrder() throws InterruptedException {
+		final int producers = 4;
+		final int perProducer = 100000;
+		final RingBuffer<long[]> ring = new RingBuffer<long[]>(1024);
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int p = 0; p < producers; p++) {
+			final int producer = p;
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					for (int i = 0; i < perProducer; i++) {
+						long[] element = new long[] { producer, i };
+						while (!ring.offer(element)) {
+							Thread.yield();
+						}
+					}
+				}
+			});
+			threads.add(t);
+			t.start();
+		}
+
+		long[] next = new long[producers];
+		int received = 0;
+		while (received < producers * perProducer) {
+			long[] element = ring.poll();
+			if (element == null) {
+				Thread.yield();
+				continue;
+			}
+			int producer = (int) element[0];
+			assertEquals(next[producer], element[1]);
+			next[producer]++;
+			received++;
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertNull(ring.poll());
+	}
+}
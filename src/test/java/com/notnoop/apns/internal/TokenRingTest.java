@@ -0,0 +1,127 @@
+package com.notnoop.apns.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.notnoop.apns.ApnsNotification;
+import com.notnoop.apns.EnhancedApnsNotification;
+import com.notnoop.apns.FramedApnsNotification;
+
+public class TokenRingTest {
+
+	private static final int TOKENS = 10000;
+
+	@Test
+	public void aTokenAlwaysGoesToTheSameCopy() {
+		ApnsConnection[] copies = copies(4);
+		TokenRing ring = new TokenRing(copies);
+		TokenRing rebuilt = new TokenRing(copies);
+		byte[][] tokens = tokens();
+		for (byte[] token : tokens) {
+			ApnsConnection copy = ring.get(token);
+			assertSame(copy, ring.get(token.clone()));
+			assertSame(copy, rebuilt.get(token));
+		}
+	}
+
+	@Test
+	public void tokensAreSpreadEvenly() {
+		ApnsConnection[] copies = copies(4);
+		TokenRing ring = new TokenRing(copies);
+		Map<ApnsConnection, Integer> counts = new IdentityHashMap<ApnsConnection, Integer>();
+		for (byte[] token : tokens()) {
+			ApnsConnection copy = ring.get(token);
+			Integer count = counts.get(copy);
+			counts.put(copy, count == null ? 1 : count + 1);
+		}
+		assertEquals(4, counts.size());
+		for (int count : counts.values()) {
+			// a quarter, give or take a fifth
+			assertTrue(String.valueOf(count), count > 2000 && count < 3000);
+		}
+	}
+
+	@Test
+	public void anAddedCopyOnlyTakesItsShare() {
+		ApnsConnection[] five = copies(5);
+		TokenRing before = new TokenRing(Arrays.copyOf(five, 4));
+		TokenRing after = new TokenRing(five);
+		int moved = 0;
+		for (byte[] token : tokens()) {
+			ApnsConnection was = before.get(token);
+			ApnsConnection is = after.get(token);
+			if (was != is) {
+				// never from one old copy to another
+				assertSame(five[4], is);
+				moved++;
+			}
+		}
+		// about a fifth
+		assertTrue(String.valueOf(moved), moved > 1400 && moved < 2600);
+	}
+
+	@Test
+	public void aNotificationGoesWhereItsTokenGoesWithoutCopyingIt() {
+		TokenRing ring = new TokenRing(copies(4));
+		byte[] payload = new byte[] { '{', '}' };
+		for (final byte[] token : Arrays.copyOf(tokens(), 100)) {
+			ApnsNotification enhanced = new EnhancedApnsNotification(1, 1, token, payload) {
+				@Override
+				public byte[] getDeviceToken() {
+					throw new AssertionError("copied");
+				}
+			};
+			ApnsNotification framed = new FramedApnsNotification(1, 1, token, payload, ApnsNotification.PRIORITY_IMMEDIATE) {
+				@Override
+				public byte[] getDeviceToken() {
+					throw new AssertionError("copied");
+				}
+			};
+			assertSame(ring.get(token), ring.get(enhanced));
+			assertSame(ring.get(token), ring.get(framed));
+		}
+	}
+
+	@Test
+	public void theRingKnowsItsCopies() {
+		ApnsConnection[] copies = copies(2);
+		TokenRing ring = new TokenRing(copies);
+		assertTrue(ring.isFor(copies));
+		assertTrue(!ring.isFor(copies.clone()));
+	}
+
+	private static byte[][] tokens() {
+		Random random = new Random(42);
+		byte[][] tokens = new byte[TOKENS][32];
+		for (byte[] token : tokens) {
+			random.nextBytes(token);
+		}
+		return tokens;
+	}
+
+	private static ApnsConnection[] copies(int n) {
+		// the ring never calls its copies
+		InvocationHandler unused = new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				throw new UnsupportedOperationException(method.getName());
+			}
+		};
+		ApnsConnection[] copies = new ApnsConnection[n];
+		for (int i = 0; i < n; i++) {
+			copies[i] = (ApnsConnection) Proxy.newProxyInstance(ApnsConnection.class.getClassLoader(),
+					new Class<?>[] { ApnsConnection.class }, unused);
+		}
+		return copies;
+	}
+}
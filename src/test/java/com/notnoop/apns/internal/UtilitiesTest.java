@@ -30,9 +30,13 @@
  */
 package com.notnoop.apns.internal;
 
+import java.nio.ByteBuffer;
+
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.notnoop.apns.EnhancedApnsNotification;
+
 public class UtilitiesTest {
 
     @Test
@@ -84,4 +88,50 @@ public class UtilitiesTest {
         }
 
     }
+
+    @Test
+    public void testWriteFramed() {
+        byte[] token = { 1, 2, 3 };
+        byte[] payload = { 'a', 'b' };
+        ByteBuffer buffer = ByteBuffer.allocate(Utilities.framedLength(token.length, payload.length));
+
+        Utilities.writeFramed(buffer, 7, 9, token, payload, 5);
+
+        byte[] expected = {
+                2, 0, 0, 0, 29,
+                1, 0, 3, 1, 2, 3,
+                2, 0, 2, 'a', 'b',
+                3, 0, 4, 0, 0, 0, 7,
+                4, 0, 4, 0, 0, 0, 9,
+                5, 0, 1, 5
+        };
+        Assert.assertFalse(buffer.hasRemaining());
+        Assert.assertArrayEquals(expected, buffer.array());
+    }
+
+    @Test
+    public void testWriteEnhancedIntoDirectBuffer() {
+        byte[] token = { 1, 2, 3 };
+        byte[] payload = { 'a', 'b' };
+        EnhancedApnsNotification notification = new EnhancedApnsNotification(7, 9, token, payload);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+
+        notification.writeTo(buffer);
+
+        byte[] expected = {
+                1,
+                0, 0, 0, 7,
+                0, 0, 0, 9,
+                0, 3, 1, 2, 3,
+                0, 2, 'a', 'b'
+        };
+        Assert.assertEquals(expected.length, notification.length());
+        Assert.assertEquals(expected.length, buffer.position());
+        byte[] written = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(written);
+        Assert.assertArrayEquals(expected, written);
+        Assert.assertArrayEquals(expected, notification.marshall());
+        Assert.assertArrayEquals(expected, Utilities.marshallEnhanced((byte) 1, 7, 9, token, payload));
+    }
 }
@@ -0,0 +1,115 @@
+package com.notnoop.apns.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class VirtualThreadsTest {
+
+    @Test
+    public void factoryCreatesVirtualThreadsWhenSupported() throws Exception {
+        boolean runtimeHasVirtualThreads;
+        try {
+            Thread.class.getMethod("ofVirtual");
+            runtimeHasVirtualThreads = true;
+        } catch (NoSuchMethodException e) {
+            runtimeHasVirtualThreads = false;
+        }
+        if (!runtimeHasVirtualThreads) {
+            assertTrue(!VirtualThreads.isSupported());
+            try {
+                VirtualThreads.factory("test-");
+                fail("no virtual threads before Java 21");
+            } catch (UnsupportedOperationException expected) {
+            }
+            return;
+        }
+        if (!VirtualThreads.isSupported()) {
+            // a preview build without --enable-preview
+            return;
+        }
+
+        ThreadFactory factory = VirtualThreads.factory("test-");
+        Thread thread = factory.newThread(new Runnable() {
+            public void run() {
+            }
+        });
+        assertEquals("test-0", thread.getName());
+        assertEquals(Boolean.TRUE, Thread.class.getMethod("isVirtual").invoke(thread));
+    }
+
+    @Test
+    public void platformThreadsAreNotVirtual() {
+        assertTrue(!VirtualThreads.isVirtual(null));
+        assertTrue(!VirtualThreads.isVirtual(Executors.defaultThreadFactory()));
+    }
+
+    @Test
+    public void aPerTaskExecutorStartsAVirtualThreadForEveryTask() throws Exception {
+        if (!VirtualThreads.isSupported()) {
+            return;
+        }
+        ThreadFactory factory = VirtualThreads.factory("test-");
+        assertTrue(VirtualThreads.isVirtual(factory));
+        ExecutorService executor = VirtualThreads.perTaskExecutor(factory);
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        final CountDownLatch blocked = new CountDownLatch(100);
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 100; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    threads.add(Thread.currentThread());
+                    blocked.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        // all blocked at once, none waits for a pooled thread
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        release.countDown();
+        executor.shutdown();
+        assertEquals(100, threads.size());
+    }
+
+    @Test
+    public void aPoolOfVirtualThreadsIsNotCappedAtItsThreads() throws Exception {
+        if (!VirtualThreads.isSupported()) {
+            return;
+        }
+        ExecutorService executor = ApnsPooledConnection.newBoundedExecutor(2, 100, 0, VirtualThreads.factory("test-"));
+        assertTrue(!(executor instanceof ThreadPoolExecutor));
+        final CountDownLatch blocked = new CountDownLatch(50);
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 50; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    blocked.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        release.countDown();
+        executor.shutdown();
+    }
+}
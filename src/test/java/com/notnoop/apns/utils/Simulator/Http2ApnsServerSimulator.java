@@ -0,0 +1,187 @@
+package com.notnoop.apns.utils.Simulator;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.tls.HandshakeCertificates;
+import okhttp3.tls.HeldCertificate;
+
+/**
+ * A local stand-in for the HTTP/2 provider API.
+ *
+ * Serves TLS with a certificate for localhost, generated together with the
+ * client context that trusts it, see {@link #clientContext()}.  Every request
+ * is accepted after the configured latency, unless a status was configured
+ * for its device token.
+ */
+public class Http2ApnsServerSimulator {
+
+    private static final String DEVICE_PATH = "/3/device/";
+
+    private final MockWebServer server = new MockWebServer();
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+    private final Map<String, Rejection> rejections = new ConcurrentHashMap<String, Rejection>();
+    private final SSLContext clientContext;
+    private volatile long latencyMillis = 0;
+
+    public Http2ApnsServerSimulator() {
+        final HeldCertificate root = new HeldCertificate.Builder()
+                .certificateAuthority(0)
+                .build();
+        final HeldCertificate localhost = new HeldCertificate.Builder()
+                .addSubjectAlternativeName("localhost")
+                .signedBy(root)
+                .build();
+        final HandshakeCertificates serverCertificates = new HandshakeCertificates.Builder()
+                .heldCertificate(localhost)
+                .build();
+        final HandshakeCertificates clientCertificates = new HandshakeCertificates.Builder()
+                .addTrustedCertificate(root.certificate())
+                .build();
+        this.clientContext = clientCertificates.sslContext();
+
+        server.useHttps(serverCertificates.sslSocketFactory(), false);
+        server.setProtocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest recorded) {
+                final Request request = new Request(recorded);
+                queue.add(request);
+                final Rejection rejection = request.getDeviceToken() == null ? null : rejections.get(request.getDeviceToken());
+                final MockResponse response = new MockResponse();
+                if (rejection == null) {
+                    response.setResponseCode(200);
+                } else {
+                    response.setResponseCode(rejection.status)
+                            .setHeader("content-type", "application/json")
+                            .setBody("{\"reason\":\"" + rejection.reason + "\"}");
+                }
+                return response.setHeadersDelay(latencyMillis, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    public void start() {
+        try {
+            server.start();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void stop() {
+        try {
+            server.shutdown();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public int getPort() {
+        return server.getPort();
+    }
+
+    /**
+     * A context that trusts the certificate of this server.
+     */
+    public SSLContext clientContext() {
+        return clientContext;
+    }
+
+    /**
+     * Answers every request for the hex encoded {@code deviceToken} with
+     * {@code status} and {@code reason}.
+     */
+    public void reject(String deviceToken, int status, String reason) {
+        rejections.put(deviceToken.toLowerCase(), new Rejection(status, reason));
+    }
+
+    private static class Rejection {
+        final int status;
+        final String reason;
+
+        Rejection(int status, String reason) {
+            this.status = status;
+            this.reason = reason;
+        }
+    }
+
+    /**
+     * Delays every response by {@code latencyMillis}.
+     */
+    public void setLatency(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    public BlockingQueue<Request> getQueue() {
+        return queue;
+    }
+
+    public static class Request {
+        private final String deviceToken;
+        private final String topic;
+        private final String authorization;
+        private final int priority;
+        private final int expiration;
+        private final int sequenceNumber;
+        private final byte[] payload;
+
+        Request(RecordedRequest recorded) {
+            final String path = recorded.getPath();
+            this.deviceToken = path.startsWith(DEVICE_PATH) ? path.substring(DEVICE_PATH.length()).toLowerCase() : null;
+            this.topic = recorded.getHeader("apns-topic");
+            this.authorization = recorded.getHeader("authorization");
+            this.priority = parseInt(recorded.getHeader("apns-priority"));
+            this.expiration = parseInt(recorded.getHeader("apns-expiration"));
+            this.sequenceNumber = recorded.getSequenceNumber();
+            this.payload = recorded.getBody().readByteArray();
+        }
+
+        private static int parseInt(String value) {
+            return value == null ? -1 : Integer.parseInt(value);
+        }
+
+        public String getDeviceToken() {
+            return deviceToken;
+        }
+
+        public String getTopic() {
+            return topic;
+        }
+
+        public String getAuthorization() {
+            return authorization;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public int getExpiration() {
+            return expiration;
+        }
+
+        /**
+         * The index of the request among those received on its connection.
+         */
+        public int getSequenceNumber() {
+            return sequenceNumber;
+        }
+
+        public byte[] getPayload() {
+            return payload.clone();
+        }
+    }
+}